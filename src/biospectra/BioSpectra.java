@@ -15,11 +15,22 @@
  */
 package biospectra;
 
+import biospectra.classify.ClassificationEngineType;
 import biospectra.classify.ClassifierClient;
 import biospectra.classify.LocalClassifier;
 import biospectra.classify.server.ClassifierServer;
 import biospectra.utils.IndexUtil;
+import biospectra.index.BitSlicedSignatureBuilder;
+import biospectra.index.BulkIndexer;
+import biospectra.index.ClassifierSnapshot;
+import biospectra.index.DiscriminativeKmerSelector;
+import biospectra.index.IndexOptimizer;
+import biospectra.index.IndexStatistics;
+import biospectra.index.IndexConstants;
 import biospectra.index.Indexer;
+import biospectra.index.KmerHashIndex;
+import biospectra.index.KmerLcaTableBuilder;
+import biospectra.index.ReferenceSketches;
 import biospectra.taxdb.TaxonDB;
 import biospectra.classify.beans.Taxonomy;
 import biospectra.utils.FastaFileHelper;
@@ -31,6 +42,7 @@ import java.util.Date;
 import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.util.LongBitSet;
 import org.yeastrc.fasta.FASTAEntry;
 
 /**
@@ -45,9 +57,11 @@ public class BioSpectra {
         System.err.println("Help:");
         System.err.println("> mode(first parameter) must be one of followings:");
         System.err.println("> \'i\' (OR \'index\') - construct index from references");
+        System.err.println("> \'o\' (OR \'optimize\') - compact index for serving");
         System.err.println("> \'lc\' (OR \'lclassify\') - classify metagenomic samples");
         System.err.println("> \'rc\' (OR \'rclassify\') - classify metagenomic samples through server");
         System.err.println("> \'svr\' (OR \'server\') - run classification server");
+        System.err.println("> \'u\' (OR \'utils\') - index, index-stats, fasta, nfasta utilities");
     }
     
     /**
@@ -72,6 +86,15 @@ public class BioSpectra {
             }
             
             index(indexArg);
+        } else if(programMode.equalsIgnoreCase("o") || programMode.equalsIgnoreCase("optimize")) {
+            System.out.println("Optimizing index...");
+            CommandArgumentsParser<CommandArgumentOptimize> parser = new CommandArgumentsParser<CommandArgumentOptimize>();
+            CommandArgumentOptimize optimizeArg = new CommandArgumentOptimize();
+            if(!parser.parse(programArgs, optimizeArg)) {
+                return;
+            }
+            
+            optimize(optimizeArg);
         } else if(programMode.equalsIgnoreCase("lc") || programMode.equalsIgnoreCase("lclassify")) {
             System.out.println("Classifying (LOCAL mode)...");
             CommandArgumentsParser<CommandArgumentLocalClassifier> parser = new CommandArgumentsParser<CommandArgumentLocalClassifier>();
@@ -99,6 +122,13 @@ public class BioSpectra {
             }
             
             runServer(serverArg);
+        } else if(programMode.equalsIgnoreCase("u") || programMode.equalsIgnoreCase("utils")) {
+            if(args.length < 3) {
+                printHelp();
+                return;
+            }
+            
+            utils(args);
         } else if(programMode.equalsIgnoreCase("simulate")) {
             System.out.println("Generating simulated reads...");
             simulateReads(programArgs);
@@ -117,20 +147,175 @@ public class BioSpectra {
             conf.setIndexPath(arg.getIndexDir());
         }
         
-        Indexer indexer = new Indexer(conf);
-        
         List<File> refereneFiles = FastaFileHelper.findFastaDocs(arg.getReferenceDir());
-        for(File fastaDoc : refereneFiles) {
-            LOG.info("indexing " + fastaDoc.getAbsolutePath() + " started");
+        if(conf.getIndexSortByTaxonomy()) {
+            refereneFiles = Indexer.sortByTaxonomy(refereneFiles);
+        }
+        
+        if(ClassificationEngineType.KMER_LCA.equals(conf.getEngine())) {
+            if(arg.isUpdate() || arg.isResume()) {
+                throw new IllegalArgumentException("k-mer LCA table cannot be updated, it has to be rebuilt");
+            }
+            
+            if(DiscriminativeKmerSelector.isEnabled(conf)) {
+                // k-mers shared across taxa are resolved to their LCA instead
+                LOG.info("discriminative k-mer selection is not used for a k-mer LCA table");
+            }
+            
+            KmerLcaTableBuilder builder = new KmerLcaTableBuilder(conf);
+            builder.build(refereneFiles);
+            return;
+        }
+        
+        if(ClassificationEngineType.KMER_HASH.equals(conf.getEngine())) {
+            if(arg.isUpdate() || arg.isResume()) {
+                throw new IllegalArgumentException("k-mer hash index cannot be updated, it has to be rebuilt");
+            }
+            
+            File indexPath = new File(conf.getIndexPath());
+            if(!indexPath.exists()) {
+                indexPath.mkdirs();
+            }
+            
+            KmerHashIndex hashIndex = KmerHashIndex.build(refereneFiles, conf.getKmerSize());
+            hashIndex.save(new File(indexPath, IndexConstants.KMER_HASH_INDEX_FILENAME));
+            return;
+        }
+        
+        LongBitSet discriminativeKmers = null;
+        if(arg.isUpdate() && DiscriminativeKmerSelector.exists(new File(conf.getIndexPath()))) {
+            throw new IllegalArgumentException("index of discriminative k-mers cannot be updated, it has to be rebuilt");
+        }
+        
+        if(DiscriminativeKmerSelector.isEnabled(conf)) {
+            if(arg.isUpdate()) {
+                // k-mers selected from the new set of references would not
+                // match the ones already indexed
+                throw new IllegalArgumentException("index of discriminative k-mers cannot be updated, it has to be rebuilt");
+            }
+            
+            DiscriminativeKmerSelector selector = new DiscriminativeKmerSelector(conf);
+            discriminativeKmers = selector.select(refereneFiles);
+        }
+        
+        if(arg.isBulk()) {
+            BulkIndexer indexer = new BulkIndexer(conf, discriminativeKmers);
+            
+            LOG.info("bulk indexing " + refereneFiles.size() + " reference files started");
             Date start = new Date();
             
-            indexer.index(fastaDoc);
+            indexer.index(refereneFiles);
+            indexer.close();
+            saveDiscriminativeKmers(conf, discriminativeKmers);
+            
+            Date end = new Date();
+            LOG.info("bulk indexing " + refereneFiles.size() + " reference files finished - " + (end.getTime() - start.getTime()) + " milliseconds");
             
-            Date end = new Date(); 
-            LOG.info("indexing " + fastaDoc.getAbsolutePath() + " finished - " + (end.getTime() - start.getTime()) + " milliseconds");
+            buildSignatures(conf, refereneFiles);
+            buildSketches(conf, refereneFiles);
+            writeSnapshot(conf);
+            return;
         }
         
+        // resuming skips files recorded as indexed in the last checkpoint,
+        // the same way an update skips unchanged files
+        boolean update = arg.isUpdate() || arg.isResume();
+        Indexer indexer = new Indexer(conf, update, discriminativeKmers);
+        
+        LOG.info("indexing " + refereneFiles.size() + " reference files started");
+        Date start = new Date();
+        
+        if(update) {
+            indexer.update(refereneFiles);
+        } else {
+            indexer.index(refereneFiles);
+        }
         indexer.close();
+        saveDiscriminativeKmers(conf, discriminativeKmers);
+        
+        Date end = new Date();
+        LOG.info("indexing " + refereneFiles.size() + " reference files finished - " + (end.getTime() - start.getTime()) + " milliseconds");
+        
+        buildSignatures(conf, refereneFiles);
+        buildSketches(conf, refereneFiles);
+        writeSnapshot(conf);
+    }
+    
+    /**
+     * Saves the selected k-mers with the index, queries are restricted to them
+     */
+    private static void saveDiscriminativeKmers(Configuration conf, LongBitSet discriminativeKmers) throws Exception {
+        if(discriminativeKmers == null) {
+            return;
+        }
+        
+        DiscriminativeKmerSelector.save(discriminativeKmers, conf.getKmerSize(), new File(conf.getIndexPath()));
+    }
+    
+    private static void buildSignatures(Configuration conf, List<File> refereneFiles) throws Exception {
+        if(!conf.getIndexSignature()) {
+            return;
+        }
+        
+        // updates and resumes pass all reference files, so signatures are
+        // always rebuilt for the whole reference set
+        BitSlicedSignatureBuilder builder = new BitSlicedSignatureBuilder(conf);
+        builder.build(refereneFiles);
+    }
+    
+    private static void buildSketches(Configuration conf, List<File> refereneFiles) throws Exception {
+        if(!conf.getIndexSketch()) {
+            return;
+        }
+        
+        // short index k-mers are found in almost any genome, so sketches use
+        // their own k-mer size; samples are sketched with the one stored
+        ReferenceSketches sketches = ReferenceSketches.build(refereneFiles, conf.getIndexSketchKmerSize(), conf.getIndexSketchScaled());
+        sketches.save(new File(conf.getIndexPath()));
+    }
+    
+    private static void writeSnapshot(Configuration conf) throws Exception {
+        if(!conf.getIndexSnapshot()) {
+            return;
+        }
+        
+        ClassifierSnapshot.write(new File(conf.getIndexPath()));
+    }
+    
+    private static void optimize(CommandArgumentOptimize arg) throws Exception {
+        Configuration conf = null;
+        
+        if(arg.getJsonConfiguration() != null && !arg.getJsonConfiguration().isEmpty()) {
+            conf = Configuration.createInstance(new File(arg.getJsonConfiguration()));
+        } else {
+            conf = new Configuration();
+        }
+        
+        if(arg.getIndexDir() != null && !arg.getIndexDir().isEmpty()) {
+            conf.setIndexPath(arg.getIndexDir());
+        }
+        
+        // segment count given, then the configured one, then a single segment
+        int segments = arg.getSegments();
+        if(segments <= 0) {
+            segments = conf.getIndexForceMergeSegments() > 0 ? conf.getIndexForceMergeSegments() : 1;
+        }
+        
+        IndexOptimizer optimizer = new IndexOptimizer(conf);
+        
+        LOG.info("optimizing index to " + segments + " segments started");
+        Date start = new Date();
+        
+        optimizer.optimize(segments);
+        optimizer.close();
+        
+        Date end = new Date();
+        LOG.info("optimizing index finished - " + (end.getTime() - start.getTime()) + " milliseconds");
+        
+        // merged segments invalidate a snapshot of the old ones
+        if(conf.getIndexSnapshot() || ClassifierSnapshot.exists(new File(conf.getIndexPath()))) {
+            ClassifierSnapshot.write(new File(conf.getIndexPath()));
+        }
     }
     
     private static void classifyLocal(CommandArgumentLocalClassifier arg) throws Exception {
@@ -150,12 +335,8 @@ public class BioSpectra {
             output.mkdirs();
         }
         
-        List<File> fastaDocs = FastaFileHelper.findFastaDocs(arg.getInputDir());
-        for(File fastaDoc : fastaDocs) {
-            File resultOutput = new File(arg.getOutputDir() + "/" + fastaDoc.getName() + ".result");
-            File sumResultOutput = new File(arg.getOutputDir() + "/" + fastaDoc.getName() + ".result.sum");
-            classifier.classify(fastaDoc, resultOutput, sumResultOutput);
-        }
+        List<File> fastaDocs = FastaFileHelper.findSequenceDocs(arg.getInputDir());
+        classifier.classify(fastaDocs, output);
         
         classifier.close();
     }
@@ -171,7 +352,7 @@ public class BioSpectra {
             output.mkdirs();
         }
         
-        List<File> fastaDocs = FastaFileHelper.findFastaDocs(arg.getInputDir());
+        List<File> fastaDocs = FastaFileHelper.findSequenceDocs(arg.getInputDir());
         for(File fastaDoc : fastaDocs) {
             File resultOutput = new File(arg.getOutputDir() + "/" + fastaDoc.getName() + ".result");
             File sumResultOutput = new File(arg.getOutputDir() + "/" + fastaDoc.getName() + ".result.sum");
@@ -239,6 +420,22 @@ public class BioSpectra {
             IndexUtil indexutil = new IndexUtil(indexDir);
             System.out.println("total docs : " + indexutil.countDocs());
             indexutil.close();
+        } else if(operation.equalsIgnoreCase("index-stats")) {
+            String indexDir = args[2];
+            int topKmers = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+            
+            IndexUtil indexutil = new IndexUtil(indexDir);
+            Date start = new Date();
+            IndexStatistics stats = indexutil.collectStatistics(Runtime.getRuntime().availableProcessors(), topKmers);
+            Date end = new Date();
+            indexutil.close();
+            LOG.info("collecting index statistics finished - " + (end.getTime() - start.getTime()) + " milliseconds");
+            
+            if(args.length > 3) {
+                stats.saveTo(new File(args[3]));
+            } else {
+                System.out.println(stats.toJson());
+            }
         } else if(operation.equalsIgnoreCase("fasta")) {
             String fastaDir = args[2];
         
@@ -36,6 +36,7 @@ public class ClientConfiguration {
     private int rabbitmq_port;
     private String rabbitmq_userId;
     private String rabbitmq_userPwd;
+    private int queryMinBaseQuality = Configuration.DEFAULT_QUERY_MIN_BASE_QUALITY;
     
     public static ClientConfiguration createInstance(File file) throws IOException {
         if(file == null) {
@@ -104,6 +105,16 @@ public class ClientConfiguration {
         return this.rabbitmq_userPwd;
     }
 
+    @JsonProperty("query_min_base_quality")
+    public void setQueryMinBaseQuality(int queryMinBaseQuality) {
+        this.queryMinBaseQuality = queryMinBaseQuality;
+    }
+    
+    @JsonProperty("query_min_base_quality")
+    public int getQueryMinBaseQuality() {
+        return this.queryMinBaseQuality;
+    }
+
     @JsonIgnore
     public synchronized String toJson() throws IOException {
         JsonSerializer serializer = new JsonSerializer();
@@ -35,6 +35,15 @@ public class CommandArgumentIndex extends CommandArgumentsBase {
     @Option(name = "-i", aliases = "--index", usage = "specify index path to be created")
     protected String indexDir;
     
+    @Option(name = "-u", aliases = "--update", usage = "update an existing index with changes in references")
+    protected boolean update = false;
+    
+    @Option(name = "-resume", aliases = "--resume", usage = "resume an interrupted index construction")
+    protected boolean resume = false;
+    
+    @Option(name = "-bulk", aliases = "--bulk", usage = "build a new index with the offline bulk builder")
+    protected boolean bulk = false;
+    
     public String getReferenceDir() {
         return this.referenceDir;
     }
@@ -43,6 +52,18 @@ public class CommandArgumentIndex extends CommandArgumentsBase {
         return this.indexDir;
     }
     
+    public boolean isUpdate() {
+        return this.update;
+    }
+    
+    public boolean isResume() {
+        return this.resume;
+    }
+    
+    public boolean isBulk() {
+        return this.bulk;
+    }
+    
     public String getJsonConfiguration() {
         return this.jsonConfiguration;
     }
@@ -59,6 +80,10 @@ public class CommandArgumentIndex extends CommandArgumentsBase {
             }
         }
         
+        if(this.bulk && (this.update || this.resume)) {
+            return false;
+        }
+        
         return true;
     }
     
@@ -73,6 +98,9 @@ public class CommandArgumentIndex extends CommandArgumentsBase {
                 return "Index path to be created is not given";
             }
         }
+        if(this.bulk && (this.update || this.resume)) {
+            return "Bulk indexing cannot update or resume an index";
+        }
         return null;
     }
 }
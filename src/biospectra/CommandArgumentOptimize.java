@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kohsuke.args4j.Option;
+
+/**
+ *
+ * @author iychoi
+ */
+public class CommandArgumentOptimize extends CommandArgumentsBase {
+    private static final Log LOG = LogFactory.getLog(CommandArgumentOptimize.class);
+    
+    @Option(name = "-j", aliases = "--json", usage = "pass json configuration file")
+    protected String jsonConfiguration;
+    
+    @Option(name = "-i", aliases = "--index", usage = "specify index path to be optimized")
+    protected String indexDir;
+    
+    @Option(name = "-s", aliases = "--segments", usage = "specify maximum number of segments")
+    protected int segments = 0;
+    
+    public String getIndexDir() {
+        return this.indexDir;
+    }
+    
+    public int getSegments() {
+        return this.segments;
+    }
+    
+    public String getJsonConfiguration() {
+        return this.jsonConfiguration;
+    }
+    
+    @Override
+    public boolean checkValidity() {
+        if(this.jsonConfiguration == null || this.jsonConfiguration.isEmpty()) {
+            if(this.indexDir == null || this.indexDir.isEmpty()) {
+                return false;
+            }
+        }
+        
+        if(this.segments < 0) {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public String getValidityErrorMessage() {
+        if(this.jsonConfiguration == null || this.jsonConfiguration.isEmpty()) {
+            if(this.indexDir == null || this.indexDir.isEmpty()) {
+                return "Index path to be optimized is not given";
+            }
+        }
+        
+        if(this.segments < 0) {
+            return "Number of segments must be equal or larger than 0";
+        }
+        return null;
+    }
+}
@@ -15,12 +15,15 @@
  */
 package biospectra;
 
+import biospectra.classify.ClassificationEngineType;
 import biospectra.classify.QueryGenerationAlgorithm;
+import biospectra.lucene.KmerDirectPostingsFormat;
 import biospectra.utils.JsonSerializer;
 import java.io.File;
 import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
@@ -37,21 +40,88 @@ public class Configuration {
     public static final int DEFAULT_KMERSIZE = 10;
     public static final int DEFAULT_KMERSKIPS = 5;
     public static final boolean DEFAULT_MIN_STRAND_KMER = false;
+    public static final boolean DEFAULT_SINGLE_STRAND_INDEX = false;
     public static final double DEFAULT_QUERY_TERMS_MIN_SHOULD_MATCH = 0.5;
+    public static final double DEFAULT_QUERY_LCA_CONFIDENCE = 0;
     public static final int DEFAULT_WORKER_THREADS = 4;
+    public static final int DEFAULT_INDEX_READER_THREADS = 1;
+    public static final int DEFAULT_INDEX_CHUNK_SIZE = 0;
+    public static final int DEFAULT_INDEX_CHUNK_OVERLAP = 500;
+    public static final int DEFAULT_INDEX_PARTITIONS = 1;
+    public static final boolean DEFAULT_INDEX_KEEP_PARTITIONS = false;
+    public static final int DEFAULT_INDEX_FORCE_MERGE_SEGMENTS = 0;
+    public static final int DEFAULT_INDEX_CHECKPOINT_INTERVAL = 100;
+    public static final int DEFAULT_INDEX_BULK_SORT_BUFFER = 0;
+    public static final boolean DEFAULT_INDEX_SORT_BY_TAXONOMY = false;
+    public static final boolean DEFAULT_INDEX_WARM_UP = false;
+    public static final int DEFAULT_INDEX_MAX_KMER_FREQUENCY = 0;
+    public static final String DEFAULT_INDEX_POSTINGS_FORMAT = "default";
+    public static final boolean DEFAULT_INDEX_SIGNATURE = false;
+    public static final double DEFAULT_INDEX_SIGNATURE_FALSE_POSITIVE = 0.01;
+    public static final int DEFAULT_INDEX_SIGNATURE_KMER_SIZE = 21;
+    public static final double DEFAULT_QUERY_SIGNATURE_MIN_MATCH = 0.2;
+    public static final boolean DEFAULT_INDEX_SKETCH = false;
+    public static final int DEFAULT_INDEX_SKETCH_SCALED = 1000;
+    public static final int DEFAULT_INDEX_SKETCH_KMER_SIZE = 21;
+    public static final double DEFAULT_QUERY_SCREEN_MIN_CONTAINMENT = 0.01;
+    public static final boolean DEFAULT_INDEX_SNAPSHOT = false;
+    public static final int DEFAULT_QUERY_MIN_BASE_QUALITY = 0;
+    public static final int DEFAULT_QUERY_FILES_IN_FLIGHT = 2;
     public static final String DEFAULT_SCORING_ALGORITHM = "default";
+    public static final ClassificationEngineType DEFAULT_ENGINE = ClassificationEngineType.LUCENE;
     public static final QueryGenerationAlgorithm DEFAULT_QUERY_GENERATION_ALGORITHM = QueryGenerationAlgorithm.PAIRED_PROXIMITY;
     public static final int DEFAULT_RAMBUFFER_SIZE_INDEXWRITER = 16;
+    public static final double DEFAULT_TIE_SCORE_EPSILON = 0;
+    public static final int DEFAULT_MAX_TIED_HITS = 100;
+    public static final boolean DEFAULT_VERBOSE_RESULT = true;
+    public static final long DEFAULT_QUERY_TIME_LIMIT = 0;
+    public static final long DEFAULT_QUERY_WORK_LIMIT = 0;
+    public static final int DEFAULT_QUERY_CLAUSE_BUDGET = 1000;
     
     private String indexPath;
+    private String indexReferencePath;
     private int kmerSize = DEFAULT_KMERSIZE;
     private int kmerSkips = DEFAULT_KMERSKIPS;
     private boolean minStrandKmer = DEFAULT_MIN_STRAND_KMER;
+    private boolean singleStrandIndex = DEFAULT_SINGLE_STRAND_INDEX;
     private double queryMinShouldMatch = DEFAULT_QUERY_TERMS_MIN_SHOULD_MATCH;
+    private double queryLcaConfidence = DEFAULT_QUERY_LCA_CONFIDENCE;
     private int workerThreads = DEFAULT_WORKER_THREADS;
+    private int indexReaderThreads = DEFAULT_INDEX_READER_THREADS;
+    private int indexChunkSize = DEFAULT_INDEX_CHUNK_SIZE;
+    private int indexChunkOverlap = DEFAULT_INDEX_CHUNK_OVERLAP;
+    private int indexPartitions = DEFAULT_INDEX_PARTITIONS;
+    private boolean indexKeepPartitions = DEFAULT_INDEX_KEEP_PARTITIONS;
+    private int indexForceMergeSegments = DEFAULT_INDEX_FORCE_MERGE_SEGMENTS;
+    private int indexCheckpointInterval = DEFAULT_INDEX_CHECKPOINT_INTERVAL;
+    private int indexBulkSortBuffer = DEFAULT_INDEX_BULK_SORT_BUFFER;
+    private String indexBulkTempPath;
+    private boolean indexSortByTaxonomy = DEFAULT_INDEX_SORT_BY_TAXONOMY;
+    private boolean indexWarmUp = DEFAULT_INDEX_WARM_UP;
+    private String indexDiscriminativeRank;
+    private int indexMaxKmerFrequency = DEFAULT_INDEX_MAX_KMER_FREQUENCY;
+    private String indexPostingsFormat = DEFAULT_INDEX_POSTINGS_FORMAT;
+    private boolean indexSignature = DEFAULT_INDEX_SIGNATURE;
+    private double indexSignatureFalsePositive = DEFAULT_INDEX_SIGNATURE_FALSE_POSITIVE;
+    private int indexSignatureKmerSize = DEFAULT_INDEX_SIGNATURE_KMER_SIZE;
+    private double querySignatureMinMatch = DEFAULT_QUERY_SIGNATURE_MIN_MATCH;
+    private boolean indexSketch = DEFAULT_INDEX_SKETCH;
+    private int indexSketchScaled = DEFAULT_INDEX_SKETCH_SCALED;
+    private int indexSketchKmerSize = DEFAULT_INDEX_SKETCH_KMER_SIZE;
+    private double queryScreenMinContainment = DEFAULT_QUERY_SCREEN_MIN_CONTAINMENT;
+    private boolean indexSnapshot = DEFAULT_INDEX_SNAPSHOT;
+    private int queryMinBaseQuality = DEFAULT_QUERY_MIN_BASE_QUALITY;
+    private int queryFilesInFlight = DEFAULT_QUERY_FILES_IN_FLIGHT;
     private String scoringAlgorithm = DEFAULT_SCORING_ALGORITHM;
     private QueryGenerationAlgorithm queryAlgorithm = DEFAULT_QUERY_GENERATION_ALGORITHM;
+    private ClassificationEngineType engine = DEFAULT_ENGINE;
     private int ramBufferSizeForIndex = DEFAULT_RAMBUFFER_SIZE_INDEXWRITER;
+    private double tieScoreEpsilon = DEFAULT_TIE_SCORE_EPSILON;
+    private int maxTiedHits = DEFAULT_MAX_TIED_HITS;
+    private boolean verboseResult = DEFAULT_VERBOSE_RESULT;
+    private long queryTimeLimit = DEFAULT_QUERY_TIME_LIMIT;
+    private long queryWorkLimit = DEFAULT_QUERY_WORK_LIMIT;
+    private int queryClauseBudget = DEFAULT_QUERY_CLAUSE_BUDGET;
     
     public static Configuration createInstance(File file) throws IOException {
         if(file == null) {
@@ -85,6 +155,16 @@ public class Configuration {
         this.indexPath = indexPath;
     }
     
+    @JsonProperty("index_reference_path")
+    public String getIndexReferencePath() {
+        return indexReferencePath;
+    }
+
+    @JsonProperty("index_reference_path")
+    public void setIndexReferencePath(String indexReferencePath) {
+        this.indexReferencePath = indexReferencePath;
+    }
+    
     @JsonProperty("kmer_size")
     public int getKmerSize() {
         return kmerSize;
@@ -115,6 +195,16 @@ public class Configuration {
         this.minStrandKmer = minStrandKmer;
     }
     
+    @JsonProperty("single_strand_index")
+    public boolean getSingleStrandIndex() {
+        return singleStrandIndex;
+    }
+    
+    @JsonProperty("single_strand_index")
+    public void setSingleStrandIndex(boolean singleStrandIndex) {
+        this.singleStrandIndex = singleStrandIndex;
+    }
+    
     @JsonProperty("query_term_min_should_match")
     public double getQueryMinShouldMatch() {
         return queryMinShouldMatch;
@@ -125,6 +215,16 @@ public class Configuration {
         this.queryMinShouldMatch = queryMinShouldMatch;
     }
     
+    @JsonProperty("query_lca_confidence")
+    public double getQueryLcaConfidence() {
+        return queryLcaConfidence;
+    }
+
+    @JsonProperty("query_lca_confidence")
+    public void setQueryLcaConfidence(double queryLcaConfidence) {
+        this.queryLcaConfidence = queryLcaConfidence;
+    }
+    
     @JsonProperty("worker_threads")
     public int getWorkerThreads() {
         return workerThreads;
@@ -135,6 +235,269 @@ public class Configuration {
         this.workerThreads = workerThreads;
     }
     
+    @JsonProperty("index_reader_threads")
+    public int getIndexReaderThreads() {
+        return indexReaderThreads;
+    }
+
+    @JsonProperty("index_reader_threads")
+    public void setIndexReaderThreads(int indexReaderThreads) {
+        this.indexReaderThreads = indexReaderThreads;
+    }
+    
+    @JsonProperty("index_chunk_size")
+    public int getIndexChunkSize() {
+        return indexChunkSize;
+    }
+
+    @JsonProperty("index_chunk_size")
+    public void setIndexChunkSize(int indexChunkSize) {
+        this.indexChunkSize = indexChunkSize;
+    }
+    
+    @JsonProperty("index_chunk_overlap")
+    public int getIndexChunkOverlap() {
+        return indexChunkOverlap;
+    }
+
+    @JsonProperty("index_chunk_overlap")
+    public void setIndexChunkOverlap(int indexChunkOverlap) {
+        this.indexChunkOverlap = indexChunkOverlap;
+    }
+    
+    @JsonProperty("index_partitions")
+    public int getIndexPartitions() {
+        return indexPartitions;
+    }
+
+    @JsonProperty("index_partitions")
+    public void setIndexPartitions(int indexPartitions) {
+        this.indexPartitions = indexPartitions;
+    }
+    
+    @JsonProperty("index_keep_partitions")
+    public boolean getIndexKeepPartitions() {
+        return indexKeepPartitions;
+    }
+
+    @JsonProperty("index_keep_partitions")
+    public void setIndexKeepPartitions(boolean indexKeepPartitions) {
+        this.indexKeepPartitions = indexKeepPartitions;
+    }
+    
+    @JsonProperty("index_force_merge_segments")
+    public int getIndexForceMergeSegments() {
+        return indexForceMergeSegments;
+    }
+
+    @JsonProperty("index_force_merge_segments")
+    public void setIndexForceMergeSegments(int indexForceMergeSegments) {
+        this.indexForceMergeSegments = indexForceMergeSegments;
+    }
+    
+    @JsonProperty("index_checkpoint_interval")
+    public int getIndexCheckpointInterval() {
+        return indexCheckpointInterval;
+    }
+
+    @JsonProperty("index_checkpoint_interval")
+    public void setIndexCheckpointInterval(int indexCheckpointInterval) {
+        this.indexCheckpointInterval = indexCheckpointInterval;
+    }
+    
+    @JsonProperty("index_bulk_sort_buffer")
+    public int getIndexBulkSortBuffer() {
+        return indexBulkSortBuffer;
+    }
+
+    @JsonProperty("index_bulk_sort_buffer")
+    public void setIndexBulkSortBuffer(int indexBulkSortBuffer) {
+        this.indexBulkSortBuffer = indexBulkSortBuffer;
+    }
+    
+    @JsonProperty("index_bulk_temp_path")
+    public String getIndexBulkTempPath() {
+        return indexBulkTempPath;
+    }
+
+    @JsonProperty("index_bulk_temp_path")
+    public void setIndexBulkTempPath(String indexBulkTempPath) {
+        this.indexBulkTempPath = indexBulkTempPath;
+    }
+    
+    @JsonProperty("index_sort_by_taxonomy")
+    public boolean getIndexSortByTaxonomy() {
+        return indexSortByTaxonomy;
+    }
+
+    @JsonProperty("index_sort_by_taxonomy")
+    public void setIndexSortByTaxonomy(boolean indexSortByTaxonomy) {
+        this.indexSortByTaxonomy = indexSortByTaxonomy;
+    }
+    
+    @JsonProperty("index_warm_up")
+    public boolean getIndexWarmUp() {
+        return indexWarmUp;
+    }
+
+    @JsonProperty("index_warm_up")
+    public void setIndexWarmUp(boolean indexWarmUp) {
+        this.indexWarmUp = indexWarmUp;
+    }
+    
+    @JsonProperty("index_discriminative_rank")
+    public String getIndexDiscriminativeRank() {
+        return indexDiscriminativeRank;
+    }
+
+    @JsonProperty("index_discriminative_rank")
+    public void setIndexDiscriminativeRank(String indexDiscriminativeRank) {
+        this.indexDiscriminativeRank = indexDiscriminativeRank;
+    }
+    
+    @JsonProperty("index_max_kmer_frequency")
+    public int getIndexMaxKmerFrequency() {
+        return indexMaxKmerFrequency;
+    }
+
+    @JsonProperty("index_max_kmer_frequency")
+    public void setIndexMaxKmerFrequency(int indexMaxKmerFrequency) {
+        this.indexMaxKmerFrequency = indexMaxKmerFrequency;
+    }
+    
+    @JsonProperty("index_postings_format")
+    public String getIndexPostingsFormat() {
+        return indexPostingsFormat;
+    }
+
+    @JsonProperty("index_postings_format")
+    public void setIndexPostingsFormat(String indexPostingsFormat) {
+        this.indexPostingsFormat = indexPostingsFormat;
+    }
+    
+    @JsonProperty("index_signature")
+    public boolean getIndexSignature() {
+        return indexSignature;
+    }
+
+    @JsonProperty("index_signature")
+    public void setIndexSignature(boolean indexSignature) {
+        this.indexSignature = indexSignature;
+    }
+    
+    @JsonProperty("index_signature_false_positive")
+    public double getIndexSignatureFalsePositive() {
+        return indexSignatureFalsePositive;
+    }
+
+    @JsonProperty("index_signature_false_positive")
+    public void setIndexSignatureFalsePositive(double indexSignatureFalsePositive) {
+        this.indexSignatureFalsePositive = indexSignatureFalsePositive;
+    }
+    
+    @JsonProperty("index_signature_kmer_size")
+    public int getIndexSignatureKmerSize() {
+        return indexSignatureKmerSize;
+    }
+
+    @JsonProperty("index_signature_kmer_size")
+    public void setIndexSignatureKmerSize(int indexSignatureKmerSize) {
+        this.indexSignatureKmerSize = indexSignatureKmerSize;
+    }
+    
+    @JsonProperty("query_signature_min_match")
+    public double getQuerySignatureMinMatch() {
+        return querySignatureMinMatch;
+    }
+
+    @JsonProperty("query_signature_min_match")
+    public void setQuerySignatureMinMatch(double querySignatureMinMatch) {
+        this.querySignatureMinMatch = querySignatureMinMatch;
+    }
+    
+    @JsonProperty("index_sketch")
+    public boolean getIndexSketch() {
+        return indexSketch;
+    }
+
+    @JsonProperty("index_sketch")
+    public void setIndexSketch(boolean indexSketch) {
+        this.indexSketch = indexSketch;
+    }
+    
+    @JsonProperty("index_sketch_scaled")
+    public int getIndexSketchScaled() {
+        return indexSketchScaled;
+    }
+
+    @JsonProperty("index_sketch_scaled")
+    public void setIndexSketchScaled(int indexSketchScaled) {
+        this.indexSketchScaled = indexSketchScaled;
+    }
+    
+    @JsonProperty("index_sketch_kmer_size")
+    public int getIndexSketchKmerSize() {
+        return indexSketchKmerSize;
+    }
+
+    @JsonProperty("index_sketch_kmer_size")
+    public void setIndexSketchKmerSize(int indexSketchKmerSize) {
+        this.indexSketchKmerSize = indexSketchKmerSize;
+    }
+    
+    @JsonProperty("query_screen_min_containment")
+    public double getQueryScreenMinContainment() {
+        return queryScreenMinContainment;
+    }
+
+    @JsonProperty("query_screen_min_containment")
+    public void setQueryScreenMinContainment(double queryScreenMinContainment) {
+        this.queryScreenMinContainment = queryScreenMinContainment;
+    }
+    
+    @JsonProperty("index_snapshot")
+    public boolean getIndexSnapshot() {
+        return indexSnapshot;
+    }
+
+    @JsonProperty("index_snapshot")
+    public void setIndexSnapshot(boolean indexSnapshot) {
+        this.indexSnapshot = indexSnapshot;
+    }
+    
+    @JsonProperty("query_min_base_quality")
+    public int getQueryMinBaseQuality() {
+        return queryMinBaseQuality;
+    }
+
+    @JsonProperty("query_min_base_quality")
+    public void setQueryMinBaseQuality(int queryMinBaseQuality) {
+        this.queryMinBaseQuality = queryMinBaseQuality;
+    }
+    
+    @JsonProperty("query_files_in_flight")
+    public int getQueryFilesInFlight() {
+        return queryFilesInFlight;
+    }
+
+    @JsonProperty("query_files_in_flight")
+    public void setQueryFilesInFlight(int queryFilesInFlight) {
+        this.queryFilesInFlight = queryFilesInFlight;
+    }
+    
+    @JsonIgnore
+    public Codec getIndexCodecObject() {
+        if(this.indexPostingsFormat == null || this.indexPostingsFormat.isEmpty() || this.indexPostingsFormat.equals(DEFAULT_INDEX_POSTINGS_FORMAT)) {
+            // terms dictionary of lucene
+            return Codec.getDefault();
+        } else if(this.indexPostingsFormat.equalsIgnoreCase("kmer_direct") || this.indexPostingsFormat.equalsIgnoreCase("direct")) {
+            // term lookup by packed k-mer value
+            return KmerDirectPostingsFormat.createCodec(this.kmerSize);
+        }
+        
+        return Codec.getDefault();
+    }
+    
     @JsonProperty("index_ram_buffer")
     public int getIndexRamBufferSize() {
         return this.ramBufferSizeForIndex;
@@ -145,6 +508,66 @@ public class Configuration {
         this.ramBufferSizeForIndex = ramBufferSizeForIndex;
     }
     
+    @JsonProperty("tie_score_epsilon")
+    public double getTieScoreEpsilon() {
+        return tieScoreEpsilon;
+    }
+
+    @JsonProperty("tie_score_epsilon")
+    public void setTieScoreEpsilon(double tieScoreEpsilon) {
+        this.tieScoreEpsilon = tieScoreEpsilon;
+    }
+    
+    @JsonProperty("max_tied_hits")
+    public int getMaxTiedHits() {
+        return maxTiedHits;
+    }
+
+    @JsonProperty("max_tied_hits")
+    public void setMaxTiedHits(int maxTiedHits) {
+        this.maxTiedHits = maxTiedHits;
+    }
+    
+    @JsonProperty("verbose_result")
+    public boolean getVerboseResult() {
+        return verboseResult;
+    }
+
+    @JsonProperty("verbose_result")
+    public void setVerboseResult(boolean verboseResult) {
+        this.verboseResult = verboseResult;
+    }
+    
+    @JsonProperty("query_time_limit")
+    public long getQueryTimeLimit() {
+        return queryTimeLimit;
+    }
+
+    @JsonProperty("query_time_limit")
+    public void setQueryTimeLimit(long queryTimeLimit) {
+        this.queryTimeLimit = queryTimeLimit;
+    }
+    
+    @JsonProperty("query_work_limit")
+    public long getQueryWorkLimit() {
+        return queryWorkLimit;
+    }
+
+    @JsonProperty("query_work_limit")
+    public void setQueryWorkLimit(long queryWorkLimit) {
+        this.queryWorkLimit = queryWorkLimit;
+    }
+    
+    @JsonProperty("query_clause_budget")
+    public int getQueryClauseBudget() {
+        return queryClauseBudget;
+    }
+
+    @JsonProperty("query_clause_budget")
+    public void setQueryClauseBudget(int queryClauseBudget) {
+        this.queryClauseBudget = queryClauseBudget;
+    }
+    
     @JsonProperty("query_algorithm")
     public QueryGenerationAlgorithm getQueryGenerationAlgorithm() {
         return queryAlgorithm;
@@ -155,6 +578,16 @@ public class Configuration {
         this.queryAlgorithm = queryAlgorithm;
     }
     
+    @JsonProperty("engine")
+    public ClassificationEngineType getEngine() {
+        return engine;
+    }
+    
+    @JsonProperty("engine")
+    public void setEngine(ClassificationEngineType engine) {
+        this.engine = engine;
+    }
+    
     @JsonProperty("scoring_algorithm")
     public String getScoringAlgorithm() {
         return scoringAlgorithm;
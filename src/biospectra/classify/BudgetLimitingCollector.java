@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import java.io.IOException;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.LeafCollector;
+
+/**
+ * A collector that stops a search when a per-query budget is exhausted.
+ * <p>
+ * The budget is given as a deadline in wall time, as a maximum number of
+ * matching documents scored, or both. The wrapped collector keeps what it
+ * collected before the budget ran out, so a best-effort result can still be
+ * made from it.
+ *
+ * @author iychoi
+ */
+public class BudgetLimitingCollector extends FilterCollector {
+
+    public static class BudgetExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public BudgetExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private long deadline;
+    private long maxHits;
+    private long hits;
+
+    /**
+     * @param in collector to wrap
+     * @param deadline deadline in System.nanoTime(), 0 for unlimited
+     * @param maxHits maximum number of matching documents to score, 0 for unlimited
+     */
+    public BudgetLimitingCollector(Collector in, long deadline, long maxHits) {
+        super(in);
+
+        if(maxHits < 0) {
+            throw new IllegalArgumentException("maxHits must be equal or larger than 0");
+        }
+
+        this.deadline = deadline;
+        this.maxHits = maxHits;
+        this.hits = 0;
+    }
+
+    private void checkBudget() {
+        if(this.maxHits > 0 && this.hits >= this.maxHits) {
+            throw new BudgetExceededException("work limit of " + this.maxHits + " hits exceeded");
+        }
+
+        if(this.deadline != 0 && System.nanoTime() - this.deadline > 0) {
+            throw new BudgetExceededException("time limit exceeded");
+        }
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+        checkBudget();
+
+        return new FilterLeafCollector(super.getLeafCollector(context)) {
+
+            @Override
+            public void collect(int doc) throws IOException {
+                checkBudget();
+                hits++;
+                super.collect(doc);
+            }
+        };
+    }
+
+    public long getHits() {
+        return this.hits;
+    }
+}
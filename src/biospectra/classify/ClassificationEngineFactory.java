@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import biospectra.Configuration;
+
+/**
+ *
+ * @author iychoi
+ */
+public class ClassificationEngineFactory {
+    
+    /**
+     * Creates the classification engine selected in the configuration
+     */
+    public static ClassificationEngine createEngine(Configuration conf) throws Exception {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        ClassificationEngineType engine = conf.getEngine();
+        if(engine == null || engine.equals(ClassificationEngineType.LUCENE)) {
+            return new Classifier(conf);
+        } else if(engine.equals(ClassificationEngineType.KMER_LCA)) {
+            return new KmerLcaClassifier(conf);
+        } else if(engine.equals(ClassificationEngineType.KMER_HASH)) {
+            return new KmerHashClassifier(conf);
+        }
+        
+        throw new IllegalArgumentException("unknown classification engine " + engine);
+    }
+}
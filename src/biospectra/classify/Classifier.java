@@ -20,53 +20,82 @@ import biospectra.classify.beans.SearchResultEntry;
 import biospectra.Configuration;
 import biospectra.classify.beans.TaxonTreeDescription;
 import biospectra.classify.beans.Taxonomy;
+import biospectra.index.BitSlicedSignatureIndex;
+import biospectra.index.ClassifierSnapshot;
+import biospectra.index.DiscriminativeKmerSelector;
+import biospectra.index.DocReferences;
 import biospectra.index.IndexConstants;
+import biospectra.index.IndexMetadataReader;
+import biospectra.index.ReferenceSketches;
 import biospectra.lucene.KmerQueryAnalyzer;
-import java.io.Closeable;
+import biospectra.utils.IndexUtil;
+import biospectra.utils.SequenceHelper;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.CachingTokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.similarities.Similarity;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
 
 /**
  *
  * @author iychoi
  */
-public class Classifier implements Closeable {
+public class Classifier implements ClassificationEngine {
     
     private static final Log LOG = LogFactory.getLog(Classifier.class);
     
     private File indexPath;
-    private KmerQueryAnalyzer queryAnalyzer;
+    
+    private QueryPlanner queryPlanner;
     private IndexReader indexReader;
     private IndexSearcher indexSearcher;
+    private IndexMetadataReader metadataReader;
     private double minShouldMatch;
     private int kmerSize;
     private int kmerSkips;
     private boolean minStrandKmer;
     private QueryGenerationAlgorithm queryGenerationAlgorithm;
+    private double tieScoreEpsilon;
+    private int maxTiedHits;
+    private boolean verboseResult;
+    private long queryTimeLimit;
+    private long queryWorkLimit;
+    private SignaturePrefilter signaturePrefilter;
+    private SampleScreener sampleScreener;
+    private ConcurrentMap<Integer, TaxonTreeDescription> taxonTreeCache = new ConcurrentHashMap<Integer, TaxonTreeDescription>();
     
     public Classifier(Configuration conf) throws Exception {
         if(conf == null) {
@@ -85,10 +114,89 @@ public class Classifier implements Closeable {
             throw new IllegalArgumentException("kmerSkips must be equal or larger than 0");
         }
         
-        initialize(new File(conf.getIndexPath()), conf.getKmerSize(), conf.getKmerSkips(), conf.getMinStrandKmer(), conf.getQueryMinShouldMatch(), conf.getQueryGenerationAlgorithm(), conf.getScoringAlgorithmObject());
+        if(conf.getTieScoreEpsilon() < 0) {
+            throw new IllegalArgumentException("tieScoreEpsilon must be equal or larger than 0");
+        }
+        
+        if(conf.getMaxTiedHits() <= 0) {
+            throw new IllegalArgumentException("maxTiedHits must be larger than 0");
+        }
+        
+        if(conf.getQueryTimeLimit() < 0) {
+            throw new IllegalArgumentException("queryTimeLimit must be equal or larger than 0");
+        }
+        
+        if(conf.getQueryWorkLimit() < 0) {
+            throw new IllegalArgumentException("queryWorkLimit must be equal or larger than 0");
+        }
+        
+        if(conf.getQueryClauseBudget() < 0) {
+            throw new IllegalArgumentException("queryClauseBudget must be equal or larger than 0");
+        }
+        
+        if(conf.getQuerySignatureMinMatch() < 0 || conf.getQuerySignatureMinMatch() > 1) {
+            throw new IllegalArgumentException("querySignatureMinMatch must be between 0 and 1");
+        }
+        
+        if(conf.getQueryScreenMinContainment() < 0 || conf.getQueryScreenMinContainment() > 1) {
+            throw new IllegalArgumentException("queryScreenMinContainment must be between 0 and 1");
+        }
+        
+        initialize(new File(conf.getIndexPath()), conf.getKmerSize(), conf.getKmerSkips(), conf.getMinStrandKmer(), conf.getQueryMinShouldMatch(), conf.getQueryGenerationAlgorithm(), conf.getScoringAlgorithmObject(), conf.getTieScoreEpsilon(), conf.getMaxTiedHits(), conf.getVerboseResult(), conf.getQueryTimeLimit(), conf.getQueryWorkLimit(), conf.getQueryClauseBudget(), conf.getIndexWarmUp());
+        
+        DocReferences docReferences = null;
+        if(BitSlicedSignatureIndex.exists(this.indexPath) || ReferenceSketches.exists(this.indexPath)) {
+            docReferences = getDocReferences();
+        }
+        
+        try {
+            if(BitSlicedSignatureIndex.exists(this.indexPath)) {
+                BitSlicedSignatureIndex signatureIndex = new BitSlicedSignatureIndex(this.indexPath, conf.getIndexWarmUp());
+                this.signaturePrefilter = new SignaturePrefilter(signatureIndex, docReferences, conf.getQuerySignatureMinMatch());
+                LOG.info("signatures of " + signatureIndex.getColumnCount() + " references are used to select candidates");
+            }
+            
+            if(ReferenceSketches.exists(this.indexPath)) {
+                ReferenceSketches sketches = ReferenceSketches.load(this.indexPath);
+                this.sampleScreener = new SampleScreener(sketches, docReferences, conf.getQueryScreenMinContainment());
+                LOG.info("sketches of " + sketches.getReferenceCount() + " references are used to screen samples");
+            }
+        } finally {
+            if(docReferences != null) {
+                docReferences.close();
+            }
+        }
     }
     
-    private void initialize(File indexPath, int kmerSize, int kmerSkips, boolean minStrandKmer, double minShouldMatch, QueryGenerationAlgorithm queryGenerationAlgorithm, Similarity similarity) throws Exception {
+    /**
+     * Returns references of documents from the snapshot of the index, or
+     * collects them from metadata of all documents if there is no valid
+     * snapshot
+     */
+    private DocReferences getDocReferences() throws IOException {
+        long start = System.currentTimeMillis();
+        DocReferences docReferences = ClassifierSnapshot.readDocReferences(this.indexPath, this.indexReader);
+        if(docReferences == null) {
+            docReferences = DocReferences.create(this.indexReader, this.metadataReader);
+        }
+        long end = System.currentTimeMillis();
+        LOG.info("loading references of documents finished - " + (end - start) + " milliseconds");
+        return docReferences;
+    }
+    
+    /**
+     * Returns a filter of references found in a sample to be passed to
+     * classify for every read of the sample, or null if the index has no
+     * sketches or the sample cannot be screened
+     */
+    public Filter screenSample(File inputFasta) throws Exception {
+        if(this.sampleScreener == null) {
+            return null;
+        }
+        return this.sampleScreener.screen(inputFasta);
+    }
+    
+    private void initialize(File indexPath, int kmerSize, int kmerSkips, boolean minStrandKmer, double minShouldMatch, QueryGenerationAlgorithm queryGenerationAlgorithm, Similarity similarity, double tieScoreEpsilon, int maxTiedHits, boolean verboseResult, long queryTimeLimit, long queryWorkLimit, int queryClauseBudget, boolean warmUp) throws Exception {
         if(!indexPath.exists() || !indexPath.isDirectory()) {
             throw new IllegalArgumentException("indexPath is not a directory or does not exist");
         }
@@ -97,17 +205,41 @@ public class Classifier implements Closeable {
         this.kmerSize = kmerSize;
         this.kmerSkips = kmerSkips;
         this.minStrandKmer = minStrandKmer;
-        this.queryAnalyzer = new KmerQueryAnalyzer(this.kmerSize, this.kmerSkips, this.minStrandKmer);
-        Directory dir = new MMapDirectory(this.indexPath.toPath()); 
-        this.indexReader = DirectoryReader.open(dir);
+        LongBitSet discriminativeKmers = null;
+        if(DiscriminativeKmerSelector.exists(this.indexPath)) {
+            // k-mers removed from the index are removed from queries, so they
+            // do not count toward the minimum number of matching clauses
+            discriminativeKmers = DiscriminativeKmerSelector.load(this.indexPath, this.kmerSize);
+            LOG.info("index is built of discriminative k-mers - queries are restricted to them");
+        }
+        this.queryPlanner = new QueryPlanner(this.kmerSize, this.kmerSkips, queryClauseBudget, this.minStrandKmer, queryGenerationAlgorithm, discriminativeKmers);
+        long start = System.currentTimeMillis();
+        this.indexReader = IndexUtil.openIndexReader(this.indexPath, warmUp);
+        if(warmUp) {
+            // mapped files are loaded into memory as they are opened, so the
+            // first queries do not pay page faults
+            IndexUtil.warmUp(this.indexReader);
+            long end = System.currentTimeMillis();
+            LOG.info("warming up index finished - " + (end - start) + " milliseconds");
+        }
         this.indexSearcher = new IndexSearcher(this.indexReader);
+        this.metadataReader = new IndexMetadataReader(this.indexReader);
         if(similarity != null) {
             this.indexSearcher.setSimilarity(similarity);
         }
         this.minShouldMatch = minShouldMatch;
         this.queryGenerationAlgorithm = queryGenerationAlgorithm;
+        this.tieScoreEpsilon = tieScoreEpsilon;
+        this.maxTiedHits = maxTiedHits;
+        this.verboseResult = verboseResult;
+        this.queryTimeLimit = queryTimeLimit;
+        this.queryWorkLimit = queryWorkLimit;
         
-        BooleanQuery.setMaxClauseCount(10000);
+        if(!this.verboseResult && !this.metadataReader.hasTaxonIdDocValues()) {
+            LOG.info("index does not have taxid doc values - verbose results are produced");
+        }
+        
+        BooleanQuery.setMaxClauseCount(Math.max(10000, queryClauseBudget));
     }
 
     private void createNaiveKmerQueryClauses(BooleanQuery.Builder builder, String field, CachingTokenFilter stream, TermToBytesRefAttribute termAtt, OffsetAttribute offsetAtt) throws IOException {
@@ -249,8 +381,16 @@ public class Classifier implements Closeable {
         }
     }
     
+    /**
+     * Returns the query of a read, or null if the read has too few k-mers to
+     * make one, e.g. when most of its bases are masked
+     */
     protected BooleanQuery createQuery(KmerQueryAnalyzer analyzer, String field, String queryText, double minShouldMatch, QueryGenerationAlgorithm queryGenerationAlgorithm) {
         BooleanQuery queryClauses = createQueryClauses(analyzer, field, queryText, queryGenerationAlgorithm);
+        if(queryClauses == null) {
+            return null;
+        }
+        
         BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
         booleanQueryBuilder.setDisableCoord(queryClauses.isCoordDisabled());
         booleanQueryBuilder.setMinimumNumberShouldMatch((int) (minShouldMatch * queryClauses.clauses().size()));
@@ -260,14 +400,53 @@ public class Classifier implements Closeable {
         return booleanQueryBuilder.build();
     }
     
+    /**
+     * Restricts a query to candidate documents, the filter does not score
+     */
+    private BooleanQuery filterQuery(BooleanQuery query, Filter filter) {
+        BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
+        booleanQueryBuilder.setDisableCoord(query.isCoordDisabled());
+        booleanQueryBuilder.setMinimumNumberShouldMatch(query.getMinimumNumberShouldMatch());
+        for (BooleanClause clause : query) {
+            booleanQueryBuilder.add(clause);
+        }
+        booleanQueryBuilder.add(filter, BooleanClause.Occur.FILTER);
+        return booleanQueryBuilder.build();
+    }
+    
     private ClassificationResult makeClassificationResult(String header, String sequence, List<SearchResultEntry> resultArr) throws IOException {
         if(resultArr == null || resultArr.isEmpty()) {
             return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.UNKNOWN, "unknown", "");
-        } else if(resultArr.size() == 1) {
-            SearchResultEntry entry = resultArr.get(0);
+        }
+        
+        List<TaxonTreeDescription> descs = new ArrayList<TaxonTreeDescription>();
+        for(SearchResultEntry entry : resultArr) {
             String taxonHierarchy = entry.getTaxonHierarchy();
             if(taxonHierarchy != null && !taxonHierarchy.isEmpty()) {
-                TaxonTreeDescription desc = TaxonTreeDescription.createInstance(taxonHierarchy);
+                descs.add(TaxonTreeDescription.createInstance(taxonHierarchy));
+            } else {
+                descs.add(null);
+                if(resultArr.size() > 1) {
+                    // quick fail
+                    break;
+                }
+            }
+        }
+        
+        return makeClassificationResult(header, sequence, resultArr, descs);
+    }
+    
+    /**
+     * Folds taxonomy trees of top-scored hits to their lowest common
+     * classifiable taxonomy. A null description stands for a hit without
+     * taxonomy information.
+     */
+    private ClassificationResult makeClassificationResult(String header, String sequence, List<SearchResultEntry> resultArr, List<TaxonTreeDescription> descs) {
+        if(descs.isEmpty()) {
+            return new ClassificationResult(header, sequence, resultArr, ClassificationResult.ClassificationResultType.UNKNOWN, "unknown", "");
+        } else if(descs.size() == 1) {
+            TaxonTreeDescription desc = descs.get(0);
+            if(desc != null) {
                 Taxonomy tax = desc.getLowestClassifiableTaxonomy();
                 if(tax != null) {
                     return new ClassificationResult(header, sequence, resultArr, ClassificationResult.ClassificationResultType.CLASSIFIED, tax.getRank(), tax.getName());
@@ -278,14 +457,8 @@ public class Classifier implements Closeable {
                 return new ClassificationResult(header, sequence, resultArr, ClassificationResult.ClassificationResultType.CLASSIFIED, "unknown", "");
             }
         } else {
-            List<TaxonTreeDescription> descs = new ArrayList<TaxonTreeDescription>();
-            for(SearchResultEntry entry : resultArr) {
-                String taxonHierarchy = entry.getTaxonHierarchy();
-                if(taxonHierarchy != null && !taxonHierarchy.isEmpty()) {
-                    TaxonTreeDescription desc = TaxonTreeDescription.createInstance(taxonHierarchy);
-                    descs.add(desc);
-                } else {
-                    // quick fail
+            for(TaxonTreeDescription desc : descs) {
+                if(desc == null) {
                     return new ClassificationResult(header, sequence, resultArr, ClassificationResult.ClassificationResultType.VAGUE, "unknown", "");
                 }
             }
@@ -338,31 +511,246 @@ public class Classifier implements Closeable {
         }
     }
     
+    private TaxonTreeDescription getTaxonTreeDescription(int taxid, int representativeDoc) throws IOException {
+        if(taxid <= 0) {
+            return null;
+        }
+        
+        TaxonTreeDescription desc = this.taxonTreeCache.get(taxid);
+        if(desc == null) {
+            String taxonHierarchy = this.metadataReader.getTaxonHierarchy(representativeDoc);
+            if(taxonHierarchy == null || taxonHierarchy.isEmpty()) {
+                return null;
+            }
+            
+            desc = TaxonTreeDescription.createInstance(taxonHierarchy);
+            this.taxonTreeCache.putIfAbsent(taxid, desc);
+        }
+        return desc;
+    }
+    
+    /**
+     * Runs a search within the per-query budget.
+     * Returns true if the search was stopped before visiting all matches
+     */
+    private boolean search(Query q, Collector collector, long deadline) throws IOException {
+        if(deadline == 0 && this.queryWorkLimit == 0) {
+            this.indexSearcher.search(q, collector);
+            return false;
+        }
+        
+        try {
+            this.indexSearcher.search(q, new BudgetLimitingCollector(collector, deadline, this.queryWorkLimit));
+            return false;
+        } catch (BudgetLimitingCollector.BudgetExceededException ex) {
+            return true;
+        }
+    }
+    
+    private ClassificationResult classifyByTaxon(String header, String sequence, Query q, long deadline) throws IOException {
+        TaxonAggregatingCollector collector = new TaxonAggregatingCollector(this.tieScoreEpsilon, this.maxTiedHits);
+        boolean truncated = search(q, collector, deadline);
+        
+        List<TaxonTreeDescription> descs = new ArrayList<TaxonTreeDescription>();
+        for(int i=0;i<collector.getTaxonCount();i++) {
+            descs.add(getTaxonTreeDescription(collector.getTaxonId(i), collector.getRepresentativeDoc(i)));
+        }
+        
+        ClassificationResult classificationResult = makeClassificationResult(header, sequence, null, descs);
+        // taxa dropped by the cap may have folded to a less specific taxon
+        classificationResult.setTruncated(truncated || collector.isTruncated());
+        return classificationResult;
+    }
+    
+    /**
+     * Combines queries of the read and of its reverse complement into a single
+     * query scoring each document by its best strand. Both strands are
+     * weighted and normalized together, so their scores are comparable
+     */
+    private Query createStrandQuery(BooleanQuery forwardQuery, BooleanQuery reverseQuery) {
+        DisjunctionMaxQuery q = new DisjunctionMaxQuery(0);
+        q.add(forwardQuery);
+        q.add(reverseQuery);
+        return q;
+    }
+    
+    /**
+     * Returns for each hit of the strand query whether it scored better on the
+     * reverse complement of the read than on the read. Both strands are
+     * weighted the way the strand query weights them, and only the hits are
+     * scored
+     */
+    private boolean[] getReverseStrandHits(BooleanQuery forwardQuery, BooleanQuery reverseQuery, ScoreDoc[] hits) throws IOException {
+        Weight forwardWeight = this.indexSearcher.createWeight(this.indexSearcher.rewrite(forwardQuery), true);
+        Weight reverseWeight = this.indexSearcher.createWeight(this.indexSearcher.rewrite(reverseQuery), true);
+        
+        // DisjunctionMaxQuery without tie breaking normalizes its disjuncts
+        // by the largest of their values
+        float value = Math.max(forwardWeight.getValueForNormalization(), reverseWeight.getValueForNormalization());
+        float norm = this.indexSearcher.getSimilarity(true).queryNorm(value);
+        if(Float.isInfinite(norm) || Float.isNaN(norm)) {
+            norm = 1.0f;
+        }
+        forwardWeight.normalize(norm, 1.0f);
+        reverseWeight.normalize(norm, 1.0f);
+        
+        float[] forwardScores = scoreHits(forwardWeight, hits);
+        float[] reverseScores = scoreHits(reverseWeight, hits);
+        boolean[] reverseHits = new boolean[hits.length];
+        for(int i=0;i<hits.length;i++) {
+            reverseHits[i] = reverseScores[i] > forwardScores[i];
+        }
+        return reverseHits;
+    }
+    
+    /**
+     * Scores hits with a weight, hits it does not match get negative infinity
+     */
+    private float[] scoreHits(Weight weight, final ScoreDoc[] hits) throws IOException {
+        // hits are visited in order of docid, so scorers only move forward
+        Integer[] order = new Integer[hits.length];
+        for(int i=0;i<hits.length;i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Integer.compare(hits[o1].doc, hits[o2].doc);
+            }
+        });
+        
+        float[] scores = new float[hits.length];
+        Arrays.fill(scores, Float.NEGATIVE_INFINITY);
+        
+        List<LeafReaderContext> leaves = this.indexReader.leaves();
+        LeafReaderContext leaf = null;
+        Scorer scorer = null;
+        TwoPhaseIterator twoPhase = null;
+        DocIdSetIterator approximation = null;
+        for(int i : order) {
+            int doc = hits[i].doc;
+            if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                scorer = weight.scorer(leaf);
+                if(scorer != null) {
+                    twoPhase = scorer.asTwoPhaseIterator();
+                    approximation = twoPhase == null ? scorer : twoPhase.approximation();
+                }
+            }
+            
+            if(scorer == null) {
+                continue;
+            }
+            
+            int target = doc - leaf.docBase;
+            if(approximation.docID() < target) {
+                approximation.advance(target);
+            }
+            
+            if(approximation.docID() == target && (twoPhase == null || twoPhase.matches())) {
+                scores[i] = scorer.score();
+            }
+        }
+        return scores;
+    }
+    
+    @Override
     public ClassificationResult classify(String header, String sequence) throws Exception {
+        return classify(header, sequence, null);
+    }
+    
+    /**
+     * Classifies a read searching only documents accepted by a sample filter
+     */
+    public ClassificationResult classify(String header, String sequence, Filter sampleFilter) throws Exception {
         if(sequence == null || sequence.isEmpty()) {
             throw new IllegalArgumentException("sequence is null or empty");
         }
         
         ClassificationResult classificationResult = null;
         
-        BooleanQuery q = createQuery(this.queryAnalyzer, IndexConstants.FIELD_SEQUENCE, sequence, this.minShouldMatch, this.queryGenerationAlgorithm);
+        long deadline = 0;
+        if(this.queryTimeLimit > 0) {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.queryTimeLimit);
+        }
+        
+        KmerQueryAnalyzer queryAnalyzer = this.queryPlanner.getAnalyzer(sequence.length());
+        BooleanQuery q = createQuery(queryAnalyzer, IndexConstants.FIELD_SEQUENCE, sequence, this.minShouldMatch, this.queryGenerationAlgorithm);
+        if(q == null) {
+            // not enough clean k-mers to search
+            return makeClassificationResult(header, sequence, null);
+        }
+        
+        BooleanQuery reverseQuery = null;
+        if(this.metadataReader.isSingleStrand()) {
+            // references are indexed once, so the reverse complement of the read
+            // is searched against the same documents
+            reverseQuery = createQuery(queryAnalyzer, IndexConstants.FIELD_SEQUENCE, SequenceHelper.getReverseComplement(sequence), this.minShouldMatch, this.queryGenerationAlgorithm);
+            if(reverseQuery == null) {
+                return makeClassificationResult(header, sequence, null);
+            }
+        }
+        
+        if(this.signaturePrefilter != null) {
+            Filter candidateFilter = this.signaturePrefilter.getCandidateFilter(sequence);
+            if(candidateFilter == null) {
+                // no reference can contain enough k-mers of the read
+                return makeClassificationResult(header, sequence, null);
+            }
+            
+            if(candidateFilter != SignaturePrefilter.NO_FILTER) {
+                q = filterQuery(q, candidateFilter);
+                if(reverseQuery != null) {
+                    reverseQuery = filterQuery(reverseQuery, candidateFilter);
+                }
+            }
+        }
+        
+        if(sampleFilter != null) {
+            q = filterQuery(q, sampleFilter);
+            if(reverseQuery != null) {
+                reverseQuery = filterQuery(reverseQuery, sampleFilter);
+            }
+        }
         
-        int hitsPerPage = 10;
-        TopScoreDocCollector collector = TopScoreDocCollector.create(hitsPerPage);
-        this.indexSearcher.search(q, collector);
-        TopDocs topdocs = collector.topDocs();
-        ScoreDoc[] hits = topdocs.scoreDocs;
+        Query searchQuery = q;
+        if(reverseQuery != null) {
+            searchQuery = createStrandQuery(q, reverseQuery);
+        }
+        
+        if(!this.verboseResult && this.metadataReader.hasTaxonIdDocValues()) {
+            // taxa are aggregated during collection without loading hits
+            return classifyByTaxon(header, sequence, searchQuery, deadline);
+        }
+        
+        TopScoreTiesCollector collector = new TopScoreTiesCollector(this.tieScoreEpsilon, this.maxTiedHits);
+        boolean truncated = search(searchQuery, collector, deadline);
+        ScoreDoc[] hits = collector.getHits();
+        boolean tiesTruncated = collector.isTruncated();
         
         if(hits.length > 0) {
             List<SearchResultEntry> resultArr = new ArrayList<SearchResultEntry>();
-            double topscore = topdocs.getMaxScore();
+            // windows of a chunked reference are collapsed to their parent sequence,
+            // hits are ordered by score so the best window of each parent is kept
+            Set<Long> parents = new HashSet<Long>();
+            boolean[] reverseHits = null;
+            if(reverseQuery != null) {
+                reverseHits = getReverseStrandHits(q, reverseQuery, hits);
+            }
             for(int i=0;i<hits.length;++i) {
-                if(topscore - hits[i].score == 0) {
-                    int docId = hits[i].doc;
-                    Document d = this.indexSearcher.doc(docId);
-                    SearchResultEntry result = new SearchResultEntry(docId, d, i, hits[i].score);
-                    resultArr.add(result);
+                int docId = hits[i].doc;
+                boolean reverseHit = reverseHits != null && reverseHits[i];
+                long parentId = this.metadataReader.getParentId(docId);
+                if(parentId > 0 && !parents.add(reverseHit ? -parentId : parentId)) {
+                    continue;
                 }
+                
+                SearchResultEntry result = new SearchResultEntry(docId, this.metadataReader, resultArr.size(), hits[i].score);
+                if(reverseHit) {
+                    result.setSequenceDirection(IndexConstants.SEQUENCE_DIRECTION_REVERSE);
+                }
+                resultArr.add(result);
             }
             
             classificationResult = makeClassificationResult(header, sequence, resultArr);
@@ -370,12 +758,19 @@ public class Classifier implements Closeable {
             classificationResult = makeClassificationResult(header, sequence, null);
         }
         
+        // a truncated search gives a best-effort result from hits collected so
+        // far, and a truncated tie set may fold to a more specific taxon than
+        // all ties would
+        classificationResult.setTruncated(truncated || tiesTruncated);
         return classificationResult;
     }
     
     @Override
     public void close() throws IOException {
-        this.queryAnalyzer.close();
+        this.queryPlanner.close();
+        if(this.signaturePrefilter != null) {
+            this.signaturePrefilter.close();
+        }
         this.indexReader.close();
     }
 }
@@ -20,8 +20,8 @@ import biospectra.ClientConfiguration;
 import biospectra.classify.beans.ClassificationResult;
 import biospectra.classify.beans.SearchResultEntry;
 import biospectra.classify.server.RabbitMQInputClient;
-import biospectra.utils.FastaFileReader;
 import biospectra.utils.JsonSerializer;
+import biospectra.utils.SequenceReader;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
@@ -36,8 +36,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.yeastrc.fasta.FASTAEntry;
-import org.yeastrc.fasta.FASTAReader;
 
 /**
  *
@@ -54,7 +52,7 @@ public class ClassifierClient implements Closeable {
     private ScheduledExecutorService retransmitThreadPool;
     
     public static abstract class ClientEventHandler {
-        public abstract void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName);
+        public abstract void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName, boolean truncated);
         public abstract void onTimeout(long reqId, String header, String sequence);
     }
     
@@ -63,15 +61,19 @@ public class ClassifierClient implements Closeable {
             throw new IllegalArgumentException("conf is null");
         }
         
+        if(conf.getQueryMinBaseQuality() < 0 || conf.getQueryMinBaseQuality() > SequenceReader.MAX_BASE_QUALITY) {
+            throw new IllegalArgumentException("queryMinBaseQuality must be between 0 and " + SequenceReader.MAX_BASE_QUALITY);
+        }
+        
         this.conf = conf;
         
         for(int i=0;i<conf.getRabbitMQHostnames().size();i++) {
             
             RabbitMQInputClient.RabbitMQInputClientEventHandler handler = new RabbitMQInputClient.RabbitMQInputClientEventHandler() {
                 @Override
-                public void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName) {
+                public void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName, boolean truncated) {
                     if(responseHandler != null) {
-                        responseHandler.onSuccess(reqId, header, sequence, result, type, taxonRank, taxonName);
+                        responseHandler.onSuccess(reqId, header, sequence, result, type, taxonRank, taxonName, truncated);
                     } else {
                         LOG.error("responseHandler is not set");
                     }
@@ -167,8 +169,7 @@ public class ClassifierClient implements Closeable {
             }
         }
         
-        FASTAReader reader = FastaFileReader.getFASTAReader(inputFasta);
-        FASTAEntry read = null;
+        SequenceReader reader = SequenceReader.open(inputFasta);
 
         FileWriter fw = new FileWriter(classifyOutput, false);
         final BufferedWriter bw = new BufferedWriter(fw, 1024*1024);
@@ -182,8 +183,9 @@ public class ClassifierClient implements Closeable {
         this.responseHandler = new ClientEventHandler() {
             
             @Override
-            public void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName) {
+            public void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName, boolean truncated) {
                 ClassificationResult bresult = new ClassificationResult(header, sequence, result, type, taxonRank, taxonName);
+                bresult.setTruncated(truncated);
                 String json;
                 try {
                     json = serializer.toJson(bresult);
@@ -222,9 +224,12 @@ public class ClassifierClient implements Closeable {
             }
         };
 
-        while((read = reader.readNext()) != null) {
-            final String sequence = read.getSequence();
-            final String header = read.getHeaderLine();
+        int minBaseQuality = this.conf.getQueryMinBaseQuality();
+        while(reader.next()) {
+            // k-mers covering masked bases are not tokenized
+            reader.maskLowQualityBases(minBaseQuality);
+            final String sequence = reader.getSequence().toString();
+            final String header = reader.getHeaderLine().toString();
 
             RabbitMQInputClient client = getNextLiveClient();
             if(client == null) {
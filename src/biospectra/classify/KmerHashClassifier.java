@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import biospectra.Configuration;
+import biospectra.classify.beans.ClassificationResult;
+import biospectra.classify.beans.Taxonomy;
+import biospectra.index.IndexConstants;
+import biospectra.index.KmerHashIndex;
+import biospectra.taxdb.TaxonomyTree;
+import biospectra.utils.FastaFileHelper;
+import biospectra.utils.PackedKmerIterator;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Classifies reads against an in-heap k-mer hash index of a reference panel.
+ * <p>
+ * Canonical k-mers of a read are counted per reference. References with the
+ * most hits are taken if the hits reach query_term_min_should_match of the
+ * read's k-mers, and their taxa are folded to the lowest common ancestor.
+ * <p>
+ * The index is reloaded from the index path. If it has not been saved, it is
+ * built from index_reference_path at startup and saved for the next run.
+ *
+ * @author iychoi
+ */
+public class KmerHashClassifier implements ClassificationEngine {
+    
+    private static final Log LOG = LogFactory.getLog(KmerHashClassifier.class);
+    
+    private KmerHashIndex index;
+    private TaxonomyTree taxonomyTree;
+    private int kmerSize;
+    private int kmerSkips;
+    private double minShouldMatch;
+    
+    public KmerHashClassifier(Configuration conf) throws Exception {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getIndexPath() == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(conf.getKmerSize() <= 0 || conf.getKmerSize() > KmerHashIndex.MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + KmerHashIndex.MAX_KMER_SIZE + " for a k-mer hash index");
+        }
+        
+        if(conf.getKmerSkips() < 0) {
+            throw new IllegalArgumentException("kmerSkips must be equal or larger than 0");
+        }
+        
+        initialize(new File(conf.getIndexPath()), conf.getIndexReferencePath(), conf.getKmerSize(), conf.getKmerSkips(), conf.getQueryMinShouldMatch());
+    }
+    
+    private void initialize(File indexPath, String referencePath, int kmerSize, int kmerSkips, double minShouldMatch) throws Exception {
+        File indexFile = new File(indexPath, IndexConstants.KMER_HASH_INDEX_FILENAME);
+        long start = System.currentTimeMillis();
+        if(indexFile.exists()) {
+            this.index = KmerHashIndex.load(indexFile);
+            long end = System.currentTimeMillis();
+            LOG.info("loading k-mer hash index of " + this.index.size() + " k-mers finished - " + (end - start) + " milliseconds");
+        } else {
+            if(referencePath == null || referencePath.isEmpty()) {
+                throw new IllegalArgumentException("k-mer hash index does not exist in " + indexPath.getAbsolutePath() + " and indexReferencePath is not given");
+            }
+            
+            this.index = KmerHashIndex.build(FastaFileHelper.findFastaDocs(referencePath), kmerSize);
+            try {
+                this.index.save(indexFile);
+            } catch (IOException ex) {
+                LOG.warn("cannot save k-mer hash index to " + indexFile.getAbsolutePath(), ex);
+            }
+        }
+        
+        if(this.index.getKmerSize() != kmerSize) {
+            throw new IllegalArgumentException("kmerSize does not match the k-mer hash index built with kmerSize " + this.index.getKmerSize());
+        }
+        
+        this.taxonomyTree = this.index.getTaxonomyTree();
+        this.kmerSize = kmerSize;
+        this.kmerSkips = kmerSkips;
+        this.minShouldMatch = minShouldMatch;
+    }
+    
+    @Override
+    public ClassificationResult classify(String header, String sequence) throws Exception {
+        if(sequence == null || sequence.isEmpty()) {
+            throw new IllegalArgumentException("sequence is null or empty");
+        }
+        
+        int[] counts = new int[this.index.getDocCount()];
+        int kmers = 0;
+        PackedKmerIterator iterator = new PackedKmerIterator(this.kmerSize, true);
+        iterator.reset(sequence);
+        while(iterator.next()) {
+            if(this.kmerSkips > 0 && iterator.getOffset() % (this.kmerSkips + 1) != 0) {
+                continue;
+            }
+            
+            kmers++;
+            this.index.countDocs(iterator.getKmer(), counts);
+        }
+        
+        int bestHits = 0;
+        for(int count : counts) {
+            bestHits = Math.max(bestHits, count);
+        }
+        
+        if(bestHits == 0 || bestHits < this.minShouldMatch * kmers) {
+            return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.UNKNOWN, "unknown", "");
+        }
+        
+        // taxa of tied references are folded to their lowest common ancestor,
+        // taxa of different superkingdoms fold to the root and stay there
+        int tied = 0;
+        int classified = 0;
+        boolean unknownTaxon = false;
+        for(int doc=0;doc<counts.length;doc++) {
+            if(counts[doc] == bestHits) {
+                int taxid = this.index.getTaxonId(doc);
+                if(taxid == 0) {
+                    unknownTaxon = true;
+                } else if(classified == 0) {
+                    classified = taxid;
+                } else {
+                    classified = this.taxonomyTree.getLowestCommonAncestor(classified, taxid);
+                }
+                tied++;
+            }
+        }
+        
+        Taxonomy tax = classified == 0 ? null : this.taxonomyTree.getLowestClassifiableTaxonomy(classified);
+        if(tied == 1) {
+            if(tax == null) {
+                return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.CLASSIFIED, "unknown", "");
+            }
+            return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.CLASSIFIED, tax.getRank(), tax.getName());
+        }
+        
+        if(unknownTaxon || tax == null) {
+            return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.VAGUE, "unknown", "");
+        }
+        return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.CLASSIFIED, tax.getRank(), tax.getName());
+    }
+    
+    @Override
+    public void close() throws IOException {
+        this.index = null;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import biospectra.Configuration;
+import biospectra.classify.beans.ClassificationResult;
+import biospectra.classify.beans.Taxonomy;
+import biospectra.index.IndexConstants;
+import biospectra.index.KmerLcaTable;
+import biospectra.taxdb.TaxonomyTree;
+import biospectra.utils.PackedKmerIterator;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Classifies reads with a k-mer LCA table instead of searching an index.
+ * <p>
+ * Canonical k-mers of a read are resolved to the LCA taxa of the references
+ * containing them. The read is assigned to the hit taxon with the most hits
+ * on its path to the root, or to the LCA of tied taxa (Kraken-style). The
+ * assignment moves up to ancestors until the hits within its clade reach
+ * query_lca_confidence of the read's k-mers.
+ *
+ * @author iychoi
+ */
+public class KmerLcaClassifier implements ClassificationEngine {
+    
+    private static final Log LOG = LogFactory.getLog(KmerLcaClassifier.class);
+    
+    private KmerLcaTable table;
+    private TaxonomyTree taxonomyTree;
+    private int kmerSize;
+    private int kmerSkips;
+    private double confidence;
+    
+    public KmerLcaClassifier(Configuration conf) throws Exception {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getIndexPath() == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(conf.getKmerSize() <= 0 || conf.getKmerSize() > KmerLcaTable.MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + KmerLcaTable.MAX_KMER_SIZE + " for a k-mer LCA table");
+        }
+        
+        if(conf.getKmerSkips() < 0) {
+            throw new IllegalArgumentException("kmerSkips must be equal or larger than 0");
+        }
+        
+        if(conf.getQueryLcaConfidence() < 0 || conf.getQueryLcaConfidence() > 1) {
+            throw new IllegalArgumentException("queryLcaConfidence must be between 0 and 1");
+        }
+        
+        initialize(new File(conf.getIndexPath()), conf.getKmerSize(), conf.getKmerSkips(), conf.getQueryLcaConfidence(), conf.getIndexWarmUp());
+    }
+    
+    private void initialize(File indexPath, int kmerSize, int kmerSkips, double confidence, boolean warmUp) throws Exception {
+        if(!indexPath.exists() || !indexPath.isDirectory()) {
+            throw new IllegalArgumentException("indexPath is not a directory or does not exist");
+        }
+        
+        long start = System.currentTimeMillis();
+        this.table = new KmerLcaTable(indexPath, warmUp);
+        if(this.table.getKmerSize() != kmerSize) {
+            this.table.close();
+            throw new IllegalArgumentException("kmerSize does not match the k-mer LCA table built with kmerSize " + this.table.getKmerSize());
+        }
+        this.taxonomyTree = TaxonomyTree.createInstance(new File(indexPath, IndexConstants.TAXONOMY_TREE_FILENAME));
+        long end = System.currentTimeMillis();
+        LOG.info("loading k-mer LCA table of " + this.table.size() + " k-mers finished - " + (end - start) + " milliseconds");
+        
+        this.kmerSize = kmerSize;
+        this.kmerSkips = kmerSkips;
+        this.confidence = confidence;
+    }
+    
+    /**
+     * Returns the number of hits on the path from the root to a taxon
+     */
+    private int getPathHits(Map<Integer, int[]> hits, int taxid) {
+        int sum = 0;
+        for(Map.Entry<Integer, int[]> entry : hits.entrySet()) {
+            if(this.taxonomyTree.isAncestor(entry.getKey(), taxid)) {
+                sum += entry.getValue()[0];
+            }
+        }
+        return sum;
+    }
+    
+    /**
+     * Returns the number of hits to a taxon and its descendants
+     */
+    private int getCladeHits(Map<Integer, int[]> hits, int taxid) {
+        int sum = 0;
+        for(Map.Entry<Integer, int[]> entry : hits.entrySet()) {
+            if(this.taxonomyTree.isAncestor(taxid, entry.getKey())) {
+                sum += entry.getValue()[0];
+            }
+        }
+        return sum;
+    }
+    
+    @Override
+    public ClassificationResult classify(String header, String sequence) throws Exception {
+        if(sequence == null || sequence.isEmpty()) {
+            throw new IllegalArgumentException("sequence is null or empty");
+        }
+        
+        Map<Integer, int[]> hits = new HashMap<Integer, int[]>();
+        int kmers = 0;
+        PackedKmerIterator iterator = new PackedKmerIterator(this.kmerSize, true);
+        iterator.reset(sequence);
+        while(iterator.next()) {
+            if(this.kmerSkips > 0 && iterator.getOffset() % (this.kmerSkips + 1) != 0) {
+                continue;
+            }
+            
+            kmers++;
+            int taxid = this.table.get(iterator.getKmer());
+            if(taxid != 0) {
+                int[] count = hits.get(taxid);
+                if(count == null) {
+                    count = new int[1];
+                    hits.put(taxid, count);
+                }
+                count[0]++;
+            }
+        }
+        
+        if(hits.isEmpty()) {
+            return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.UNKNOWN, "unknown", "");
+        }
+        
+        // taxon with the most hits on its root-to-leaf path, ties are folded
+        int classified = 0;
+        int bestHits = -1;
+        for(int taxid : hits.keySet()) {
+            int pathHits = getPathHits(hits, taxid);
+            if(pathHits > bestHits) {
+                bestHits = pathHits;
+                classified = taxid;
+            } else if(pathHits == bestHits) {
+                classified = this.taxonomyTree.getLowestCommonAncestor(classified, taxid);
+            }
+        }
+        
+        double threshold = this.confidence * kmers;
+        while(classified != 0 && getCladeHits(hits, classified) < threshold) {
+            classified = this.taxonomyTree.getParent(classified);
+        }
+        
+        if(classified == 0) {
+            return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.UNKNOWN, "unknown", "");
+        }
+        
+        Taxonomy tax = this.taxonomyTree.getLowestClassifiableTaxonomy(classified);
+        if(tax == null) {
+            return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.VAGUE, "unknown", "");
+        }
+        return new ClassificationResult(header, sequence, null, ClassificationResult.ClassificationResultType.CLASSIFIED, tax.getRank(), tax.getName());
+    }
+    
+    @Override
+    public void close() throws IOException {
+        this.table.close();
+    }
+}
@@ -19,19 +19,23 @@ import biospectra.classify.beans.ClassificationResult;
 import biospectra.classify.beans.ClassificationResultSummary;
 import biospectra.Configuration;
 import biospectra.utils.BlockingExecutor;
-import biospectra.utils.FastaFileReader;
 import biospectra.utils.JsonSerializer;
+import biospectra.utils.SequenceReader;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.yeastrc.fasta.FASTAEntry;
-import org.yeastrc.fasta.FASTAReader;
+import org.apache.lucene.search.Filter;
 
 /**
  *
@@ -41,12 +45,35 @@ public class LocalClassifier implements Closeable {
     
     private static final Log LOG = LogFactory.getLog(LocalClassifier.class);
     
-    private Classifier classifier;
+    private ClassificationEngine classifier;
     private Configuration conf;
+    private BlockingExecutor executor;
+    private Semaphore filesInFlight;
     
     public LocalClassifier(Configuration conf) throws Exception {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getQueryMinBaseQuality() < 0 || conf.getQueryMinBaseQuality() > SequenceReader.MAX_BASE_QUALITY) {
+            throw new IllegalArgumentException("queryMinBaseQuality must be between 0 and " + SequenceReader.MAX_BASE_QUALITY);
+        }
+        
+        if(conf.getWorkerThreads() <= 0) {
+            throw new IllegalArgumentException("workerThreads must be larger than 0");
+        }
+        
+        if(conf.getQueryFilesInFlight() <= 0) {
+            throw new IllegalArgumentException("queryFilesInFlight must be larger than 0");
+        }
+        
         this.conf = conf;
-        this.classifier = new Classifier(conf);
+        this.classifier = ClassificationEngineFactory.createEngine(conf);
+        
+        // one pool for all files, so workers never wait for a file to drain
+        int threads = conf.getWorkerThreads();
+        this.executor = new BlockingExecutor(threads, threads * 2);
+        this.filesInFlight = new Semaphore(conf.getQueryFilesInFlight());
     }
     
     public ClassificationResult classify(String header, String sequence) throws Exception {
@@ -66,6 +93,43 @@ public class LocalClassifier implements Closeable {
             throw new IllegalArgumentException("classifyOutput is null");
         }
         
+        FileClassification job = submit(inputFasta, classifyOutput, summaryOutput);
+        job.await();
+    }
+    
+    /**
+     * Classifies sequence files through the shared worker pool, keeping up to
+     * queryFilesInFlight files open so that workers move on to the next file
+     * while the previous one is still finishing. Results are written to
+     * outputDir as <filename>.result and <filename>.result.sum.
+     */
+    public void classify(List<File> inputFastas, File outputDir) throws Exception {
+        if(inputFastas == null) {
+            throw new IllegalArgumentException("inputFastas is null");
+        }
+        
+        if(outputDir == null) {
+            throw new IllegalArgumentException("outputDir is null");
+        }
+        
+        List<FileClassification> jobs = new ArrayList<FileClassification>();
+        for(File inputFasta : inputFastas) {
+            File classifyOutput = new File(outputDir, inputFasta.getName() + ".result");
+            File summaryOutput = new File(outputDir, inputFasta.getName() + ".result.sum");
+            jobs.add(submit(inputFasta, classifyOutput, summaryOutput));
+        }
+        
+        for(FileClassification job : jobs) {
+            job.await();
+        }
+    }
+    
+    /**
+     * Reads all sequences of a file and hands them to workers. Returns once
+     * the file is read; the file is finished by the worker completing its
+     * last sequence.
+     */
+    private FileClassification submit(File inputFasta, File classifyOutput, File summaryOutput) throws Exception {
         if(!classifyOutput.getParentFile().exists()) {
             classifyOutput.getParentFile().mkdirs();
         }
@@ -76,62 +140,151 @@ public class LocalClassifier implements Closeable {
             }
         }
         
-        FASTAReader reader = FastaFileReader.getFASTAReader(inputFasta);
-        FASTAEntry read = null;
-
-        FileWriter fw = new FileWriter(classifyOutput, false);
-        final BufferedWriter bw = new BufferedWriter(fw, 1024*1024);
-
-        final ClassificationResultSummary summary = new ClassificationResultSummary();
-        summary.setQueryFilename(inputFasta.getName());
-        summary.setStartTime(new Date());
-
-        int threads = this.conf.getWorkerThreads();
-        BlockingExecutor executor = new BlockingExecutor(threads, threads * 2);
+        this.filesInFlight.acquire();
         
-        while((read = reader.readNext()) != null) {
-            final String sequence = read.getSequence();
-            final String header = read.getHeaderLine();
-
-            Runnable worker = new Runnable() {
+        FileClassification job = null;
+        try {
+            Filter screenFilter = null;
+            if(this.classifier instanceof Classifier) {
+                // references not found in the sample are not searched for any read
+                screenFilter = ((Classifier) this.classifier).screenSample(inputFasta);
+            }
+            
+            job = new FileClassification(inputFasta, classifyOutput, summaryOutput, screenFilter);
+        } catch (Exception ex) {
+            this.filesInFlight.release();
+            throw ex;
+        }
+        
+        SequenceReader reader = null;
+        try {
+            reader = SequenceReader.open(inputFasta);
+            
+            int minBaseQuality = this.conf.getQueryMinBaseQuality();
+            while(reader.next()) {
+                // k-mers covering masked bases are not tokenized
+                reader.maskLowQualityBases(minBaseQuality);
+                final String sequence = reader.getSequence().toString();
+                final String header = reader.getHeaderLine().toString();
+                
+                final FileClassification owner = job;
+                Runnable worker = new Runnable() {
 
-                @Override
-                public void run() {
-                    try {
-                        ClassificationResult result = classifier.classify(header, sequence);
-                        
-                        JsonSerializer serializer = new JsonSerializer();
-                        String json = serializer.toJson(result);
-                        
-                        synchronized(summary) {
-                            summary.report(result);
+                    @Override
+                    public void run() {
+                        try {
+                            owner.classify(header, sequence);
+                        } finally {
+                            owner.release();
                         }
-                        synchronized(bw) {
-                            bw.write(json + "\n");
-                        }
-                    } catch (Exception ex) {
-                        LOG.error("Exception occurred during search", ex);
                     }
-                }
-            };
-            executor.execute(worker);
+                };
+                
+                job.retain();
+                this.executor.execute(worker);
+            }
+        } finally {
+            if(reader != null) {
+                reader.close();
+            }
+            
+            // drops the reference held while reading
+            job.release();
+        }
+        return job;
+    }
+    
+    private class FileClassification {
+        
+        private File summaryOutput;
+        private Filter sampleFilter;
+        private BufferedWriter bw;
+        private ClassificationResultSummary summary;
+        // sequences not classified yet, plus one while the file is being read
+        private AtomicInteger pending = new AtomicInteger(1);
+        private CountDownLatch finished = new CountDownLatch(1);
+        private volatile Exception finishException;
+        
+        FileClassification(File inputFasta, File classifyOutput, File summaryOutput, Filter sampleFilter) throws IOException {
+            this.summaryOutput = summaryOutput;
+            this.sampleFilter = sampleFilter;
+            
+            FileWriter fw = new FileWriter(classifyOutput, false);
+            this.bw = new BufferedWriter(fw, 1024*1024);
+            
+            this.summary = new ClassificationResultSummary();
+            this.summary.setQueryFilename(inputFasta.getName());
+            this.summary.setStartTime(new Date());
         }
-        executor.shutdown();
-        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        
+        void classify(String header, String sequence) {
+            try {
+                ClassificationResult result = null;
+                if(this.sampleFilter != null) {
+                    result = ((Classifier) classifier).classify(header, sequence, this.sampleFilter);
+                } else {
+                    result = classifier.classify(header, sequence);
+                }
 
-        bw.close();
-        reader.close();
+                JsonSerializer serializer = new JsonSerializer();
+                String json = serializer.toJson(result);
 
-        summary.setEndTime(new Date());
-        LOG.info("classifying " + summary.getQueryFilename() + " finished in " + summary.getTimeTaken() + " millisec");
+                synchronized(this.summary) {
+                    this.summary.report(result);
+                }
+                synchronized(this.bw) {
+                    this.bw.write(json + "\n");
+                }
+            } catch (Exception ex) {
+                LOG.error("Exception occurred during search", ex);
+            }
+        }
         
-        if(summaryOutput != null) {
-            summary.saveTo(summaryOutput);
+        void retain() {
+            this.pending.incrementAndGet();
+        }
+        
+        void release() {
+            if(this.pending.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+        
+        private void finish() {
+            try {
+                this.bw.close();
+                
+                this.summary.setEndTime(new Date());
+                LOG.info("classifying " + this.summary.getQueryFilename() + " finished in " + this.summary.getTimeTaken() + " millisec");
+                
+                if(this.summaryOutput != null) {
+                    this.summary.saveTo(this.summaryOutput);
+                }
+            } catch (Exception ex) {
+                LOG.error("Exception occurred while finishing " + this.summary.getQueryFilename(), ex);
+                this.finishException = ex;
+            } finally {
+                filesInFlight.release();
+                this.finished.countDown();
+            }
+        }
+        
+        void await() throws Exception {
+            this.finished.await();
+            if(this.finishException != null) {
+                throw this.finishException;
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
         this.classifier.close();
     }
 }
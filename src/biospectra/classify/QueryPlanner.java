@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import biospectra.lucene.KmerQueryAnalyzer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.lucene.util.LongBitSet;
+
+/**
+ * Picks a k-mer skip rate per read so that the number of query clauses stays
+ * within a clause budget regardless of the read length.
+ * <p>
+ * Short reads are queried with the configured skip rate. Longer reads (long
+ * reads, assembled contigs) get a larger skip rate that spreads the budget
+ * evenly over the whole read.
+ *
+ * @author iychoi
+ */
+public class QueryPlanner implements Closeable {
+
+    private int kmerSize;
+    private int minSkips;
+    private int clauseBudget;
+    private boolean minStrandKmer;
+    private QueryGenerationAlgorithm queryGenerationAlgorithm;
+    private LongBitSet discriminativeKmers;
+    private ConcurrentMap<Integer, KmerQueryAnalyzer> analyzers = new ConcurrentHashMap<Integer, KmerQueryAnalyzer>();
+
+    /**
+     * @param kmerSize size of k-mers
+     * @param minSkips skip rate used when the budget allows
+     * @param clauseBudget maximum number of clauses per query, 0 for unlimited
+     * @param minStrandKmer use min-strand k-mers
+     * @param queryGenerationAlgorithm algorithm used to generate clauses
+     * @param discriminativeKmers k-mers the index was built of, null if the
+     * index has all k-mers
+     */
+    public QueryPlanner(int kmerSize, int minSkips, int clauseBudget, boolean minStrandKmer, QueryGenerationAlgorithm queryGenerationAlgorithm, LongBitSet discriminativeKmers) {
+        if(kmerSize <= 0) {
+            throw new IllegalArgumentException("kmerSize must be larger than 0");
+        }
+
+        if(minSkips < 0) {
+            throw new IllegalArgumentException("minSkips must be equal or larger than 0");
+        }
+
+        if(clauseBudget < 0) {
+            throw new IllegalArgumentException("clauseBudget must be equal or larger than 0");
+        }
+
+        this.kmerSize = kmerSize;
+        this.minSkips = minSkips;
+        this.clauseBudget = clauseBudget;
+        this.minStrandKmer = minStrandKmer;
+        this.queryGenerationAlgorithm = queryGenerationAlgorithm;
+        this.discriminativeKmers = discriminativeKmers;
+    }
+
+    public int getClauseBudget() {
+        return this.clauseBudget;
+    }
+
+    /**
+     * Returns the maximum number of k-mer tokens a query may consist of
+     */
+    private long getMaxTokens() {
+        if(this.queryGenerationAlgorithm.equals(QueryGenerationAlgorithm.PAIRED_PROXIMITY)) {
+            // a clause per pair of k-mers
+            return 2L * this.clauseBudget;
+        } else if(this.queryGenerationAlgorithm.equals(QueryGenerationAlgorithm.CHAIN_PROXIMITY)) {
+            // a clause per adjacent k-mers
+            return this.clauseBudget + 1L;
+        } else {
+            return this.clauseBudget;
+        }
+    }
+
+    public int getSkips(int sequenceLength) {
+        if(this.clauseBudget == 0) {
+            return this.minSkips;
+        }
+
+        long kmers = sequenceLength - this.kmerSize + 1;
+        if(kmers <= 0) {
+            return this.minSkips;
+        }
+
+        long maxTokens = getMaxTokens();
+        // tokens = ceil(kmers / (skips + 1)) <= maxTokens
+        long step = (kmers + maxTokens - 1) / maxTokens;
+        return (int) Math.max(this.minSkips, step - 1);
+    }
+
+    public KmerQueryAnalyzer getAnalyzer(int sequenceLength) {
+        int skips = getSkips(sequenceLength);
+        KmerQueryAnalyzer analyzer = this.analyzers.get(skips);
+        if(analyzer == null) {
+            analyzer = new KmerQueryAnalyzer(this.kmerSize, skips, this.minStrandKmer, this.discriminativeKmers);
+            KmerQueryAnalyzer existing = this.analyzers.putIfAbsent(skips, analyzer);
+            if(existing != null) {
+                analyzer.close();
+                analyzer = existing;
+            }
+        }
+        return analyzer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(KmerQueryAnalyzer analyzer : this.analyzers.values()) {
+            analyzer.close();
+        }
+        this.analyzers.clear();
+    }
+}
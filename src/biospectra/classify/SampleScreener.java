@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import biospectra.index.DocReferences;
+import biospectra.index.FracMinHashSketch;
+import biospectra.index.ReferenceSketches;
+import biospectra.utils.SequenceReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.BitDocIdSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Screens a sample for the references it contains.
+ * <p>
+ * A FracMinHash sketch of all reads of a sample is compared to the sketches
+ * of reference files, and reads of the sample are only searched against
+ * documents of references whose containment in the sample reaches the
+ * threshold. Documents of references without a sketch are always searched.
+ *
+ * @author iychoi
+ */
+public class SampleScreener {
+    
+    private static final Log LOG = LogFactory.getLog(SampleScreener.class);
+    
+    private static final int UNKNOWN_REFERENCE = DocReferences.UNKNOWN_REFERENCE;
+    
+    private ReferenceSketches sketches;
+    private double minContainment;
+    // reference of each leaf-local document, per leaf
+    private int[][] leafReferences;
+    
+    public SampleScreener(ReferenceSketches sketches, DocReferences docReferences, double minContainment) throws IOException {
+        if(sketches == null) {
+            throw new IllegalArgumentException("sketches is null");
+        }
+        
+        if(docReferences == null) {
+            throw new IllegalArgumentException("docReferences is null");
+        }
+        
+        if(minContainment < 0 || minContainment > 1) {
+            throw new IllegalArgumentException("minContainment must be between 0 and 1");
+        }
+        
+        this.sketches = sketches;
+        this.minContainment = minContainment;
+        
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        for(int i=0;i<sketches.getReferenceCount();i++) {
+            references.put(sketches.getReferenceName(i), i);
+        }
+        int[] sketchReferences = docReferences.mapReferences(references);
+        
+        this.leafReferences = new int[docReferences.getLeafCount()][];
+        for(int leaf=0;leaf<docReferences.getLeafCount();leaf++) {
+            int[] docs = new int[docReferences.getLeafMaxDoc(leaf)];
+            for(int doc=0;doc<docs.length;doc++) {
+                int ref = docReferences.getReference(leaf, doc);
+                docs[doc] = ref == DocReferences.UNKNOWN_REFERENCE ? UNKNOWN_REFERENCE : sketchReferences[ref];
+            }
+            this.leafReferences[leaf] = docs;
+        }
+    }
+    
+    /**
+     * Returns a filter of documents of references found in a sample, or null
+     * if the sample cannot be screened
+     */
+    public Filter screen(File inputFasta) throws Exception {
+        if(inputFasta == null) {
+            throw new IllegalArgumentException("inputFasta is null");
+        }
+        
+        long start = System.currentTimeMillis();
+        FracMinHashSketch sketch = new FracMinHashSketch(this.sketches.getKmerSize(), this.sketches.getScaled());
+        SequenceReader reader = SequenceReader.open(inputFasta);
+        while(reader.next()) {
+            sketch.add(reader.getSequence());
+        }
+        reader.close();
+        long[] sampleHashes = sketch.getHashes();
+        
+        if(sampleHashes.length == 0) {
+            LOG.info("sample " + inputFasta.getName() + " is too small to be screened");
+            return null;
+        }
+        
+        boolean[] accepted = new boolean[this.sketches.getReferenceCount()];
+        int acceptedCount = 0;
+        for(int i=0;i<accepted.length;i++) {
+            // references too small to have a hash cannot be screened out
+            if(this.sketches.getSketchSize(i) == 0 || this.sketches.getContainment(i, sampleHashes) >= this.minContainment) {
+                accepted[i] = true;
+                acceptedCount++;
+            }
+        }
+        
+        long end = System.currentTimeMillis();
+        LOG.info("screening " + inputFasta.getName() + " finished - " + acceptedCount + " of " + accepted.length + " references are searched - " + (end - start) + " milliseconds");
+        
+        if(acceptedCount == 0) {
+            // nothing in the sample looks like a reference, searching all
+            // of them is safer than reporting every read unknown
+            LOG.warn("no reference passed screening of " + inputFasta.getName() + " - all references are searched");
+            return null;
+        }
+        
+        if(acceptedCount == accepted.length) {
+            return null;
+        }
+        return new ScreenedReferenceFilter(accepted);
+    }
+    
+    private class ScreenedReferenceFilter extends Filter {
+        
+        private FixedBitSet[] leafDocs;
+        private int[] leafCosts;
+        private int acceptedCount;
+        
+        ScreenedReferenceFilter(boolean[] accepted) {
+            // the same filter is used by all reads of a sample, so
+            // documents are selected once
+            this.leafDocs = new FixedBitSet[leafReferences.length];
+            this.leafCosts = new int[leafReferences.length];
+            for(int leaf=0;leaf<leafReferences.length;leaf++) {
+                int[] docs = leafReferences[leaf];
+                FixedBitSet bits = new FixedBitSet(docs.length);
+                for(int doc=0;doc<docs.length;doc++) {
+                    if(docs[doc] == UNKNOWN_REFERENCE || accepted[docs[doc]]) {
+                        bits.set(doc);
+                        this.leafCosts[leaf]++;
+                    }
+                }
+                this.leafDocs[leaf] = bits;
+            }
+            
+            for(boolean accept : accepted) {
+                if(accept) {
+                    this.acceptedCount++;
+                }
+            }
+        }
+        
+        @Override
+        public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+            if(this.leafCosts[context.ord] == 0) {
+                return null;
+            }
+            return BitsFilteredDocIdSet.wrap(new BitDocIdSet(this.leafDocs[context.ord], this.leafCosts[context.ord]), acceptDocs);
+        }
+        
+        // samples may pass different references, so a filter must never be
+        // served from the query cache for another sample
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+        
+        @Override
+        public String toString(String field) {
+            return "ScreenedReferenceFilter(" + this.acceptedCount + " references)";
+        }
+    }
+}
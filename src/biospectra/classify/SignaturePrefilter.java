@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import biospectra.index.BitSlicedSignatureIndex;
+import biospectra.index.DocReferences;
+import biospectra.utils.PackedKmerIterator;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.BitDocIdSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Selects candidate documents of a read from the bit-sliced signatures of
+ * reference files.
+ * <p>
+ * K-mers of a read are counted against the signature of every reference and
+ * only documents of references matching enough k-mers are searched. Documents
+ * of references that have no signature are always searched.
+ *
+ * @author iychoi
+ */
+public class SignaturePrefilter implements Closeable {
+    
+    private static final Log LOG = LogFactory.getLog(SignaturePrefilter.class);
+    
+    /**
+     * Filter returned for reads the signatures cannot judge - documents are
+     * not filtered at all
+     */
+    public static final Filter NO_FILTER = new QueryWrapperFilter(new MatchAllDocsQuery());
+    
+    private BitSlicedSignatureIndex signatureIndex;
+    private int kmerSize;
+    private double minMatch;
+    // leaf-local documents of each column, per leaf
+    private int[][][] columnDocs;
+    // leaf-local documents without a column, per leaf
+    private int[][] unknownDocs;
+    
+    public SignaturePrefilter(BitSlicedSignatureIndex signatureIndex, DocReferences docReferences, double minMatch) throws IOException {
+        if(signatureIndex == null) {
+            throw new IllegalArgumentException("signatureIndex is null");
+        }
+        
+        if(docReferences == null) {
+            throw new IllegalArgumentException("docReferences is null");
+        }
+        
+        if(minMatch < 0 || minMatch > 1) {
+            throw new IllegalArgumentException("minMatch must be between 0 and 1");
+        }
+        
+        this.signatureIndex = signatureIndex;
+        this.kmerSize = signatureIndex.getKmerSize();
+        this.minMatch = minMatch;
+        
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        for(int i=0;i<signatureIndex.getColumnCount();i++) {
+            columns.put(signatureIndex.getColumnName(i), i);
+        }
+        int[] referenceColumns = docReferences.mapReferences(columns);
+        
+        this.columnDocs = new int[docReferences.getLeafCount()][][];
+        this.unknownDocs = new int[docReferences.getLeafCount()][];
+        int unknown = 0;
+        for(int leaf=0;leaf<docReferences.getLeafCount();leaf++) {
+            int[] docColumns = new int[docReferences.getLeafMaxDoc(leaf)];
+            int[] counts = new int[columns.size() + 1];
+            for(int doc=0;doc<docColumns.length;doc++) {
+                int ref = docReferences.getReference(leaf, doc);
+                int column = ref == DocReferences.UNKNOWN_REFERENCE ? DocReferences.UNKNOWN_REFERENCE : referenceColumns[ref];
+                // the last slot holds documents without a column
+                docColumns[doc] = column == DocReferences.UNKNOWN_REFERENCE ? columns.size() : column;
+                counts[docColumns[doc]]++;
+            }
+            
+            int[][] docs = new int[columns.size() + 1][];
+            for(int i=0;i<docs.length;i++) {
+                docs[i] = new int[counts[i]];
+                counts[i] = 0;
+            }
+            for(int doc=0;doc<docColumns.length;doc++) {
+                int column = docColumns[doc];
+                docs[column][counts[column]++] = doc;
+            }
+            
+            this.unknownDocs[leaf] = docs[columns.size()];
+            unknown += docs[columns.size()].length;
+            int[][] knownDocs = new int[columns.size()][];
+            System.arraycopy(docs, 0, knownDocs, 0, columns.size());
+            this.columnDocs[leaf] = knownDocs;
+        }
+        
+        if(unknown > 0) {
+            LOG.info(unknown + " documents do not have signatures - they are always searched");
+        }
+    }
+    
+    /**
+     * Returns a filter of candidate documents of a read, NO_FILTER if the read
+     * is shorter than a signature k-mer, or null if no reference matches
+     * enough k-mers of the read
+     */
+    public Filter getCandidateFilter(String sequence) throws IOException {
+        int[] counts = new int[this.signatureIndex.getColumnCount()];
+        long[] buffer = new long[this.signatureIndex.getRowWords()];
+        
+        // signatures hold canonical k-mers, so one count covers both strands
+        PackedKmerIterator iterator = new PackedKmerIterator(this.kmerSize, true);
+        iterator.reset(sequence);
+        int kmers = 0;
+        while(iterator.next()) {
+            this.signatureIndex.countColumns(iterator.getKmer(), buffer, counts);
+            kmers++;
+        }
+        
+        if(kmers == 0) {
+            // the read may still have k-mers of the index's k
+            return NO_FILTER;
+        }
+        
+        int threshold = Math.max(1, (int) Math.ceil(this.minMatch * kmers));
+        List<Integer> candidates = new ArrayList<Integer>();
+        for(int i=0;i<counts.length;i++) {
+            if(counts[i] >= threshold) {
+                candidates.add(i);
+            }
+        }
+        
+        if(candidates.isEmpty() && !hasUnknownDocs()) {
+            return null;
+        }
+        
+        int[] candidateColumns = new int[candidates.size()];
+        for(int i=0;i<candidateColumns.length;i++) {
+            candidateColumns[i] = candidates.get(i);
+        }
+        return new CandidateFilter(candidateColumns);
+    }
+    
+    private boolean hasUnknownDocs() {
+        for(int[] docs : this.unknownDocs) {
+            if(docs.length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        this.signatureIndex.close();
+    }
+    
+    private class CandidateFilter extends Filter {
+        
+        private int[] candidateColumns;
+        
+        CandidateFilter(int[] candidateColumns) {
+            this.candidateColumns = candidateColumns;
+        }
+        
+        @Override
+        public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+            FixedBitSet bits = new FixedBitSet(context.reader().maxDoc());
+            int cost = 0;
+            for(int column : this.candidateColumns) {
+                for(int doc : columnDocs[context.ord][column]) {
+                    bits.set(doc);
+                    cost++;
+                }
+            }
+            for(int doc : unknownDocs[context.ord]) {
+                bits.set(doc);
+                cost++;
+            }
+            
+            if(cost == 0) {
+                return null;
+            }
+            return BitsFilteredDocIdSet.wrap(new BitDocIdSet(bits, cost), acceptDocs);
+        }
+        
+        // candidates differ per read, so a filter must never be served from
+        // the query cache for another read
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+        
+        @Override
+        public String toString(String field) {
+            return "CandidateFilter(" + this.candidateColumns.length + " references)";
+        }
+    }
+}
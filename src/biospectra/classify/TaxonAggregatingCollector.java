@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import biospectra.index.IndexConstants;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * A collector that aggregates hits at the top score by taxon.
+ * <p>
+ * The taxid of each hit is read from doc values during collection and only
+ * the best score per taxon is kept, so no document is materialized. One
+ * representative document per taxon is remembered to resolve its taxonomy
+ * tree when the taxon is seen for the first time. At most maxTaxa taxa are
+ * kept; when the cap is reached, the lowest-scoring taxon makes room for a
+ * higher-scoring one, so the taxon with the top score is always kept.
+ *
+ * @author iychoi
+ */
+public class TaxonAggregatingCollector extends SimpleCollector {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private double epsilon;
+    private int maxTaxa;
+    private Scorer scorer;
+    private int docBase;
+    private NumericDocValues taxonIds;
+    private float maxScore = Float.NEGATIVE_INFINITY;
+    private int[] taxa;
+    private float[] scores;
+    private int[] representativeDocs;
+    private int size;
+    private float maxDroppedScore = Float.NEGATIVE_INFINITY;
+
+    public TaxonAggregatingCollector(double epsilon, int maxTaxa) {
+        if(epsilon < 0) {
+            throw new IllegalArgumentException("epsilon must be equal or larger than 0");
+        }
+
+        if(maxTaxa <= 0) {
+            throw new IllegalArgumentException("maxTaxa must be larger than 0");
+        }
+
+        this.epsilon = epsilon;
+        this.maxTaxa = maxTaxa;
+        this.taxa = new int[Math.min(INITIAL_CAPACITY, maxTaxa)];
+        this.scores = new float[this.taxa.length];
+        this.representativeDocs = new int[this.taxa.length];
+        this.size = 0;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        this.docBase = context.docBase;
+        this.taxonIds = DocValues.getNumeric(context.reader(), IndexConstants.FIELD_TAXON_ID);
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public boolean needsScores() {
+        return true;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        float score = this.scorer.score();
+
+        if(score > this.maxScore) {
+            this.maxScore = score;
+            dropBelowTolerance();
+            aggregate(doc, score);
+        } else if(this.maxScore - score <= this.epsilon) {
+            aggregate(doc, score);
+        }
+    }
+
+    private void dropBelowTolerance() {
+        int kept = 0;
+        for(int i=0;i<this.size;i++) {
+            if(this.maxScore - this.scores[i] <= this.epsilon) {
+                this.taxa[kept] = this.taxa[i];
+                this.scores[kept] = this.scores[i];
+                this.representativeDocs[kept] = this.representativeDocs[i];
+                kept++;
+            }
+        }
+        this.size = kept;
+    }
+
+    private void aggregate(int doc, float score) {
+        int taxid = (int) this.taxonIds.get(doc);
+
+        // tie sets are small, linear scan is cheaper than hashing
+        for(int i=0;i<this.size;i++) {
+            if(this.taxa[i] == taxid) {
+                if(score > this.scores[i]) {
+                    this.scores[i] = score;
+                    this.representativeDocs[i] = this.docBase + doc;
+                }
+                return;
+            }
+        }
+
+        if(this.size >= this.maxTaxa) {
+            // replace the lowest-scoring taxon
+            int lowest = 0;
+            for(int i=1;i<this.size;i++) {
+                if(this.scores[i] < this.scores[lowest]) {
+                    lowest = i;
+                }
+            }
+
+            if(score > this.scores[lowest]) {
+                this.maxDroppedScore = Math.max(this.maxDroppedScore, this.scores[lowest]);
+                this.taxa[lowest] = taxid;
+                this.scores[lowest] = score;
+                this.representativeDocs[lowest] = this.docBase + doc;
+            } else {
+                this.maxDroppedScore = Math.max(this.maxDroppedScore, score);
+            }
+            return;
+        }
+
+        if(this.size == this.taxa.length) {
+            int newLength = Math.min(ArrayUtil.oversize(this.size + 1, 4), this.maxTaxa);
+            this.taxa = Arrays.copyOf(this.taxa, newLength);
+            this.scores = Arrays.copyOf(this.scores, newLength);
+            this.representativeDocs = Arrays.copyOf(this.representativeDocs, newLength);
+        }
+
+        this.taxa[this.size] = taxid;
+        this.scores[this.size] = score;
+        this.representativeDocs[this.size] = this.docBase + doc;
+        this.size++;
+    }
+
+    public float getMaxScore() {
+        return this.maxScore;
+    }
+
+    public int getTaxonCount() {
+        return this.size;
+    }
+
+    /**
+     * Returns the taxid of the i-th taxon at the top score, 0 if the
+     * reference had no taxonomy
+     */
+    public int getTaxonId(int i) {
+        return this.taxa[i];
+    }
+
+    public float getTaxonScore(int i) {
+        return this.scores[i];
+    }
+
+    public int getRepresentativeDoc(int i) {
+        return this.representativeDocs[i];
+    }
+
+    /**
+     * Returns true if taxa within epsilon of the top score were dropped by the
+     * cap. Dropped taxa are remembered by their best score, so a truncation
+     * is reported until a higher score leaves all of them out of tolerance.
+     */
+    public boolean isTruncated() {
+        return this.maxScore - this.maxDroppedScore <= this.epsilon;
+    }
+}
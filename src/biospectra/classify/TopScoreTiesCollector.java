@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.classify;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * A collector that keeps only the hits tied at the top score.
+ * <p>
+ * Unlike TopScoreDocCollector, no priority queue is maintained. The collector
+ * tracks the current maximum score and a list of documents whose score is
+ * within epsilon of it. The list is reset when a higher score appears. At most
+ * maxHits documents are kept to bound memory on pathological reads; when the
+ * cap is reached, the lowest-scoring hit makes room for a higher-scoring one,
+ * so the hit with the top score is always kept.
+ *
+ * @author iychoi
+ */
+public class TopScoreTiesCollector extends SimpleCollector {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double epsilon;
+    private int maxHits;
+    private Scorer scorer;
+    private int docBase;
+    private float maxScore = Float.NEGATIVE_INFINITY;
+    private int[] docs;
+    private float[] scores;
+    private int size;
+    private int totalTies;
+    private float maxDroppedScore = Float.NEGATIVE_INFINITY;
+
+    public TopScoreTiesCollector(double epsilon, int maxHits) {
+        if(epsilon < 0) {
+            throw new IllegalArgumentException("epsilon must be equal or larger than 0");
+        }
+
+        if(maxHits <= 0) {
+            throw new IllegalArgumentException("maxHits must be larger than 0");
+        }
+
+        this.epsilon = epsilon;
+        this.maxHits = maxHits;
+        this.docs = new int[Math.min(INITIAL_CAPACITY, maxHits)];
+        this.scores = new float[this.docs.length];
+        this.size = 0;
+        this.totalTies = 0;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        this.docBase = context.docBase;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public boolean needsScores() {
+        return true;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        float score = this.scorer.score();
+
+        if(score > this.maxScore) {
+            this.maxScore = score;
+            dropBelowTolerance();
+            add(this.docBase + doc, score);
+        } else if(this.maxScore - score <= this.epsilon) {
+            add(this.docBase + doc, score);
+        }
+    }
+
+    private void dropBelowTolerance() {
+        if(this.epsilon == 0) {
+            this.size = 0;
+            this.totalTies = 0;
+            return;
+        }
+
+        int kept = 0;
+        for(int i=0;i<this.size;i++) {
+            if(this.maxScore - this.scores[i] <= this.epsilon) {
+                this.docs[kept] = this.docs[i];
+                this.scores[kept] = this.scores[i];
+                kept++;
+            }
+        }
+        this.size = kept;
+        this.totalTies = kept;
+    }
+
+    private void add(int doc, float score) {
+        this.totalTies++;
+        if(this.size >= this.maxHits) {
+            // replace the lowest-scoring hit, the latest doc among equals
+            int lowest = 0;
+            for(int i=1;i<this.size;i++) {
+                if(this.scores[i] < this.scores[lowest] || (this.scores[i] == this.scores[lowest] && this.docs[i] > this.docs[lowest])) {
+                    lowest = i;
+                }
+            }
+
+            if(score > this.scores[lowest]) {
+                this.maxDroppedScore = Math.max(this.maxDroppedScore, this.scores[lowest]);
+                this.docs[lowest] = doc;
+                this.scores[lowest] = score;
+            } else {
+                this.maxDroppedScore = Math.max(this.maxDroppedScore, score);
+            }
+            return;
+        }
+
+        if(this.size == this.docs.length) {
+            int newLength = Math.min(ArrayUtil.oversize(this.size + 1, 4), this.maxHits);
+            this.docs = Arrays.copyOf(this.docs, newLength);
+            this.scores = Arrays.copyOf(this.scores, newLength);
+        }
+
+        this.docs[this.size] = doc;
+        this.scores[this.size] = score;
+        this.size++;
+    }
+
+    public float getMaxScore() {
+        return this.maxScore;
+    }
+
+    /**
+     * Returns the number of ties seen, ties dropped by the cap are no longer
+     * counted once the top score changes
+     */
+    public int getTotalTies() {
+        return this.totalTies;
+    }
+
+    /**
+     * Returns true if hits within epsilon of the top score were dropped by the
+     * cap. Dropped hits are remembered by their best score, so a truncation
+     * is reported until a higher score leaves all of them out of tolerance.
+     */
+    public boolean isTruncated() {
+        return this.maxScore - this.maxDroppedScore <= this.epsilon;
+    }
+
+    /**
+     * Returns collected hits ordered by descending score (by docid for ties)
+     */
+    public ScoreDoc[] getHits() {
+        ScoreDoc[] hits = new ScoreDoc[this.size];
+        for(int i=0;i<this.size;i++) {
+            hits[i] = new ScoreDoc(this.docs[i], this.scores[i]);
+        }
+
+        if(this.epsilon > 0) {
+            Arrays.sort(hits, new Comparator<ScoreDoc>() {
+
+                @Override
+                public int compare(ScoreDoc o1, ScoreDoc o2) {
+                    int cmp = Float.compare(o2.score, o1.score);
+                    if(cmp != 0) {
+                        return cmp;
+                    }
+                    return Integer.compare(o1.doc, o2.doc);
+                }
+            });
+        }
+        return hits;
+    }
+}
@@ -40,6 +40,7 @@ public class ClassificationResult {
     private ClassificationResultType type;
     private String taxonRank;
     private String taxonName;
+    private boolean truncated;
             
     public ClassificationResult(String queryHeader, String query, List<SearchResultEntry> result, ClassificationResultType type, String taxonRank, String taxonName) {
         initialize(queryHeader, query, result, type, taxonRank, taxonName);
@@ -116,6 +117,16 @@ public class ClassificationResult {
         this.taxonName = taxonName;
     }
     
+    @JsonProperty("truncated")
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @JsonProperty("truncated")
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+    
     @Override
     @JsonIgnore
     public String toString() {
@@ -32,6 +32,7 @@ public class ClassificationResultSummary {
     private long unknown;
     private long vague;
     private long classified;
+    private long truncated;
     private Date startTime;
     private Date endTime;
     
@@ -132,9 +133,22 @@ public class ClassificationResultSummary {
         this.classified++;
     }
     
+    @JsonProperty("truncated")
+    public synchronized long getTruncated() {
+        return truncated;
+    }
+
+    @JsonProperty("truncated")
+    public synchronized void setTruncated(long truncated) {
+        this.truncated = truncated;
+    }
+    
     @JsonIgnore
     public synchronized void report(ClassificationResult bresult) {
         this.total++;
+        if(bresult.isTruncated()) {
+            this.truncated++;
+        }
         switch(bresult.getType()) {
             case VAGUE:
                 this.vague++;
@@ -16,6 +16,7 @@
 package biospectra.classify.beans;
 
 import biospectra.index.IndexConstants;
+import biospectra.index.IndexMetadataReader;
 import biospectra.utils.JsonSerializer;
 import java.io.File;
 import java.io.IOException;
@@ -35,6 +36,7 @@ public class SearchResultEntry {
     private String sequenceDirection;
     private String taxonHierarchy;
     private double score;
+    private IndexMetadataReader metadataReader;
     
     public SearchResultEntry() {
         
@@ -50,6 +52,17 @@ public class SearchResultEntry {
         this.score = score;
     }
     
+    /**
+     * Creates an entry whose metadata is loaded lazily from the index when
+     * it is first accessed
+     */
+    public SearchResultEntry(int docId, IndexMetadataReader metadataReader, int rank, double score) {
+        this.docId = docId;
+        this.metadataReader = metadataReader;
+        this.rank = rank;
+        this.score = score;
+    }
+    
     @JsonProperty("docid")
     public int getDocId() {
         return docId;
@@ -72,6 +85,9 @@ public class SearchResultEntry {
 
     @JsonProperty("filename")
     public String getFilename() {
+        if(this.filename == null && this.metadataReader != null) {
+            this.filename = this.metadataReader.getFilename(this.docId);
+        }
         return filename;
     }
 
@@ -82,6 +98,9 @@ public class SearchResultEntry {
 
     @JsonProperty("header")
     public String getHeader() {
+        if(this.header == null && this.metadataReader != null) {
+            this.header = this.metadataReader.getHeader(this.docId);
+        }
         return header;
     }
 
@@ -92,6 +111,9 @@ public class SearchResultEntry {
     
     @JsonProperty("sequence_direction")
     public String getSequenceDirection() {
+        if(this.sequenceDirection == null && this.metadataReader != null) {
+            this.sequenceDirection = this.metadataReader.getSequenceDirection(this.docId);
+        }
         return sequenceDirection;
     }
 
@@ -102,6 +124,9 @@ public class SearchResultEntry {
     
     @JsonProperty("taxon_hierarchy")
     public String getTaxonHierarchy() {
+        if(this.taxonHierarchy == null && this.metadataReader != null) {
+            this.taxonHierarchy = this.metadataReader.getTaxonHierarchy(this.docId);
+        }
         return taxonHierarchy;
     }
 
@@ -123,7 +148,7 @@ public class SearchResultEntry {
     @Override
     @JsonIgnore
     public String toString() {
-        return this.rank + "\t" + this.score + "\t" + this.docId + "\t" + this.filename + "\t" + this.sequenceDirection + "\n>" + this.header + "\n" + this.taxonHierarchy;
+        return this.rank + "\t" + this.score + "\t" + this.docId + "\t" + getFilename() + "\t" + getSequenceDirection() + "\n>" + getHeader() + "\n" + getTaxonHierarchy();
     }
     
     @JsonIgnore
@@ -32,6 +32,7 @@ public class ClassificationResponse {
     private ClassificationResult.ClassificationResultType type;
     private String taxonRank;
     private String taxonName;
+    private boolean truncated;
 
     public ClassificationResponse() {
 
@@ -45,6 +46,7 @@ public class ClassificationResponse {
         this.type = resMsg.getType();
         this.taxonRank = resMsg.getTaxonRank();
         this.taxonName = resMsg.getTaxonName();
+        this.truncated = resMsg.isTruncated();
     }
 
     public void setReqId(long reqId) {
@@ -102,4 +104,12 @@ public class ClassificationResponse {
     public String getTaxonName() {
         return taxonName;
     }
+    
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+    
+    public boolean isTruncated() {
+        return truncated;
+    }
 }
@@ -35,6 +35,7 @@ public class ClassificationResponseMessage {
     private ClassificationResult.ClassificationResultType type;
     private String taxonRank;
     private String taxonName;
+    private boolean truncated;
 
     public static ClassificationResponseMessage createInstance(File file) throws IOException {
         if(file == null) {
@@ -108,6 +109,16 @@ public class ClassificationResponseMessage {
         return taxonName;
     }
     
+    @JsonProperty("truncated")
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+    
+    @JsonProperty("truncated")
+    public boolean isTruncated() {
+        return truncated;
+    }
+    
     
     @JsonIgnore
     public synchronized String toJson() throws IOException {
@@ -17,7 +17,8 @@ package biospectra.classify.server;
 
 import biospectra.ServerConfiguration;
 import biospectra.classify.beans.ClassificationResult;
-import biospectra.classify.Classifier;
+import biospectra.classify.ClassificationEngine;
+import biospectra.classify.ClassificationEngineFactory;
 import biospectra.classify.server.RabbitMQInputServer.RabbitMQInputServerEventHandler;
 import biospectra.utils.BlockingExecutor;
 import java.io.Closeable;
@@ -37,7 +38,7 @@ public class ClassifierServer implements Closeable {
     
     private static final Log LOG = LogFactory.getLog(ClassifierServer.class);
     
-    private Classifier searcher;
+    private ClassificationEngine searcher;
     private ServerConfiguration conf;
     private RabbitMQInputServer receiver;
     private RabbitMQInputServerEventHandler handler;
@@ -49,7 +50,7 @@ public class ClassifierServer implements Closeable {
         }
         
         this.conf = conf;
-        this.searcher = new Classifier(conf);
+        this.searcher = ClassificationEngineFactory.createEngine(conf);
         this.handler = new RabbitMQInputServerEventHandler() {
 
             @Override
@@ -85,6 +86,7 @@ public class ClassifierServer implements Closeable {
                     res.setType(result.getType());
                     res.setTaxonRank(result.getTaxonRank());
                     res.setTaxonName(result.getTaxonName());
+                    res.setTruncated(result.isTruncated());
                     res.addResult(result.getResult());
                     
                     LOG.info("return - reqId(" + req.getReqId() + ") to " + replyTo);
@@ -77,7 +77,7 @@ public class RabbitMQInputClient implements Closeable {
             return this.client;
         }
         
-        public abstract void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName);
+        public abstract void onSuccess(long reqId, String header, String sequence, List<SearchResultEntry> result, ClassificationResult.ClassificationResultType type, String taxonRank, String taxonName, boolean truncated);
         public abstract void onTimeout(long reqId, String header, String sequence);
     }
     
@@ -169,7 +169,7 @@ public class RabbitMQInputClient implements Closeable {
                     if(responded) {
                         LOG.info("res : " + ereq.getReqId());
                         if(handler != null) {
-                            handler.onSuccess(eres.getReqId(), eres.getHeader(), eres.getSequence(), eres.getResult(), eres.getType(), eres.getTaxonRank(), eres.getTaxonName());
+                            handler.onSuccess(eres.getReqId(), eres.getHeader(), eres.getSequence(), eres.getResult(), eres.getType(), eres.getTaxonRank(), eres.getTaxonName(), eres.isTruncated());
                         }
 
                         synchronized (requestQueue) {
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.Configuration;
+import biospectra.utils.PackedKmerIterator;
+import biospectra.utils.SequenceReader;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.OfflineSorter;
+
+/**
+ * Builds bit-sliced Bloom filters of the canonical k-mers of reference files.
+ * <p>
+ * The filter size is chosen for the reference with the most k-mers and the
+ * configured false positive rate. Filters are built for 64 references at a
+ * time, each batch giving one word of every row, and the batches are
+ * interleaved into rows at the end. Rows of a batch that do not fit in a
+ * quarter of the heap are built in slices, reading the references once per
+ * slice.
+ *
+ * @author iychoi
+ */
+public class BitSlicedSignatureBuilder {
+    
+    private static final Log LOG = LogFactory.getLog(BitSlicedSignatureBuilder.class);
+    
+    private static final String BATCH_FILENAME_PREFIX = "batch-";
+    // rows of a batch are built in slices held in a java array
+    private static final int MAX_SLICE_BITS = Integer.MAX_VALUE - 8;
+    
+    private File indexPath;
+    private int kmerSize;
+    private double falsePositive;
+    private String tempPath;
+    
+    public BitSlicedSignatureBuilder(Configuration conf) {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getIndexPath() == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(conf.getIndexSignatureKmerSize() <= 0 || conf.getIndexSignatureKmerSize() > PackedKmerIterator.MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("indexSignatureKmerSize must be between 1 and " + PackedKmerIterator.MAX_KMER_SIZE);
+        }
+        
+        if(conf.getIndexSignatureFalsePositive() <= 0 || conf.getIndexSignatureFalsePositive() >= 1) {
+            throw new IllegalArgumentException("indexSignatureFalsePositive must be between 0 and 1");
+        }
+        
+        this.indexPath = new File(conf.getIndexPath());
+        // short index k-mers are found in almost any genome, so signatures
+        // use their own k-mer size
+        this.kmerSize = conf.getIndexSignatureKmerSize();
+        this.falsePositive = conf.getIndexSignatureFalsePositive();
+        this.tempPath = conf.getIndexBulkTempPath();
+    }
+    
+    /**
+     * Returns the number of k-mer positions of a reference, an upper bound
+     * of its distinct k-mers
+     */
+    private long countKmers(File fastaDoc) throws Exception {
+        long kmers = 0;
+        SequenceReader reader = SequenceReader.open(fastaDoc);
+        while(reader.next()) {
+            kmers += Math.max(0, reader.getSequence().length() - this.kmerSize + 1);
+        }
+        reader.close();
+        return kmers;
+    }
+    
+    /**
+     * Returns the number of rows built at a time
+     */
+    private static int getSliceBits(long numBits) {
+        long heapBits = Math.max(1, Runtime.getRuntime().maxMemory() / 4 / 8);
+        return (int) Math.min(Math.min(numBits, heapBits), MAX_SLICE_BITS);
+    }
+    
+    private void writeBatch(List<File> fastaDocs, int batch, long numBits, int numHashes, int sliceBits, IndexOutput output) throws Exception {
+        long[] rows = new long[sliceBits];
+        PackedKmerIterator iterator = new PackedKmerIterator(this.kmerSize, true);
+        int first = batch << 6;
+        int last = Math.min(fastaDocs.size(), first + 64);
+        for(long sliceStart=0;sliceStart<numBits;sliceStart+=sliceBits) {
+            int sliceLength = (int) Math.min(sliceBits, numBits - sliceStart);
+            Arrays.fill(rows, 0, sliceLength, 0L);
+            
+            for(int i=first;i<last;i++) {
+                long bit = 1L << (i - first);
+                SequenceReader reader = SequenceReader.open(fastaDocs.get(i));
+                while(reader.next()) {
+                    iterator.reset(reader.getSequence());
+                    while(iterator.next()) {
+                        long hash = KmerLcaTable.hash(iterator.getKmer());
+                        for(int h=0;h<numHashes;h++) {
+                            long row = BitSlicedSignatureIndex.getBit(hash, h, numBits) - sliceStart;
+                            if(row >= 0 && row < sliceLength) {
+                                rows[(int) row] |= bit;
+                            }
+                        }
+                    }
+                }
+                reader.close();
+            }
+            
+            for(int r=0;r<sliceLength;r++) {
+                output.writeLong(rows[r]);
+            }
+        }
+    }
+    
+    public void build(List<File> fastaDocs) throws Exception {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        LOG.info("building signatures of " + fastaDocs.size() + " reference files started");
+        long start = System.currentTimeMillis();
+        
+        String[] columns = new String[fastaDocs.size()];
+        long maxKmers = 1;
+        for(int i=0;i<fastaDocs.size();i++) {
+            columns[i] = fastaDocs.get(i).getName();
+            maxKmers = Math.max(maxKmers, countKmers(fastaDocs.get(i)));
+        }
+        
+        // optimal size and number of hashes of a bloom filter
+        double ln2 = Math.log(2);
+        long numBits = (long) Math.ceil(-maxKmers * Math.log(this.falsePositive) / (ln2 * ln2));
+        int numHashes = Math.max(1, (int) Math.round((double) numBits / maxKmers * ln2));
+        int rowWords = BitSlicedSignatureIndex.getRowWords(columns.length);
+        
+        int sliceBits = getSliceBits(numBits);
+        long slices = (numBits + sliceBits - 1) / sliceBits;
+        if(slices > 1) {
+            LOG.info("signature rows are built in " + slices + " slices of " + sliceBits + " bits");
+        }
+        
+        Path tempBase = this.tempPath == null || this.tempPath.isEmpty() ? OfflineSorter.defaultTempDir() : Paths.get(this.tempPath);
+        Files.createDirectories(tempBase);
+        Path tempDir = Files.createTempDirectory(tempBase, "biospectra-signatures-");
+        
+        // replace signatures of a previous build
+        File signatureFile = new File(this.indexPath, IndexConstants.SIGNATURE_FILENAME);
+        if(signatureFile.exists()) {
+            signatureFile.delete();
+        }
+        
+        Directory tempDirectory = new MMapDirectory(tempDir);
+        Directory directory = new MMapDirectory(this.indexPath.toPath());
+        IndexInput[] batchInputs = new IndexInput[rowWords];
+        try {
+            for(int batch=0;batch<rowWords;batch++) {
+                IndexOutput batchOutput = tempDirectory.createOutput(BATCH_FILENAME_PREFIX + batch, IOContext.DEFAULT);
+                try {
+                    writeBatch(fastaDocs, batch, numBits, numHashes, sliceBits, batchOutput);
+                } finally {
+                    batchOutput.close();
+                }
+            }
+            
+            for(int batch=0;batch<rowWords;batch++) {
+                batchInputs[batch] = tempDirectory.openInput(BATCH_FILENAME_PREFIX + batch, IOContext.READONCE);
+            }
+            
+            IndexOutput output = directory.createOutput(IndexConstants.SIGNATURE_FILENAME, IOContext.DEFAULT);
+            try {
+                BitSlicedSignatureIndex.writeHeader(output, this.kmerSize, numBits, numHashes, columns);
+                for(long row=0;row<numBits;row++) {
+                    for(int batch=0;batch<rowWords;batch++) {
+                        output.writeLong(batchInputs[batch].readLong());
+                    }
+                }
+                CodecUtil.writeFooter(output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            IOUtils.close(batchInputs);
+            IOUtils.close(tempDirectory, directory);
+            Indexer.cleanUpDirectory(tempDir.toFile());
+            tempDir.toFile().delete();
+        }
+        
+        long end = System.currentTimeMillis();
+        LOG.info("building signatures finished - " + (end - start) + " milliseconds");
+        LOG.info("signature bits : " + numBits + ", hashes : " + numHashes + ", references : " + columns.length + ", size : " + (numBits * rowWords * 8) + " bytes");
+    }
+}
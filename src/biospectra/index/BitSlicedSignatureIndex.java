@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+
+/**
+ * Bloom filters of the k-mers of reference files in a bit-sliced layout
+ * (BIGSI).
+ * <p>
+ * All filters have the same size and hash functions. Bit i of every filter
+ * is stored together in row i, a bit vector with a column per reference, so
+ * the references that may contain a k-mer are the AND of the rows of its
+ * hashes. Rows are memory-mapped and read with absolute reads, so an index
+ * is shared by all classifier threads.
+ *
+ * @author iychoi
+ */
+public class BitSlicedSignatureIndex implements Closeable {
+    
+    static final String CODEC_NAME = "BioSpectraBitSlicedSignatures";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+    
+    private Directory directory;
+    private IndexInput input;
+    private RandomAccessInput rows;
+    private int kmerSize;
+    private long numBits;
+    private int numHashes;
+    private String[] columns;
+    private int rowWords;
+    
+    public static boolean exists(File indexPath) {
+        return new File(indexPath, IndexConstants.SIGNATURE_FILENAME).exists();
+    }
+    
+    public BitSlicedSignatureIndex(File indexPath, boolean preload) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        MMapDirectory dir = new MMapDirectory(indexPath.toPath());
+        dir.setPreload(preload);
+        this.directory = dir;
+        this.input = dir.openInput(IndexConstants.SIGNATURE_FILENAME, IOContext.READ);
+        
+        CodecUtil.checkHeader(this.input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+        this.kmerSize = this.input.readVInt();
+        this.numBits = this.input.readVLong();
+        this.numHashes = this.input.readVInt();
+        this.columns = new String[this.input.readVInt()];
+        for(int i=0;i<this.columns.length;i++) {
+            this.columns[i] = this.input.readString();
+        }
+        this.rowWords = getRowWords(this.columns.length);
+        
+        long start = this.input.getFilePointer();
+        this.rows = this.input.randomAccessSlice(start, this.numBits * this.rowWords * 8);
+    }
+    
+    static int getRowWords(int numColumns) {
+        return (numColumns + 63) >>> 6;
+    }
+    
+    /**
+     * Writes the header of a signature file, rows are written after it
+     */
+    static void writeHeader(IndexOutput output, int kmerSize, long numBits, int numHashes, String[] columns) throws IOException {
+        CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+        output.writeVInt(kmerSize);
+        output.writeVLong(numBits);
+        output.writeVInt(numHashes);
+        output.writeVInt(columns.length);
+        for(String column : columns) {
+            output.writeString(column);
+        }
+    }
+    
+    /**
+     * Returns the bit of the i-th hash of a k-mer (double hashing)
+     */
+    static long getBit(long hash, int i, long numBits) {
+        long h1 = hash & 0xFFFFFFFFL;
+        long h2 = hash >>> 32;
+        return (h1 + i * h2) % numBits;
+    }
+    
+    public int getKmerSize() {
+        return this.kmerSize;
+    }
+    
+    public long getNumBits() {
+        return this.numBits;
+    }
+    
+    public int getNumHashes() {
+        return this.numHashes;
+    }
+    
+    public int getColumnCount() {
+        return this.columns.length;
+    }
+    
+    /**
+     * Returns the reference filename of a column
+     */
+    public String getColumnName(int column) {
+        return this.columns[column];
+    }
+    
+    public int getRowWords() {
+        return this.rowWords;
+    }
+    
+    /**
+     * Adds one to the count of each column whose filter may contain a
+     * canonical k-mer. The buffer has to hold getRowWords() longs
+     */
+    public void countColumns(long kmer, long[] buffer, int[] counts) throws IOException {
+        long hash = KmerLcaTable.hash(kmer);
+        for(int i=0;i<this.numHashes;i++) {
+            long offset = getBit(hash, i, this.numBits) * this.rowWords * 8;
+            boolean empty = true;
+            for(int w=0;w<this.rowWords;w++) {
+                long word = this.rows.readLong(offset + w * 8);
+                buffer[w] = i == 0 ? word : buffer[w] & word;
+                empty &= buffer[w] == 0;
+            }
+            
+            if(empty) {
+                return;
+            }
+        }
+        
+        for(int w=0;w<this.rowWords;w++) {
+            long word = buffer[w];
+            while(word != 0) {
+                counts[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+                word &= word - 1;
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        this.input.close();
+        this.directory.close();
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.Configuration;
+import biospectra.lucene.KmerIndexAnalyzer;
+import biospectra.lucene.KmerTermCodec;
+import biospectra.utils.FastaFileHelper;
+import biospectra.utils.PackedKmerIterator;
+import biospectra.utils.SequenceHelper;
+import biospectra.utils.SequenceReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.ParallelLeafReader;
+import org.apache.lucene.index.SlowCodecReaderWrapper;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.LongBitSet;
+import org.apache.lucene.util.OfflineSorter;
+
+/**
+ * Builds an index without running sequences through the analysis chain.
+ * <p>
+ * K-mers are extracted as packed longs and written as (term, docId, position)
+ * records that are sorted offline in memory-bounded runs. The sorted records
+ * are then written as the postings of a single segment, joined with the
+ * metadata fields of the same documents. The resulting index is identical in
+ * layout to the one Indexer builds, so Classifier reads it as usual.
+ *
+ * @author iychoi
+ */
+public class BulkIndexer implements Closeable {
+    
+    private static final Log LOG = LogFactory.getLog(BulkIndexer.class);
+    
+    private static final String RECORDS_FILENAME = "kmers";
+    private static final String SORTED_RECORDS_FILENAME = "kmers.sorted";
+    private static final String METADATA_DIRECTORY = "metadata";
+    
+    private File indexPath;
+    private Path tempPath;
+    private Analyzer analyzer;
+    private Similarity similarity;
+    private int ramBufferSize;
+    private int sortBufferSize;
+    private boolean minStrandKmer;
+    private boolean singleStrand;
+    private int chunkSize;
+    private int chunkOverlap;
+    private int forceMergeSegments;
+    private LongBitSet discriminativeKmers;
+    private Codec codec;
+    private PackedKmerIterator kmerIterator;
+    private KmerTermCodec termCodec;
+    private Directory metadataDirectory;
+    private IndexWriter metadataWriter;
+    private OfflineSorter.ByteSequencesWriter recordWriter;
+    private byte[] record = new byte[SortedKmerLeafReader.RECORD_SIZE];
+    private long[] norms = new long[1024];
+    private int docCounter;
+    private long parentIdCounter;
+    private long kmerCounter;
+    private IndexManifest manifest = new IndexManifest();
+    private Set<String> filenames = new HashSet<String>();
+    
+    public BulkIndexer(Configuration conf) throws Exception {
+        this(conf, null);
+    }
+    
+    /**
+     * @param conf configuration
+     * @param discriminativeKmers k-mers to index, null to index all k-mers
+     */
+    public BulkIndexer(Configuration conf, LongBitSet discriminativeKmers) throws Exception {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getIndexPath() == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(conf.getKmerSize() <= 0 || conf.getKmerSize() > PackedKmerIterator.MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + PackedKmerIterator.MAX_KMER_SIZE + " for bulk indexing");
+        }
+        
+        if(conf.getIndexBulkSortBuffer() < 0) {
+            throw new IllegalArgumentException("indexBulkSortBuffer must be equal or larger than 0");
+        }
+        
+        if(conf.getIndexForceMergeSegments() < 0) {
+            throw new IllegalArgumentException("indexForceMergeSegments must be equal or larger than 0");
+        }
+        
+        if(conf.getIndexChunkSize() < 0) {
+            throw new IllegalArgumentException("indexChunkSize must be equal or larger than 0");
+        }
+        
+        if(conf.getIndexChunkSize() > 0) {
+            if(conf.getIndexChunkOverlap() < conf.getKmerSize() - 1) {
+                throw new IllegalArgumentException("indexChunkOverlap must be equal or larger than kmerSize - 1");
+            }
+            
+            if(conf.getIndexChunkOverlap() >= conf.getIndexChunkSize()) {
+                throw new IllegalArgumentException("indexChunkOverlap must be smaller than indexChunkSize");
+            }
+        }
+        
+        initialize(new File(conf.getIndexPath()), conf.getIndexBulkTempPath(), conf.getKmerSize(), conf.getMinStrandKmer(), conf.getScoringAlgorithmObject(), conf.getIndexRamBufferSize(), conf.getIndexBulkSortBuffer(), conf.getIndexChunkSize(), conf.getIndexChunkOverlap(), conf.getSingleStrandIndex(), conf.getIndexForceMergeSegments(), conf.getIndexCodecObject(), discriminativeKmers);
+    }
+    
+    private void initialize(File indexPath, String tempPath, int kmerSize, boolean minStrandKmer, Similarity similarity, int ramBufferSize, int sortBufferSize, int chunkSize, int chunkOverlap, boolean singleStrand, int forceMergeSegments, Codec codec, LongBitSet discriminativeKmers) throws Exception {
+        if(!indexPath.exists()) {
+            indexPath.mkdirs();
+        }
+        
+        Indexer.cleanUpDirectory(indexPath);
+        
+        this.indexPath = indexPath;
+        this.analyzer = new KmerIndexAnalyzer(kmerSize, minStrandKmer, discriminativeKmers);
+        // norms must be computed the way IndexWriter computes them
+        this.similarity = similarity == null ? new DefaultSimilarity() : similarity;
+        this.ramBufferSize = ramBufferSize;
+        this.sortBufferSize = sortBufferSize;
+        this.minStrandKmer = minStrandKmer;
+        this.singleStrand = singleStrand;
+        this.chunkSize = chunkSize;
+        this.chunkOverlap = chunkOverlap;
+        this.forceMergeSegments = forceMergeSegments;
+        this.discriminativeKmers = discriminativeKmers;
+        this.codec = codec;
+        this.kmerIterator = new PackedKmerIterator(kmerSize, minStrandKmer);
+        this.termCodec = new KmerTermCodec(kmerSize);
+        this.manifest.setBuildParameters(kmerSize, chunkSize, chunkOverlap, singleStrand, minStrandKmer);
+        
+        Path tempBase = tempPath == null || tempPath.isEmpty() ? OfflineSorter.defaultTempDir() : Paths.get(tempPath);
+        Files.createDirectories(tempBase);
+        this.tempPath = Files.createTempDirectory(tempBase, "biospectra-bulk-");
+        LOG.info("bulk indexing temporary files are written to " + this.tempPath.toString());
+        
+        // metadata fields are indexed as usual, documents keep their order
+        // so that they line up with the docIds of k-mer records
+        this.metadataDirectory = new MMapDirectory(this.tempPath.resolve(METADATA_DIRECTORY));
+        IndexWriterConfig config = new IndexWriterConfig(this.analyzer);
+        config.setMergePolicy(new LogDocMergePolicy());
+        if(ramBufferSize > 0) {
+            config.setRAMBufferSizeMB(ramBufferSize);
+        }
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        this.metadataWriter = new IndexWriter(this.metadataDirectory, config);
+        
+        this.recordWriter = new OfflineSorter.ByteSequencesWriter(this.tempPath.resolve(RECORDS_FILENAME));
+    }
+    
+    public synchronized void index(List<File> fastaDocs) throws Exception {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        for(File fastaDoc : fastaDocs) {
+            index(fastaDoc);
+        }
+    }
+    
+    public synchronized void index(File fastaDoc) throws Exception {
+        if(fastaDoc == null) {
+            throw new IllegalArgumentException("fastaDoc is null");
+        }
+        
+        File taxonDoc = FastaFileHelper.findTaxonHierarchyDoc(fastaDoc);
+        index(fastaDoc, taxonDoc);
+    }
+    
+    public synchronized void index(File fastaDoc, File taxonDoc) throws Exception {
+        if(fastaDoc == null) {
+            throw new IllegalArgumentException("fastaDoc is null");
+        }
+        
+        String filename = fastaDoc.getName();
+        if(!this.filenames.add(filename)) {
+            throw new IllegalArgumentException("reference filename " + filename + " is not unique");
+        }
+        
+        LOG.info("indexing " + fastaDoc.getAbsolutePath() + " started");
+        long start = System.currentTimeMillis();
+        
+        String taxonTree = Indexer.readTaxonTree(taxonDoc);
+        int taxonId = Indexer.getTaxonId(taxonTree);
+        
+        Document doc = Indexer.createDocument();
+        // postings of the sequence field are written from k-mer records
+        doc.removeField(IndexConstants.FIELD_SEQUENCE);
+        Indexer.setDocumentField(doc, IndexConstants.FIELD_FILENAME, filename);
+        Indexer.setDocumentField(doc, IndexConstants.FIELD_TAXONOMY_TREE, taxonTree);
+        ((NumericDocValuesField) doc.getField(IndexConstants.FIELD_TAXON_ID)).setLongValue(taxonId);
+        
+        // the file is checksummed for the manifest while it is read
+        MessageDigest digest = IndexManifestEntry.createDigest();
+        SequenceReader reader = SequenceReader.open(fastaDoc, digest);
+        
+        while(reader.next()) {
+            String headerLine = reader.getHeader().toString();
+            
+            String sequence = reader.getSequence().toString();
+            Indexer.setDocumentField(doc, IndexConstants.FIELD_HEADER, headerLine);
+            
+            if(this.minStrandKmer) {
+                // min-strand
+                Indexer.setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_MIN_STRAND);
+                addSequence(doc, sequence);
+            } else if(this.singleStrand) {
+                // forward-strand only, reverse-complemented reads are searched at query time
+                Indexer.setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_FORWARD);
+                addSequence(doc, sequence);
+            } else {
+                // forward-strand
+                Indexer.setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_FORWARD);
+                addSequence(doc, sequence);
+                
+                // reverse-strand
+                Indexer.setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_REVERSE);
+                addSequence(doc, SequenceHelper.getReverseComplement(sequence));
+            }
+        }
+        
+        reader.close();
+        this.manifest.putEntry(IndexManifestEntry.createInstance(fastaDoc, taxonDoc, digest));
+        
+        long end = System.currentTimeMillis();
+        LOG.info("indexing " + fastaDoc.getAbsolutePath() + " finished - " + (end - start) + " milliseconds");
+    }
+    
+    /**
+     * Adds a sequence as a document, or as overlapping windows when chunking
+     * is enabled, the same way Indexer does
+     */
+    private void addSequence(Document doc, String sequence) throws IOException {
+        NumericDocValuesField parentIdField = (NumericDocValuesField) doc.getField(IndexConstants.FIELD_PARENT_ID);
+        parentIdField.setLongValue(++this.parentIdCounter);
+        
+        if(this.chunkSize <= 0 || sequence.length() <= this.chunkSize) {
+            addDocument(doc, sequence);
+            return;
+        }
+        
+        int step = this.chunkSize - this.chunkOverlap;
+        for(int start=0;start<sequence.length();start+=step) {
+            int end = Math.min(start + this.chunkSize, sequence.length());
+            addDocument(doc, sequence.substring(start, end));
+            
+            if(end == sequence.length()) {
+                break;
+            }
+        }
+    }
+    
+    private void addDocument(Document doc, String sequence) throws IOException {
+        int docId = this.docCounter++;
+        this.metadataWriter.addDocument(doc);
+        
+        // positions are the ordinals of k-mers, as KmerSequenceTokenizer assigns them
+        // removed k-mers leave gaps in positions, as DiscriminativeKmerFilter does
+        int position = 0;
+        int lastPosition = -1;
+        int length = 0;
+        this.kmerIterator.reset(sequence);
+        while(this.kmerIterator.next()) {
+            if(this.discriminativeKmers == null || this.discriminativeKmers.get(this.kmerIterator.getCanonicalKmer())) {
+                long sortKey = this.termCodec.getSortKey(this.kmerIterator.getKmer());
+                SortedKmerLeafReader.writeRecord(this.record, sortKey, docId, position);
+                this.recordWriter.write(this.record);
+                lastPosition = position;
+                length++;
+            }
+            position++;
+        }
+        this.kmerCounter += length;
+        
+        this.norms = ArrayUtil.grow(this.norms, docId + 1);
+        if(length > 0) {
+            FieldInvertState state = new FieldInvertState(IndexConstants.FIELD_SEQUENCE, lastPosition, length, 0, 0, 1.0f);
+            this.norms[docId] = this.similarity.computeNorm(state);
+        }
+    }
+    
+    private void cleanUpTempPath() {
+        File tempDir = this.tempPath.toFile();
+        if(tempDir.exists()) {
+            Indexer.cleanUpDirectory(tempDir);
+            tempDir.delete();
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            this.recordWriter.close();
+            this.metadataWriter.forceMerge(1);
+            this.metadataWriter.close();
+            
+            LOG.info("sorting " + this.kmerCounter + " k-mers of " + this.docCounter + " documents");
+            OfflineSorter.BufferSize bufferSize = this.sortBufferSize > 0 ? OfflineSorter.BufferSize.megabytes(this.sortBufferSize) : OfflineSorter.BufferSize.automatic();
+            OfflineSorter sorter = new OfflineSorter(OfflineSorter.DEFAULT_COMPARATOR, bufferSize, this.tempPath, OfflineSorter.MAX_TEMPFILES);
+            Path sortedPath = this.tempPath.resolve(SORTED_RECORDS_FILENAME);
+            OfflineSorter.SortInfo sortInfo = sorter.sort(this.tempPath.resolve(RECORDS_FILENAME), sortedPath);
+            LOG.info("sorting k-mers finished - " + sortInfo.totalTime + " milliseconds, " + sortInfo.mergeRounds + " merge rounds");
+            Files.delete(this.tempPath.resolve(RECORDS_FILENAME));
+            
+            Directory dir = new MMapDirectory(this.indexPath.toPath());
+            IndexWriterConfig config = new IndexWriterConfig(this.analyzer);
+            config.setSimilarity(this.similarity);
+            if(this.codec != null) {
+                config.setCodec(this.codec);
+            }
+            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            IndexWriter indexWriter = new IndexWriter(dir, config);
+            
+            if(this.docCounter > 0) {
+                LOG.info("writing postings of " + this.docCounter + " documents");
+                DirectoryReader metadataReader = DirectoryReader.open(this.metadataDirectory);
+                SortedKmerLeafReader kmerReader = new SortedKmerLeafReader(sortedPath, this.termCodec, Arrays.copyOf(this.norms, this.docCounter));
+                ParallelLeafReader parallelReader = new ParallelLeafReader(false, metadataReader.leaves().get(0).reader(), kmerReader);
+                try {
+                    indexWriter.addIndexes(SlowCodecReaderWrapper.wrap(parallelReader));
+                } finally {
+                    parallelReader.close();
+                    kmerReader.close();
+                    metadataReader.close();
+                }
+            }
+            
+            if(this.forceMergeSegments > 0) {
+                indexWriter.forceMerge(this.forceMergeSegments);
+            }
+            
+            indexWriter.setCommitData(Indexer.createCommitData(this.manifest.toJson(), false));
+            indexWriter.close();
+            dir.close();
+            
+            this.manifest.saveTo(new File(this.indexPath, IndexConstants.MANIFEST_FILENAME));
+        } finally {
+            this.analyzer.close();
+            this.metadataDirectory.close();
+            cleanUpTempPath();
+        }
+    }
+}
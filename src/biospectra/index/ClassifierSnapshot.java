@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.utils.IndexUtil;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Snapshot of structures the Classifier derives from an index at startup.
+ * <p>
+ * The snapshot is written when an index is built or optimized and holds the
+ * reference of every document in a fixed-width array, which a classifier
+ * maps and reads in place after verifying the checksum of the file, so it
+ * does not have to read the metadata of all documents again. It records the
+ * segments it was taken from, and a snapshot of other segments is ignored.
+ *
+ * @author iychoi
+ */
+public class ClassifierSnapshot {
+    
+    private static final Log LOG = LogFactory.getLog(ClassifierSnapshot.class);
+    
+    private static final String CODEC_NAME = "BioSpectraClassifierSnapshot";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+    
+    public static boolean exists(File indexPath) {
+        return new File(indexPath, IndexConstants.CLASSIFIER_SNAPSHOT_FILENAME).exists();
+    }
+    
+    /**
+     * Returns segments of an index reader, a snapshot is only valid for the
+     * same segments in the same order
+     */
+    private static String getSegments(IndexReader indexReader) {
+        StringBuilder sb = new StringBuilder();
+        for(LeafReaderContext leaf : indexReader.leaves()) {
+            LeafReader reader = leaf.reader();
+            if(reader instanceof SegmentReader) {
+                sb.append(((SegmentReader) reader).getSegmentName());
+            }
+            sb.append(":").append(reader.maxDoc()).append(";");
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Takes a snapshot of an index
+     */
+    public static void write(File indexPath) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        LOG.info("writing classifier snapshot started");
+        long start = System.currentTimeMillis();
+        
+        IndexReader indexReader = IndexUtil.openIndexReader(indexPath);
+        Directory dir = new MMapDirectory(indexPath.toPath());
+        try {
+            DocReferences references = DocReferences.create(indexReader, new IndexMetadataReader(indexReader));
+            
+            if(exists(indexPath)) {
+                dir.deleteFile(IndexConstants.CLASSIFIER_SNAPSHOT_FILENAME);
+            }
+            
+            IndexOutput output = dir.createOutput(IndexConstants.CLASSIFIER_SNAPSHOT_FILENAME, IOContext.DEFAULT);
+            try {
+                CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+                output.writeString(getSegments(indexReader));
+                output.writeVInt(references.getReferenceCount());
+                for(int i=0;i<references.getReferenceCount();i++) {
+                    output.writeString(references.getReferenceName(i));
+                }
+                
+                // fixed-width array of all documents in doc id order
+                output.writeVInt(indexReader.maxDoc());
+                for(int leaf=0;leaf<references.getLeafCount();leaf++) {
+                    for(int doc=0;doc<references.getLeafMaxDoc(leaf);doc++) {
+                        output.writeInt(references.getReference(leaf, doc));
+                    }
+                }
+                CodecUtil.writeFooter(output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            dir.close();
+            indexReader.close();
+        }
+        
+        long end = System.currentTimeMillis();
+        LOG.info("writing classifier snapshot finished - " + (end - start) + " milliseconds");
+    }
+    
+    /**
+     * Reads references of documents from the snapshot of an index, returns
+     * null if the index has no snapshot or it was taken from other segments.
+     * References are read from the mapped file, so the returned instance must
+     * be closed.
+     */
+    public static DocReferences readDocReferences(File indexPath, IndexReader indexReader) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(indexReader == null) {
+            throw new IllegalArgumentException("indexReader is null");
+        }
+        
+        if(!exists(indexPath)) {
+            return null;
+        }
+        
+        Directory dir = new MMapDirectory(indexPath.toPath());
+        IndexInput input = null;
+        boolean success = false;
+        try {
+            input = dir.openInput(IndexConstants.CLASSIFIER_SNAPSHOT_FILENAME, IOContext.READ);
+            // a truncated or corrupt snapshot must not give wrong references
+            CodecUtil.checksumEntireFile(input);
+            
+            input.seek(0);
+            CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+            if(!getSegments(indexReader).equals(input.readString())) {
+                LOG.info("classifier snapshot was taken from other segments - ignored");
+                return null;
+            }
+            
+            String[] names = new String[input.readVInt()];
+            for(int i=0;i<names.length;i++) {
+                names[i] = input.readString();
+            }
+            
+            int maxDoc = input.readVInt();
+            if(maxDoc != indexReader.maxDoc()) {
+                LOG.info("classifier snapshot was taken from other segments - ignored");
+                return null;
+            }
+            
+            long length = (long) maxDoc * 4;
+            if(input.getFilePointer() + length + CodecUtil.footerLength() != input.length()) {
+                throw new CorruptIndexException("classifier snapshot has wrong length", input);
+            }
+            
+            List<LeafReaderContext> leaves = indexReader.leaves();
+            int[] leafDocBases = new int[leaves.size()];
+            int[] leafMaxDocs = new int[leaves.size()];
+            for(LeafReaderContext leaf : leaves) {
+                leafDocBases[leaf.ord] = leaf.docBase;
+                leafMaxDocs[leaf.ord] = leaf.reader().maxDoc();
+            }
+            
+            RandomAccessInput docs = input.randomAccessSlice(input.getFilePointer(), length);
+            DocReferences references = new DocReferences(names, docs, leafDocBases, leafMaxDocs, input, dir);
+            success = true;
+            return references;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(input, dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.Configuration;
+import biospectra.classify.beans.TaxonTreeDescription;
+import biospectra.classify.beans.Taxonomy;
+import biospectra.utils.FastaFileHelper;
+import biospectra.utils.PackedKmerIterator;
+import biospectra.utils.SequenceReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.LongBitSet;
+import org.apache.lucene.util.OfflineSorter;
+
+/**
+ * Selects k-mers that carry taxonomic signal before an index is built.
+ * <p>
+ * The references a k-mer occurs in are counted with an offline sort of
+ * (k-mer, reference) records. A k-mer is kept if all references containing it
+ * belong to the same taxon at the given rank (CLARK-style), and if it occurs
+ * in no more references than the frequency threshold. Both strands of a k-mer
+ * are counted as one.
+ * <p>
+ * The selected set is saved with the index, so k-mers of a read that were
+ * removed from the index are removed from its query as well.
+ *
+ * @author iychoi
+ */
+public class DiscriminativeKmerSelector {
+    
+    private static final Log LOG = LogFactory.getLog(DiscriminativeKmerSelector.class);
+    
+    // a bit per k-mer
+    public static final int MAX_KMER_SIZE = 15;
+    
+    private static final String[] REPORT_RANKS = {"species", "genus", "family", "order", "class", "phylum", "superkingdom"};
+    private static final int RECORD_SIZE = 12;
+    private static final int KMER_BUFFER_SIZE = 1 << 22;
+    private static final String RECORDS_FILENAME = "kmers";
+    private static final String SORTED_RECORDS_FILENAME = "kmers.sorted";
+    private static final String CODEC_NAME = "BioSpectraDiscriminativeKmers";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+    
+    private int kmerSize;
+    private String rank;
+    private int maxFrequency;
+    private String tempPath;
+    private int sortBufferSize;
+    
+    /**
+     * Returns true if the configuration asks for an index of discriminative k-mers
+     */
+    public static boolean isEnabled(Configuration conf) {
+        return (conf.getIndexDiscriminativeRank() != null && !conf.getIndexDiscriminativeRank().isEmpty()) || conf.getIndexMaxKmerFrequency() > 0;
+    }
+    
+    /**
+     * Returns true if an index was built of discriminative k-mers
+     */
+    public static boolean exists(File indexPath) {
+        return new File(indexPath, IndexConstants.DISCRIMINATIVE_KMERS_FILENAME).exists();
+    }
+    
+    /**
+     * Saves the set of selected k-mers to an index
+     */
+    public static void save(LongBitSet kmers, int kmerSize, File indexPath) throws IOException {
+        if(kmers == null) {
+            throw new IllegalArgumentException("kmers is null");
+        }
+        
+        if(kmerSize <= 0 || kmerSize > MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + MAX_KMER_SIZE);
+        }
+        
+        if(kmers.length() != 1L << (2 * kmerSize)) {
+            throw new IllegalArgumentException("kmers does not have a bit per k-mer of size " + kmerSize);
+        }
+        
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        Directory dir = new MMapDirectory(indexPath.toPath());
+        try {
+            if(exists(indexPath)) {
+                dir.deleteFile(IndexConstants.DISCRIMINATIVE_KMERS_FILENAME);
+            }
+            
+            IndexOutput output = dir.createOutput(IndexConstants.DISCRIMINATIVE_KMERS_FILENAME, IOContext.DEFAULT);
+            try {
+                CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+                output.writeVInt(kmerSize);
+                long[] bits = kmers.getBits();
+                int words = (int) ((kmers.length() + 63) >>> 6);
+                for(int i=0;i<words;i++) {
+                    output.writeLong(bits[i]);
+                }
+                CodecUtil.writeFooter(output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+    
+    /**
+     * Loads the set of k-mers an index was built of
+     */
+    public static LongBitSet load(File indexPath, int kmerSize) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        Directory dir = new MMapDirectory(indexPath.toPath());
+        try {
+            ChecksumIndexInput input = dir.openChecksumInput(IndexConstants.DISCRIMINATIVE_KMERS_FILENAME, IOContext.READONCE);
+            try {
+                CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+                int indexKmerSize = input.readVInt();
+                if(indexKmerSize != kmerSize) {
+                    throw new IllegalArgumentException("discriminative k-mers of the index are of size " + indexKmerSize + ", not " + kmerSize);
+                }
+                
+                LongBitSet kmers = new LongBitSet(1L << (2 * kmerSize));
+                long[] bits = kmers.getBits();
+                int words = (int) ((kmers.length() + 63) >>> 6);
+                for(int i=0;i<words;i++) {
+                    bits[i] = input.readLong();
+                }
+                CodecUtil.checkFooter(input);
+                return kmers;
+            } finally {
+                input.close();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+    
+    public DiscriminativeKmerSelector(Configuration conf) {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getKmerSize() <= 0 || conf.getKmerSize() > MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + MAX_KMER_SIZE + " for discriminative k-mer selection");
+        }
+        
+        if(conf.getIndexMaxKmerFrequency() < 0) {
+            throw new IllegalArgumentException("indexMaxKmerFrequency must be equal or larger than 0");
+        }
+        
+        if(conf.getIndexBulkSortBuffer() < 0) {
+            throw new IllegalArgumentException("indexBulkSortBuffer must be equal or larger than 0");
+        }
+        
+        this.kmerSize = conf.getKmerSize();
+        this.rank = conf.getIndexDiscriminativeRank();
+        if(this.rank != null && this.rank.isEmpty()) {
+            this.rank = null;
+        }
+        this.maxFrequency = conf.getIndexMaxKmerFrequency();
+        this.tempPath = conf.getIndexBulkTempPath();
+        this.sortBufferSize = conf.getIndexBulkSortBuffer();
+    }
+    
+    private List<String> getRanks() {
+        List<String> ranks = new ArrayList<String>(Arrays.asList(REPORT_RANKS));
+        if(this.rank != null) {
+            boolean found = false;
+            for(String r : ranks) {
+                if(r.equalsIgnoreCase(this.rank)) {
+                    found = true;
+                }
+            }
+            
+            if(!found) {
+                ranks.add(this.rank);
+            }
+        }
+        return ranks;
+    }
+    
+    /**
+     * Returns taxids of references at ranks. References without a taxon at a
+     * rank get a negative id of their own
+     */
+    private int[][] getRankTaxa(List<File> fastaDocs, List<String> ranks) throws IOException {
+        int[][] rankTaxa = new int[ranks.size()][fastaDocs.size()];
+        for(int i=0;i<fastaDocs.size();i++) {
+            for(int r=0;r<ranks.size();r++) {
+                rankTaxa[r][i] = -(i + 1);
+            }
+            
+            String taxonTree = Indexer.readTaxonTree(FastaFileHelper.findTaxonHierarchyDoc(fastaDocs.get(i)));
+            if(taxonTree.isEmpty()) {
+                continue;
+            }
+            
+            for(Taxonomy taxonomy : TaxonTreeDescription.createInstance(taxonTree.trim()).getTaxonomyTree()) {
+                for(int r=0;r<ranks.size();r++) {
+                    if(ranks.get(r).equalsIgnoreCase(taxonomy.getRank())) {
+                        rankTaxa[r][i] = taxonomy.getTaxid();
+                    }
+                }
+            }
+        }
+        return rankTaxa;
+    }
+    
+    private static void writeInt(byte[] record, int offset, int value) {
+        record[offset] = (byte) (value >>> 24);
+        record[offset + 1] = (byte) (value >>> 16);
+        record[offset + 2] = (byte) (value >>> 8);
+        record[offset + 3] = (byte) value;
+    }
+    
+    private static int readInt(byte[] record, int offset) {
+        return ((record[offset] & 0xFF) << 24) | ((record[offset + 1] & 0xFF) << 16) | ((record[offset + 2] & 0xFF) << 8) | (record[offset + 3] & 0xFF);
+    }
+    
+    /**
+     * Writes distinct k-mers of a buffer as records of a reference
+     */
+    private static void flushKmers(OfflineSorter.ByteSequencesWriter writer, byte[] record, long[] kmers, int numKmers, int reference) throws IOException {
+        Arrays.sort(kmers, 0, numKmers);
+        for(int i=0;i<numKmers;i++) {
+            if(i > 0 && kmers[i] == kmers[i - 1]) {
+                continue;
+            }
+            
+            writeInt(record, 0, (int) (kmers[i] >>> 32));
+            writeInt(record, 4, (int) kmers[i]);
+            writeInt(record, 8, reference);
+            writer.write(record);
+        }
+    }
+    
+    private void writeRecords(List<File> fastaDocs, Path recordsPath) throws Exception {
+        OfflineSorter.ByteSequencesWriter writer = new OfflineSorter.ByteSequencesWriter(recordsPath);
+        try {
+            byte[] record = new byte[RECORD_SIZE];
+            long[] kmers = new long[KMER_BUFFER_SIZE];
+            PackedKmerIterator iterator = new PackedKmerIterator(this.kmerSize, true);
+            for(int i=0;i<fastaDocs.size();i++) {
+                int numKmers = 0;
+                SequenceReader reader = SequenceReader.open(fastaDocs.get(i));
+                while(reader.next()) {
+                    iterator.reset(reader.getSequence());
+                    while(iterator.next()) {
+                        if(numKmers == kmers.length) {
+                            flushKmers(writer, record, kmers, numKmers, i);
+                            numKmers = 0;
+                        }
+                        kmers[numKmers++] = iterator.getKmer();
+                    }
+                }
+                reader.close();
+                flushKmers(writer, record, kmers, numKmers, i);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Counts k-mers of the references and returns the set of k-mers to index
+     */
+    public LongBitSet select(List<File> fastaDocs) throws Exception {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        LOG.info("selecting discriminative k-mers of " + fastaDocs.size() + " reference files started");
+        long start = System.currentTimeMillis();
+        
+        List<String> ranks = getRanks();
+        int selectedRank = -1;
+        for(int r=0;r<ranks.size();r++) {
+            if(ranks.get(r).equalsIgnoreCase(this.rank)) {
+                selectedRank = r;
+            }
+        }
+        int[][] rankTaxa = getRankTaxa(fastaDocs, ranks);
+        if(selectedRank >= 0 && !hasRank(rankTaxa[selectedRank])) {
+            LOG.warn("none of the references has a taxon at rank " + this.rank + " - only k-mers unique to a reference are indexed");
+        }
+        
+        Path tempBase = this.tempPath == null || this.tempPath.isEmpty() ? OfflineSorter.defaultTempDir() : Paths.get(this.tempPath);
+        Files.createDirectories(tempBase);
+        Path tempDir = Files.createTempDirectory(tempBase, "biospectra-kmers-");
+        
+        LongBitSet selected = new LongBitSet(1L << (2 * this.kmerSize));
+        long total = 0;
+        long removed = 0;
+        long removedByFrequency = 0;
+        long[] sharedPerRank = new long[ranks.size()];
+        try {
+            Path recordsPath = tempDir.resolve(RECORDS_FILENAME);
+            Path sortedPath = tempDir.resolve(SORTED_RECORDS_FILENAME);
+            writeRecords(fastaDocs, recordsPath);
+            
+            OfflineSorter.BufferSize bufferSize = this.sortBufferSize > 0 ? OfflineSorter.BufferSize.megabytes(this.sortBufferSize) : OfflineSorter.BufferSize.automatic();
+            OfflineSorter sorter = new OfflineSorter(OfflineSorter.DEFAULT_COMPARATOR, bufferSize, tempDir, OfflineSorter.MAX_TEMPFILES);
+            sorter.sort(recordsPath, sortedPath);
+            Files.delete(recordsPath);
+            
+            OfflineSorter.ByteSequencesReader reader = new OfflineSorter.ByteSequencesReader(sortedPath);
+            try {
+                BytesRefBuilder record = new BytesRefBuilder();
+                int[] references = new int[16];
+                int numReferences = 0;
+                long kmer = -1;
+                boolean more = reader.read(record);
+                while(more || numReferences > 0) {
+                    long recordKmer = -1;
+                    int reference = -1;
+                    if(more) {
+                        byte[] bytes = record.bytes();
+                        recordKmer = ((long) readInt(bytes, 0) << 32) | (readInt(bytes, 4) & 0xFFFFFFFFL);
+                        reference = readInt(bytes, 8);
+                    }
+                    
+                    if(numReferences > 0 && recordKmer != kmer) {
+                        // all references of the previous k-mer are collected
+                        total++;
+                        boolean keep = this.maxFrequency <= 0 || numReferences <= this.maxFrequency;
+                        if(!keep) {
+                            removedByFrequency++;
+                        }
+                        
+                        for(int r=0;r<ranks.size();r++) {
+                            int[] taxa = rankTaxa[r];
+                            for(int j=1;j<numReferences;j++) {
+                                if(taxa[references[j]] != taxa[references[0]]) {
+                                    sharedPerRank[r]++;
+                                    if(r == selectedRank) {
+                                        keep = false;
+                                    }
+                                    break;
+                                }
+                            }
+                        }
+                        
+                        if(keep) {
+                            selected.set(kmer);
+                        } else {
+                            removed++;
+                        }
+                        numReferences = 0;
+                    }
+                    
+                    if(!more) {
+                        break;
+                    }
+                    
+                    // records of a reference may repeat across flushed buffers
+                    if(numReferences == 0 || references[numReferences - 1] != reference) {
+                        references = ArrayUtil.grow(references, numReferences + 1);
+                        references[numReferences++] = reference;
+                    }
+                    kmer = recordKmer;
+                    more = reader.read(record);
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            Indexer.cleanUpDirectory(tempDir.toFile());
+            tempDir.toFile().delete();
+        }
+        
+        long end = System.currentTimeMillis();
+        LOG.info("selecting discriminative k-mers finished - " + (end - start) + " milliseconds");
+        LOG.info("distinct k-mers : " + total + ", removed : " + removed + ", indexed : " + (total - removed));
+        if(this.maxFrequency > 0) {
+            LOG.info("k-mers in more than " + this.maxFrequency + " references : " + removedByFrequency + formatRatio(removedByFrequency, total));
+        }
+        for(int r=0;r<ranks.size();r++) {
+            if(!hasRank(rankTaxa[r])) {
+                // none of the references has a taxon at the rank
+                continue;
+            }
+            
+            String selectedMark = r == selectedRank ? " (removed)" : "";
+            LOG.info("k-mers shared across taxa at rank " + ranks.get(r) + " : " + sharedPerRank[r] + formatRatio(sharedPerRank[r], total) + selectedMark);
+        }
+        return selected;
+    }
+    
+    private static boolean hasRank(int[] taxa) {
+        for(int taxon : taxa) {
+            if(taxon >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static String formatRatio(long count, long total) {
+        if(total == 0) {
+            return "";
+        }
+        return String.format(" (%.2f%%)", 100.0 * count / total);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Reference file of every document of an index, as ordinals into the list
+ * of reference filenames. Documents are grouped by leaf so filters can use
+ * leaf-local doc ids directly.
+ * <p>
+ * References are either held in memory or read from a memory-mapped
+ * classifier snapshot, which stays open until the instance is closed.
+ *
+ * @author iychoi
+ */
+public class DocReferences implements Closeable {
+    
+    public static final int UNKNOWN_REFERENCE = -1;
+    
+    private String[] names;
+    // reference of each leaf-local document, per leaf
+    private int[][] leafReferences;
+    // fixed-width references of all documents in doc id order
+    private RandomAccessInput docs;
+    private int[] leafDocBases;
+    private int[] leafMaxDocs;
+    private Closeable[] resources;
+    
+    DocReferences(String[] names, int[][] leafReferences) {
+        this.names = names;
+        this.leafReferences = leafReferences;
+        this.leafMaxDocs = new int[leafReferences.length];
+        for(int i=0;i<leafReferences.length;i++) {
+            this.leafMaxDocs[i] = leafReferences[i].length;
+        }
+    }
+    
+    DocReferences(String[] names, RandomAccessInput docs, int[] leafDocBases, int[] leafMaxDocs, Closeable... resources) {
+        this.names = names;
+        this.docs = docs;
+        this.leafDocBases = leafDocBases;
+        this.leafMaxDocs = leafMaxDocs;
+        this.resources = resources;
+    }
+    
+    /**
+     * Collects references of documents from index metadata
+     */
+    public static DocReferences create(IndexReader indexReader, IndexMetadataReader metadataReader) {
+        if(indexReader == null) {
+            throw new IllegalArgumentException("indexReader is null");
+        }
+        
+        if(metadataReader == null) {
+            throw new IllegalArgumentException("metadataReader is null");
+        }
+        
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        List<LeafReaderContext> leaves = indexReader.leaves();
+        int[][] leafReferences = new int[leaves.size()][];
+        for(LeafReaderContext leaf : leaves) {
+            int maxDoc = leaf.reader().maxDoc();
+            int[] docs = new int[maxDoc];
+            for(int doc=0;doc<maxDoc;doc++) {
+                String filename = metadataReader.getFilename(leaf.docBase + doc);
+                if(filename == null) {
+                    docs[doc] = UNKNOWN_REFERENCE;
+                    continue;
+                }
+                
+                Integer ref = references.get(filename);
+                if(ref == null) {
+                    ref = references.size();
+                    references.put(filename, ref);
+                }
+                docs[doc] = ref;
+            }
+            leafReferences[leaf.ord] = docs;
+        }
+        
+        String[] names = new String[references.size()];
+        for(Map.Entry<String, Integer> entry : references.entrySet()) {
+            names[entry.getValue()] = entry.getKey();
+        }
+        return new DocReferences(names, leafReferences);
+    }
+    
+    public int getReferenceCount() {
+        return this.names.length;
+    }
+    
+    /**
+     * Returns the filename of a reference
+     */
+    public String getReferenceName(int ref) {
+        return this.names[ref];
+    }
+    
+    public int getLeafCount() {
+        return this.leafMaxDocs.length;
+    }
+    
+    public int getLeafMaxDoc(int leaf) {
+        return this.leafMaxDocs[leaf];
+    }
+    
+    /**
+     * Returns the reference of a leaf-local document, UNKNOWN_REFERENCE for a
+     * document without a filename
+     */
+    public int getReference(int leaf, int doc) throws IOException {
+        if(this.leafReferences != null) {
+            return this.leafReferences[leaf][doc];
+        }
+        return this.docs.readInt((long) (this.leafDocBases[leaf] + doc) * 4);
+    }
+    
+    /**
+     * Returns an array mapping references to ordinals in a list of names,
+     * UNKNOWN_REFERENCE for references not in the list
+     */
+    public int[] mapReferences(Map<String, Integer> ordinals) {
+        int[] mapped = new int[this.names.length];
+        for(int i=0;i<this.names.length;i++) {
+            Integer ord = ordinals.get(this.names[i]);
+            mapped[i] = ord == null ? UNKNOWN_REFERENCE : ord;
+        }
+        return mapped;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if(this.resources != null) {
+            IOUtils.close(this.resources);
+            this.resources = null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.utils.PackedKmerIterator;
+import java.util.Arrays;
+
+/**
+ * FracMinHash sketch of canonical k-mers.
+ * <p>
+ * A k-mer is kept when its hash falls in the lowest 1/scaled of the hash
+ * space, so sketches of different sizes stay comparable and the containment
+ * of one set in another is estimated from the shared hashes.
+ *
+ * @author iychoi
+ */
+public class FracMinHashSketch {
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private PackedKmerIterator iterator;
+    private long maxHash;
+    private long[] hashes = new long[INITIAL_CAPACITY];
+    private int size;
+    
+    public FracMinHashSketch(int kmerSize, int scaled) {
+        if(kmerSize <= 0 || kmerSize > PackedKmerIterator.MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + PackedKmerIterator.MAX_KMER_SIZE + " for sketches");
+        }
+        
+        if(scaled <= 0) {
+            throw new IllegalArgumentException("scaled must be larger than 0");
+        }
+        
+        this.iterator = new PackedKmerIterator(kmerSize, true);
+        this.maxHash = Long.MAX_VALUE / scaled;
+    }
+    
+    public void add(CharSequence sequence) {
+        this.iterator.reset(sequence);
+        while(this.iterator.next()) {
+            // hashes are kept non-negative so they sort as unsigned values
+            long hash = KmerLcaTable.hash(this.iterator.getKmer()) >>> 1;
+            if(hash <= this.maxHash) {
+                if(this.size == this.hashes.length) {
+                    compact();
+                }
+                this.hashes[this.size++] = hash;
+            }
+        }
+    }
+    
+    private void compact() {
+        this.size = sortUnique(this.hashes, this.size);
+        if(this.size > this.hashes.length / 2) {
+            this.hashes = Arrays.copyOf(this.hashes, this.hashes.length * 2);
+        }
+    }
+    
+    private static int sortUnique(long[] arr, int length) {
+        Arrays.sort(arr, 0, length);
+        int unique = 0;
+        for(int i=0;i<length;i++) {
+            if(unique == 0 || arr[unique - 1] != arr[i]) {
+                arr[unique++] = arr[i];
+            }
+        }
+        return unique;
+    }
+    
+    /**
+     * Returns distinct hashes of the sketch in increasing order
+     */
+    public long[] getHashes() {
+        this.size = sortUnique(this.hashes, this.size);
+        return Arrays.copyOf(this.hashes, this.size);
+    }
+    
+    /**
+     * Returns the number of hashes shared by two sorted sketches
+     */
+    public static int countShared(long[] hashes1, long[] hashes2) {
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while(i < hashes1.length && j < hashes2.length) {
+            if(hashes1[i] < hashes2[j]) {
+                i++;
+            } else if(hashes1[i] > hashes2[j]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+        }
+        return shared;
+    }
+}
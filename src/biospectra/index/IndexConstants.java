@@ -25,4 +25,24 @@ public class IndexConstants {
     public static final String FIELD_TAXONOMY_TREE = "taxonomy";
     public static final String FIELD_SEQUENCE_DIRECTION = "s_direction";
     public static final String FIELD_SEQUENCE = "sequence";
+    public static final String FIELD_TAXON_ID = "taxid";
+    public static final String FIELD_PARENT_ID = "parent";
+    
+    public static final String SEQUENCE_DIRECTION_FORWARD = "forward";
+    public static final String SEQUENCE_DIRECTION_REVERSE = "reverse";
+    public static final String SEQUENCE_DIRECTION_MIN_STRAND = "min_strand";
+    
+    public static final String MANIFEST_FILENAME = "biospectra_manifest.json";
+    public static final String PARTITION_DIRECTORY_PREFIX = "partition-";
+    public static final String SHARD_DIRECTORY_PREFIX = "shard-";
+    public static final String KMER_LCA_TABLE_FILENAME = "kmer_lca.tbl";
+    public static final String TAXONOMY_TREE_FILENAME = "taxonomy_tree.json";
+    public static final String KMER_HASH_INDEX_FILENAME = "kmer_hash.idx";
+    public static final String SIGNATURE_FILENAME = "signatures.bsi";
+    public static final String SKETCH_FILENAME = "sketches.fmh";
+    public static final String CLASSIFIER_SNAPSHOT_FILENAME = "classifier_state.snap";
+    public static final String DISCRIMINATIVE_KMERS_FILENAME = "discriminative_kmers.bits";
+    
+    public static final String COMMIT_DATA_MANIFEST = "manifest";
+    public static final String COMMIT_DATA_PARTITIONS_MERGED = "partitions_merged";
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * Frequencies of a k-mer term in an index
+ *
+ * @author iychoi
+ */
+public class IndexKmerStatistics {
+    private String term;
+    private int docFreq;
+    private long totalTermFreq;
+    
+    public IndexKmerStatistics() {
+        
+    }
+    
+    @JsonProperty("term")
+    public String getTerm() {
+        return term;
+    }
+
+    @JsonProperty("term")
+    public void setTerm(String term) {
+        this.term = term;
+    }
+    
+    @JsonProperty("doc_freq")
+    public int getDocFreq() {
+        return docFreq;
+    }
+
+    @JsonProperty("doc_freq")
+    public void setDocFreq(int docFreq) {
+        this.docFreq = docFreq;
+    }
+    
+    @JsonProperty("total_term_freq")
+    public long getTotalTermFreq() {
+        return totalTermFreq;
+    }
+
+    @JsonProperty("total_term_freq")
+    public void setTotalTermFreq(long totalTermFreq) {
+        this.totalTermFreq = totalTermFreq;
+    }
+
+}
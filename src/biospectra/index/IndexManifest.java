@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.utils.JsonSerializer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * A list of reference files in an index, used to ingest only the difference
+ * when an index is updated
+ *
+ * @author iychoi
+ */
+public class IndexManifest {
+    private Map<String, IndexManifestEntry> entries = new TreeMap<String, IndexManifestEntry>();
+    // parameters documents were built with, 0 k-mer size if not recorded
+    private int kmerSize;
+    private int chunkSize;
+    private int chunkOverlap;
+    private boolean singleStrand;
+    private boolean minStrandKmer;
+    
+    public static IndexManifest createInstance(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+
+        JsonSerializer serializer = new JsonSerializer();
+        return (IndexManifest) serializer.fromJsonFile(file, IndexManifest.class);
+    }
+    
+    public static IndexManifest createInstance(String json) throws IOException {
+        if(json == null || json.isEmpty()) {
+            throw new IllegalArgumentException("json is empty or null");
+        }
+        
+        JsonSerializer serializer = new JsonSerializer();
+        return (IndexManifest) serializer.fromJson(json, IndexManifest.class);
+    }
+    
+    public IndexManifest() {
+        
+    }
+    
+    @JsonProperty("files")
+    public synchronized List<IndexManifestEntry> getEntries() {
+        return new ArrayList<IndexManifestEntry>(this.entries.values());
+    }
+    
+    @JsonProperty("files")
+    public synchronized void setEntries(List<IndexManifestEntry> entries) {
+        this.entries.clear();
+        for(IndexManifestEntry entry : entries) {
+            this.entries.put(entry.getFilename(), entry);
+        }
+    }
+    
+    @JsonProperty("kmer_size")
+    public synchronized int getKmerSize() {
+        return kmerSize;
+    }
+
+    @JsonProperty("kmer_size")
+    public synchronized void setKmerSize(int kmerSize) {
+        this.kmerSize = kmerSize;
+    }
+    
+    @JsonProperty("chunk_size")
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    @JsonProperty("chunk_size")
+    public synchronized void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+    
+    @JsonProperty("chunk_overlap")
+    public synchronized int getChunkOverlap() {
+        return chunkOverlap;
+    }
+
+    @JsonProperty("chunk_overlap")
+    public synchronized void setChunkOverlap(int chunkOverlap) {
+        this.chunkOverlap = chunkOverlap;
+    }
+    
+    @JsonProperty("single_strand")
+    public synchronized boolean getSingleStrand() {
+        return singleStrand;
+    }
+
+    @JsonProperty("single_strand")
+    public synchronized void setSingleStrand(boolean singleStrand) {
+        this.singleStrand = singleStrand;
+    }
+    
+    @JsonProperty("min_strand_kmer")
+    public synchronized boolean getMinStrandKmer() {
+        return minStrandKmer;
+    }
+
+    @JsonProperty("min_strand_kmer")
+    public synchronized void setMinStrandKmer(boolean minStrandKmer) {
+        this.minStrandKmer = minStrandKmer;
+    }
+    
+    @JsonIgnore
+    public synchronized void setBuildParameters(int kmerSize, int chunkSize, int chunkOverlap, boolean singleStrand, boolean minStrandKmer) {
+        this.kmerSize = kmerSize;
+        this.chunkSize = chunkSize;
+        this.chunkOverlap = chunkOverlap;
+        this.singleStrand = singleStrand;
+        this.minStrandKmer = minStrandKmer;
+    }
+    
+    /**
+     * Throws if documents in the index were built with different parameters,
+     * as they cannot be mixed with documents built with the given ones.
+     * Manifests written before parameters were recorded are not checked
+     */
+    @JsonIgnore
+    public synchronized void checkBuildParameters(int kmerSize, int chunkSize, int chunkOverlap, boolean singleStrand, boolean minStrandKmer) {
+        if(this.kmerSize == 0) {
+            return;
+        }
+        
+        // the overlap is not used if references are not chunked
+        boolean sameChunks = this.chunkSize == chunkSize && (chunkSize == 0 || this.chunkOverlap == chunkOverlap);
+        if(this.kmerSize != kmerSize || !sameChunks || this.singleStrand != singleStrand || this.minStrandKmer != minStrandKmer) {
+            throw new IllegalArgumentException("index was built with " + describeBuildParameters(this.kmerSize, this.chunkSize, this.chunkOverlap, this.singleStrand, this.minStrandKmer)
+                    + ", but is given " + describeBuildParameters(kmerSize, chunkSize, chunkOverlap, singleStrand, minStrandKmer) + " - it has to be rebuilt");
+        }
+    }
+    
+    private static String describeBuildParameters(int kmerSize, int chunkSize, int chunkOverlap, boolean singleStrand, boolean minStrandKmer) {
+        return "kmerSize=" + kmerSize + ", chunkSize=" + chunkSize + ", chunkOverlap=" + chunkOverlap
+                + ", singleStrand=" + singleStrand + ", minStrandKmer=" + minStrandKmer;
+    }
+    
+    @JsonIgnore
+    public synchronized IndexManifestEntry getEntry(String filename) {
+        return this.entries.get(filename);
+    }
+    
+    @JsonIgnore
+    public synchronized void putEntry(IndexManifestEntry entry) {
+        if(entry == null) {
+            throw new IllegalArgumentException("entry is null");
+        }
+        
+        this.entries.put(entry.getFilename(), entry);
+    }
+    
+    @JsonIgnore
+    public synchronized void removeEntry(String filename) {
+        this.entries.remove(filename);
+    }
+    
+    @JsonIgnore
+    public synchronized Collection<String> getFilenames() {
+        return new ArrayList<String>(this.entries.keySet());
+    }
+    
+    @JsonIgnore
+    public synchronized String toJson() throws IOException {
+        JsonSerializer serializer = new JsonSerializer();
+        return serializer.toJson(this);
+    }
+    
+    @JsonIgnore
+    public synchronized void saveTo(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        JsonSerializer serializer = new JsonSerializer(true);
+        serializer.toJsonFile(file, this);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * Describes a reference file as it was indexed
+ *
+ * @author iychoi
+ */
+public class IndexManifestEntry {
+    private String filename;
+    private long size;
+    private long lastModified;
+    private String checksum;
+    private String taxonomyChecksum;
+    
+    public static IndexManifestEntry createInstance(File fastaDoc, File taxonDoc) throws IOException {
+        if(fastaDoc == null) {
+            throw new IllegalArgumentException("fastaDoc is null");
+        }
+        
+        return createEntry(fastaDoc, taxonDoc, computeChecksum(fastaDoc));
+    }
+    
+    /**
+     * Creates an entry with the digest of the reference file computed while
+     * it was indexed (see createDigest), so that the file is not read again
+     */
+    public static IndexManifestEntry createInstance(File fastaDoc, File taxonDoc, MessageDigest digest) throws IOException {
+        if(fastaDoc == null) {
+            throw new IllegalArgumentException("fastaDoc is null");
+        }
+        
+        if(digest == null) {
+            throw new IllegalArgumentException("digest is null");
+        }
+        
+        return createEntry(fastaDoc, taxonDoc, Hex.encodeHexString(digest.digest()));
+    }
+    
+    private static IndexManifestEntry createEntry(File fastaDoc, File taxonDoc, String checksum) throws IOException {
+        IndexManifestEntry entry = new IndexManifestEntry();
+        entry.setFilename(fastaDoc.getName());
+        entry.setSize(fastaDoc.length());
+        entry.setLastModified(fastaDoc.lastModified());
+        entry.setChecksum(checksum);
+        if(taxonDoc != null && taxonDoc.exists()) {
+            entry.setTaxonomyChecksum(computeChecksum(taxonDoc));
+        }
+        return entry;
+    }
+    
+    /**
+     * Returns a new digest of the algorithm used for checksums of files
+     */
+    public static MessageDigest createDigest() {
+        return DigestUtils.getMd5Digest();
+    }
+    
+    private static String computeChecksum(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return DigestUtils.md5Hex(is);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+    
+    public IndexManifestEntry() {
+        
+    }
+    
+    @JsonProperty("filename")
+    public String getFilename() {
+        return filename;
+    }
+
+    @JsonProperty("filename")
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    @JsonProperty("size")
+    public long getSize() {
+        return size;
+    }
+
+    @JsonProperty("size")
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    @JsonProperty("last_modified")
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @JsonProperty("last_modified")
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    @JsonProperty("checksum")
+    public String getChecksum() {
+        return checksum;
+    }
+
+    @JsonProperty("checksum")
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    @JsonProperty("taxonomy_checksum")
+    public String getTaxonomyChecksum() {
+        return taxonomyChecksum;
+    }
+
+    @JsonProperty("taxonomy_checksum")
+    public void setTaxonomyChecksum(String taxonomyChecksum) {
+        this.taxonomyChecksum = taxonomyChecksum;
+    }
+    
+    /**
+     * Returns true if the files still have the content that was indexed.
+     * Checksums are only computed when the size or the modification time
+     * differ
+     */
+    @JsonIgnore
+    public boolean matches(File fastaDoc, File taxonDoc) throws IOException {
+        if(fastaDoc == null) {
+            throw new IllegalArgumentException("fastaDoc is null");
+        }
+        
+        String currentTaxonomyChecksum = null;
+        if(taxonDoc != null && taxonDoc.exists()) {
+            currentTaxonomyChecksum = computeChecksum(taxonDoc);
+        }
+        
+        if(currentTaxonomyChecksum == null ? this.taxonomyChecksum != null : !currentTaxonomyChecksum.equals(this.taxonomyChecksum)) {
+            return false;
+        }
+        
+        if(fastaDoc.length() != this.size) {
+            return false;
+        }
+        
+        if(fastaDoc.lastModified() == this.lastModified) {
+            return true;
+        }
+        
+        return computeChecksum(fastaDoc).equals(this.checksum);
+    }
+}
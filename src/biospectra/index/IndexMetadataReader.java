@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Reads per-document metadata (filename, header, direction and taxonomy) of
+ * hits. Values are read from doc values written by Indexer, so that no stored
+ * field block has to be decompressed. Indexes built before doc values were
+ * introduced fall back to stored fields.
+ *
+ * @author iychoi
+ */
+public class IndexMetadataReader {
+
+    private static final Log LOG = LogFactory.getLog(IndexMetadataReader.class);
+
+    private IndexReader indexReader;
+    private List<LeafReaderContext> leaves;
+    private boolean useDocValues;
+    private boolean hasTaxonIdDocValues;
+    private boolean hasParentIdDocValues;
+    private boolean singleStrand;
+
+    public IndexMetadataReader(IndexReader indexReader) {
+        if(indexReader == null) {
+            throw new IllegalArgumentException("indexReader is null");
+        }
+
+        try {
+            initialize(indexReader);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading index metadata", ex);
+        }
+    }
+
+    private void initialize(IndexReader indexReader) throws IOException {
+        this.indexReader = indexReader;
+        this.leaves = indexReader.leaves();
+
+        FieldInfos fieldInfos = MultiFields.getMergedFieldInfos(indexReader);
+        this.useDocValues = hasDocValues(fieldInfos, IndexConstants.FIELD_FILENAME, DocValuesType.SORTED)
+                && hasDocValues(fieldInfos, IndexConstants.FIELD_HEADER, DocValuesType.BINARY)
+                && hasDocValues(fieldInfos, IndexConstants.FIELD_SEQUENCE_DIRECTION, DocValuesType.SORTED)
+                && hasDocValues(fieldInfos, IndexConstants.FIELD_TAXONOMY_TREE, DocValuesType.SORTED);
+
+        this.hasTaxonIdDocValues = hasDocValues(fieldInfos, IndexConstants.FIELD_TAXON_ID, DocValuesType.NUMERIC);
+        this.hasParentIdDocValues = hasDocValues(fieldInfos, IndexConstants.FIELD_PARENT_ID, DocValuesType.NUMERIC);
+        
+        // a single-strand index has forward documents but no reverse-complemented copies
+        this.singleStrand = hasTerm(IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_FORWARD)
+                && !hasTerm(IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_REVERSE);
+        
+        if(!this.useDocValues) {
+            LOG.info("index does not have doc values for hit metadata - falling back to stored fields");
+        }
+    }
+
+    private boolean hasDocValues(FieldInfos fieldInfos, String field, DocValuesType type) {
+        FieldInfo fieldInfo = fieldInfos.fieldInfo(field);
+        if(fieldInfo == null) {
+            return false;
+        }
+        return fieldInfo.getDocValuesType() == type;
+    }
+
+    private boolean hasTerm(String field, String value) throws IOException {
+        Terms terms = MultiFields.getTerms(this.indexReader, field);
+        if(terms == null) {
+            return false;
+        }
+        
+        TermsEnum termsEnum = terms.iterator();
+        return termsEnum.seekExact(new BytesRef(value));
+    }
+
+    public boolean hasDocValues() {
+        return this.useDocValues;
+    }
+
+    public boolean hasTaxonIdDocValues() {
+        return this.hasTaxonIdDocValues;
+    }
+
+    /**
+     * Returns true if references are indexed only in forward direction, so
+     * that reverse-complemented reads have to be searched separately
+     */
+    public boolean isSingleStrand() {
+        return this.singleStrand;
+    }
+
+    public boolean hasParentIdDocValues() {
+        return this.hasParentIdDocValues;
+    }
+
+    /**
+     * Returns the id of the sequence a window was cut from, -1 if the index
+     * has no parent ids
+     */
+    public long getParentId(int docId) {
+        if(!this.hasParentIdDocValues) {
+            return -1;
+        }
+
+        try {
+            LeafReaderContext context = this.leaves.get(ReaderUtil.subIndex(docId, this.leaves));
+            NumericDocValues values = context.reader().getNumericDocValues(IndexConstants.FIELD_PARENT_ID);
+            if(values == null) {
+                return -1;
+            }
+            return values.get(docId - context.docBase);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading doc values of " + IndexConstants.FIELD_PARENT_ID, ex);
+        }
+    }
+
+    public String getFilename(int docId) {
+        return getSortedValue(IndexConstants.FIELD_FILENAME, docId);
+    }
+
+    public String getHeader(int docId) {
+        return getBinaryValue(IndexConstants.FIELD_HEADER, docId);
+    }
+
+    public String getSequenceDirection(int docId) {
+        return getSortedValue(IndexConstants.FIELD_SEQUENCE_DIRECTION, docId);
+    }
+
+    public String getTaxonHierarchy(int docId) {
+        return getSortedValue(IndexConstants.FIELD_TAXONOMY_TREE, docId);
+    }
+
+    private String getSortedValue(String field, int docId) {
+        if(!this.useDocValues) {
+            return getStoredValue(field, docId);
+        }
+
+        try {
+            LeafReaderContext context = this.leaves.get(ReaderUtil.subIndex(docId, this.leaves));
+            SortedDocValues values = context.reader().getSortedDocValues(field);
+            if(values == null) {
+                return null;
+            }
+
+            int ord = values.getOrd(docId - context.docBase);
+            if(ord < 0) {
+                return null;
+            }
+            return values.lookupOrd(ord).utf8ToString();
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading doc values of " + field, ex);
+        }
+    }
+
+    private String getBinaryValue(String field, int docId) {
+        if(!this.useDocValues) {
+            return getStoredValue(field, docId);
+        }
+
+        try {
+            LeafReaderContext context = this.leaves.get(ReaderUtil.subIndex(docId, this.leaves));
+            BinaryDocValues values = context.reader().getBinaryDocValues(field);
+            if(values == null) {
+                return null;
+            }
+
+            BytesRef value = values.get(docId - context.docBase);
+            return value.utf8ToString();
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading doc values of " + field, ex);
+        }
+    }
+
+    private String getStoredValue(String field, int docId) {
+        try {
+            Document d = this.indexReader.document(docId, Collections.singleton(field));
+            return d.get(field);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading stored field " + field, ex);
+        }
+    }
+}
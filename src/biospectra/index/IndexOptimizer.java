@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.Configuration;
+import biospectra.lucene.KmerIndexAnalyzer;
+import biospectra.utils.IndexUtil;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * Compacts a built index for serving. Segments of the index and of its shards
+ * are merged down to a target count and deleted documents are expunged.
+ * <p>
+ * Only adjacent segments are merged, so documents keep the order they were
+ * indexed in (e.g. sorted by taxonomy).
+ *
+ * @author iychoi
+ */
+public class IndexOptimizer implements Closeable {
+    
+    private static final Log LOG = LogFactory.getLog(IndexOptimizer.class);
+    
+    private File indexPath;
+    private Analyzer analyzer;
+    private Similarity similarity;
+    private Codec codec;
+    
+    public IndexOptimizer(Configuration conf) throws Exception {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getIndexPath() == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(conf.getKmerSize() <= 0) {
+            throw new IllegalArgumentException("kmerSize must be larger than 0");
+        }
+        
+        initialize(new File(conf.getIndexPath()), conf.getKmerSize(), conf.getMinStrandKmer(), conf.getScoringAlgorithmObject(), conf.getIndexCodecObject());
+    }
+    
+    private void initialize(File indexPath, int kmerSize, boolean minStrandKmer, Similarity similarity, Codec codec) throws Exception {
+        if(!indexPath.exists() || !indexPath.isDirectory()) {
+            throw new IllegalArgumentException("indexPath is not a directory or does not exist");
+        }
+        
+        this.indexPath = indexPath;
+        this.analyzer = new KmerIndexAnalyzer(kmerSize, minStrandKmer);
+        this.similarity = similarity;
+        this.codec = codec;
+    }
+    
+    public synchronized void optimize(int maxSegments) throws IOException {
+        if(maxSegments <= 0) {
+            throw new IllegalArgumentException("maxSegments must be larger than 0");
+        }
+        
+        optimizeDirectory(this.indexPath, maxSegments);
+        for(File shardDir : IndexUtil.findShardDirs(this.indexPath)) {
+            optimizeDirectory(shardDir, maxSegments);
+        }
+    }
+    
+    private void optimizeDirectory(File path, int maxSegments) throws IOException {
+        LOG.info("optimizing " + path.getAbsolutePath() + " started");
+        long start = System.currentTimeMillis();
+        
+        Directory dir = new MMapDirectory(path.toPath());
+        try {
+            int segmentsBefore = SegmentInfos.readLatestCommit(dir).size();
+            
+            IndexWriterConfig config = new IndexWriterConfig(this.analyzer);
+            if(this.similarity != null) {
+                config.setSimilarity(this.similarity);
+            }
+            if(this.codec != null) {
+                // merged segments are rewritten in the configured postings format
+                config.setCodec(this.codec);
+            }
+            config.setMergePolicy(new LogDocMergePolicy());
+            config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+            
+            IndexWriter writer = new IndexWriter(dir, config);
+            writer.forceMerge(maxSegments);
+            writer.forceMergeDeletes();
+            // the list of indexed files is kept for later updates
+            writer.setCommitData(writer.getCommitData());
+            writer.close();
+            
+            int segmentsAfter = SegmentInfos.readLatestCommit(dir).size();
+            long end = System.currentTimeMillis();
+            LOG.info("optimizing " + path.getAbsolutePath() + " finished - " + segmentsBefore + " segments to " + segmentsAfter + " segments, " + (end - start) + " milliseconds");
+        } finally {
+            dir.close();
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        this.analyzer.close();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import java.util.Map;
+import java.util.TreeMap;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * Layout and disk usage of an index segment
+ *
+ * @author iychoi
+ */
+public class IndexSegmentStatistics {
+    private String name;
+    private String codec;
+    private int docs;
+    private int deletedDocs;
+    private long sizeInBytes;
+    private Map<String, Long> diskUsage = new TreeMap<String, Long>();
+    private Map<String, Long> fieldTerms = new TreeMap<String, Long>();
+    
+    public IndexSegmentStatistics() {
+        
+    }
+    
+    @JsonProperty("name")
+    public String getName() {
+        return name;
+    }
+
+    @JsonProperty("name")
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+    @JsonProperty("codec")
+    public String getCodec() {
+        return codec;
+    }
+
+    @JsonProperty("codec")
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+    
+    @JsonProperty("docs")
+    public int getDocs() {
+        return docs;
+    }
+
+    @JsonProperty("docs")
+    public void setDocs(int docs) {
+        this.docs = docs;
+    }
+    
+    @JsonProperty("deleted_docs")
+    public int getDeletedDocs() {
+        return deletedDocs;
+    }
+
+    @JsonProperty("deleted_docs")
+    public void setDeletedDocs(int deletedDocs) {
+        this.deletedDocs = deletedDocs;
+    }
+    
+    @JsonProperty("size_in_bytes")
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @JsonProperty("size_in_bytes")
+    public void setSizeInBytes(long sizeInBytes) {
+        this.sizeInBytes = sizeInBytes;
+    }
+    
+    @JsonProperty("disk_usage")
+    public Map<String, Long> getDiskUsage() {
+        return diskUsage;
+    }
+
+    @JsonProperty("disk_usage")
+    public void setDiskUsage(Map<String, Long> diskUsage) {
+        this.diskUsage = diskUsage;
+    }
+    
+    @JsonProperty("field_terms")
+    public Map<String, Long> getFieldTerms() {
+        return fieldTerms;
+    }
+
+    @JsonProperty("field_terms")
+    public void setFieldTerms(Map<String, Long> fieldTerms) {
+        this.fieldTerms = fieldTerms;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.utils.JsonSerializer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * Statistics of an index used to tune k-mer size, skips and stoplists
+ *
+ * @author iychoi
+ */
+public class IndexStatistics {
+    private int docs;
+    private int maxDoc;
+    private int segments;
+    private long sizeInBytes;
+    private long terms;
+    private long sumDocFreq;
+    private long sumTotalTermFreq;
+    private Map<String, Long> docFreqHistogram = new LinkedHashMap<String, Long>();
+    private Map<String, Long> positionsHistogram = new LinkedHashMap<String, Long>();
+    private List<IndexKmerStatistics> topKmers = new ArrayList<IndexKmerStatistics>();
+    private Map<String, Long> diskUsage = new TreeMap<String, Long>();
+    private List<IndexSegmentStatistics> segmentLayout = new ArrayList<IndexSegmentStatistics>();
+    
+    public IndexStatistics() {
+        
+    }
+    
+    @JsonProperty("docs")
+    public int getDocs() {
+        return docs;
+    }
+
+    @JsonProperty("docs")
+    public void setDocs(int docs) {
+        this.docs = docs;
+    }
+    
+    @JsonProperty("max_doc")
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    @JsonProperty("max_doc")
+    public void setMaxDoc(int maxDoc) {
+        this.maxDoc = maxDoc;
+    }
+    
+    @JsonProperty("segments")
+    public int getSegments() {
+        return segments;
+    }
+
+    @JsonProperty("segments")
+    public void setSegments(int segments) {
+        this.segments = segments;
+    }
+    
+    @JsonProperty("size_in_bytes")
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @JsonProperty("size_in_bytes")
+    public void setSizeInBytes(long sizeInBytes) {
+        this.sizeInBytes = sizeInBytes;
+    }
+    
+    @JsonProperty("terms")
+    public long getTerms() {
+        return terms;
+    }
+
+    @JsonProperty("terms")
+    public void setTerms(long terms) {
+        this.terms = terms;
+    }
+    
+    @JsonProperty("sum_doc_freq")
+    public long getSumDocFreq() {
+        return sumDocFreq;
+    }
+
+    @JsonProperty("sum_doc_freq")
+    public void setSumDocFreq(long sumDocFreq) {
+        this.sumDocFreq = sumDocFreq;
+    }
+    
+    @JsonProperty("sum_total_term_freq")
+    public long getSumTotalTermFreq() {
+        return sumTotalTermFreq;
+    }
+
+    @JsonProperty("sum_total_term_freq")
+    public void setSumTotalTermFreq(long sumTotalTermFreq) {
+        this.sumTotalTermFreq = sumTotalTermFreq;
+    }
+    
+    @JsonProperty("doc_freq_histogram")
+    public Map<String, Long> getDocFreqHistogram() {
+        return docFreqHistogram;
+    }
+
+    @JsonProperty("doc_freq_histogram")
+    public void setDocFreqHistogram(Map<String, Long> docFreqHistogram) {
+        this.docFreqHistogram = docFreqHistogram;
+    }
+    
+    @JsonProperty("positions_histogram")
+    public Map<String, Long> getPositionsHistogram() {
+        return positionsHistogram;
+    }
+
+    @JsonProperty("positions_histogram")
+    public void setPositionsHistogram(Map<String, Long> positionsHistogram) {
+        this.positionsHistogram = positionsHistogram;
+    }
+    
+    @JsonProperty("top_kmers")
+    public List<IndexKmerStatistics> getTopKmers() {
+        return topKmers;
+    }
+
+    @JsonProperty("top_kmers")
+    public void setTopKmers(List<IndexKmerStatistics> topKmers) {
+        this.topKmers = topKmers;
+    }
+    
+    @JsonProperty("disk_usage")
+    public Map<String, Long> getDiskUsage() {
+        return diskUsage;
+    }
+
+    @JsonProperty("disk_usage")
+    public void setDiskUsage(Map<String, Long> diskUsage) {
+        this.diskUsage = diskUsage;
+    }
+    
+    @JsonProperty("segment_layout")
+    public List<IndexSegmentStatistics> getSegmentLayout() {
+        return segmentLayout;
+    }
+
+    @JsonProperty("segment_layout")
+    public void setSegmentLayout(List<IndexSegmentStatistics> segmentLayout) {
+        this.segmentLayout = segmentLayout;
+    }
+    
+    @JsonIgnore
+    public String toJson() throws IOException {
+        JsonSerializer serializer = new JsonSerializer(true);
+        return serializer.toJson(this);
+    }
+    
+    @JsonIgnore
+    public void saveTo(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        JsonSerializer serializer = new JsonSerializer(true);
+        serializer.toJsonFile(file, this);
+    }
+}
@@ -16,34 +16,65 @@
 package biospectra.index;
 
 import biospectra.Configuration;
+import biospectra.classify.beans.TaxonTreeDescription;
+import biospectra.classify.beans.Taxonomy;
 import biospectra.lucene.KmerIndexAnalyzer;
 import biospectra.utils.BlockingExecutor;
 import biospectra.utils.FastaFileHelper;
-import biospectra.utils.FastaFileReader;
+import biospectra.utils.IndexUtil;
 import biospectra.utils.SequenceHelper;
+import biospectra.utils.SequenceReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
-import org.yeastrc.fasta.FASTAEntry;
-import org.yeastrc.fasta.FASTAReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
 
 /**
  *
@@ -57,11 +88,47 @@ public class Indexer implements Closeable {
     private Analyzer analyzer;
     private IndexWriter indexWriter;
     private int workerThreads = 1;
+    private int readerThreads = 1;
     private BlockingExecutor executor;
     private Queue<Document> freeQueue = new ConcurrentLinkedQueue<Document>();
     private boolean minStrandKmer;
+    private boolean singleStrand;
+    private int chunkSize;
+    private int chunkOverlap;
+    private AtomicLong parentIdCounter = new AtomicLong();
+    private IndexManifest manifest;
+    private IndexWriter[] partitionWriters;
+    private Directory[] partitionDirectories;
+    private AtomicInteger partitionCounter = new AtomicInteger();
+    private boolean keepPartitions;
+    private int forceMergeSegments;
+    private int checkpointInterval;
+    private boolean sortByTaxonomy;
+    private Codec codec;
+    private AtomicInteger completedFiles = new AtomicInteger();
+    private Queue<String> failedFiles = new ConcurrentLinkedQueue<String>();
+    private final Object checkpointLock = new Object();
     
     public Indexer(Configuration conf) throws Exception {
+        this(conf, false);
+    }
+    
+    /**
+     * @param conf configuration
+     * @param update keep an existing index and its manifest to update them
+     * or to resume an interrupted build, instead of building a new index
+     */
+    public Indexer(Configuration conf, boolean update) throws Exception {
+        this(conf, update, null);
+    }
+    
+    /**
+     * @param conf configuration
+     * @param update keep an existing index and its manifest to update them
+     * or to resume an interrupted build, instead of building a new index
+     * @param discriminativeKmers k-mers to index, null to index all k-mers
+     */
+    public Indexer(Configuration conf, boolean update, LongBitSet discriminativeKmers) throws Exception {
         if(conf == null) {
             throw new IllegalArgumentException("conf is null");
         }
@@ -78,53 +145,266 @@ public class Indexer implements Closeable {
             throw new IllegalArgumentException("workerThreads must be larger than 0");
         }
         
-        initialize(new File(conf.getIndexPath()), conf.getKmerSize(), conf.getMinStrandKmer(), conf.getScoringAlgorithmObject(), conf.getWorkerThreads(), conf.getIndexRamBufferSize());
+        if(conf.getIndexReaderThreads() <= 0) {
+            throw new IllegalArgumentException("indexReaderThreads must be larger than 0");
+        }
+        
+        if(conf.getIndexPartitions() <= 0) {
+            throw new IllegalArgumentException("indexPartitions must be larger than 0");
+        }
+        
+        if(conf.getIndexForceMergeSegments() < 0) {
+            throw new IllegalArgumentException("indexForceMergeSegments must be equal or larger than 0");
+        }
+        
+        if(conf.getIndexCheckpointInterval() < 0) {
+            throw new IllegalArgumentException("indexCheckpointInterval must be equal or larger than 0");
+        }
+        
+        if(conf.getIndexChunkSize() < 0) {
+            throw new IllegalArgumentException("indexChunkSize must be equal or larger than 0");
+        }
+        
+        if(conf.getIndexChunkSize() > 0) {
+            if(conf.getIndexChunkOverlap() < conf.getKmerSize() - 1) {
+                throw new IllegalArgumentException("indexChunkOverlap must be equal or larger than kmerSize - 1");
+            }
+            
+            if(conf.getIndexChunkOverlap() >= conf.getIndexChunkSize()) {
+                throw new IllegalArgumentException("indexChunkOverlap must be smaller than indexChunkSize");
+            }
+        }
+        
+        initialize(new File(conf.getIndexPath()), conf.getKmerSize(), conf.getMinStrandKmer(), conf.getScoringAlgorithmObject(), conf.getWorkerThreads(), conf.getIndexReaderThreads(), conf.getIndexRamBufferSize(), conf.getIndexChunkSize(), conf.getIndexChunkOverlap(), conf.getSingleStrandIndex(), conf.getIndexPartitions(), conf.getIndexKeepPartitions(), conf.getIndexForceMergeSegments(), conf.getIndexCheckpointInterval(), conf.getIndexSortByTaxonomy(), conf.getIndexCodecObject(), discriminativeKmers, update);
     }
     
-    private void initialize(File indexPath, int kmerSize, boolean minStrandKmer, Similarity similarity, int workerThreads, int ramBufferSize) throws Exception {
+    private void initialize(File indexPath, int kmerSize, boolean minStrandKmer, Similarity similarity, int workerThreads, int readerThreads, int ramBufferSize, int chunkSize, int chunkOverlap, boolean singleStrand, int partitions, boolean keepPartitions, int forceMergeSegments, int checkpointInterval, boolean sortByTaxonomy, Codec codec, LongBitSet discriminativeKmers, boolean update) throws Exception {
         if(!indexPath.exists()) {
             indexPath.mkdirs();
         }
         
-        if(indexPath.exists()) {
+        if(!update) {
             cleanUpDirectory(indexPath);
         }
         
         this.indexPath = indexPath;
         this.minStrandKmer = minStrandKmer;
-        this.analyzer = new KmerIndexAnalyzer(kmerSize, minStrandKmer);
+        this.singleStrand = singleStrand;
+        this.chunkSize = chunkSize;
+        this.chunkOverlap = chunkOverlap;
+        this.analyzer = new KmerIndexAnalyzer(kmerSize, minStrandKmer, discriminativeKmers);
+        this.workerThreads = workerThreads;
+        this.readerThreads = readerThreads;
+        this.forceMergeSegments = forceMergeSegments;
+        this.checkpointInterval = checkpointInterval;
+        this.sortByTaxonomy = sortByTaxonomy;
+        this.codec = codec;
+        
         Directory dir = new MMapDirectory(this.indexPath.toPath()); 
+        this.indexWriter = createIndexWriter(dir, similarity, ramBufferSize);
+        
+        if(update) {
+            this.manifest = loadManifest();
+            try {
+                this.manifest.checkBuildParameters(kmerSize, chunkSize, chunkOverlap, singleStrand, minStrandKmer);
+            } catch (IllegalArgumentException ex) {
+                this.indexWriter.rollback();
+                throw ex;
+            }
+        } else {
+            this.manifest = new IndexManifest();
+        }
+        this.manifest.setBuildParameters(kmerSize, chunkSize, chunkOverlap, singleStrand, minStrandKmer);
+        
+        List<File> shardDirs = IndexUtil.findShardDirs(this.indexPath);
+        if(!shardDirs.isEmpty() && !keepPartitions) {
+            // deletes of an update have to reach documents in the shards
+            LOG.info("index has " + shardDirs.size() + " shards - new partitions are kept as shards");
+            keepPartitions = true;
+        }
+        this.keepPartitions = keepPartitions;
+        
+        if(partitions > 1 || keepPartitions) {
+            // each partition has its own writer, so flushes and merges of
+            // partitions run independently
+            // partitions of an interrupted build hold checkpointed documents
+            List<File> partitionDirs = IndexUtil.findNumberedDirs(this.indexPath, IndexConstants.PARTITION_DIRECTORY_PREFIX);
+            if(!partitionDirs.isEmpty() && isPartitionsMerged()) {
+                // partitions were merged but not removed before the build stopped
+                cleanUpPartitions(partitionDirs.size());
+                partitionDirs = IndexUtil.findNumberedDirs(this.indexPath, IndexConstants.PARTITION_DIRECTORY_PREFIX);
+            }
+            
+            String prefix = keepPartitions ? IndexConstants.SHARD_DIRECTORY_PREFIX : IndexConstants.PARTITION_DIRECTORY_PREFIX;
+            int numPartitions = Math.max(partitions, keepPartitions ? shardDirs.size() : partitionDirs.size());
+            this.partitionWriters = new IndexWriter[numPartitions];
+            this.partitionDirectories = new Directory[numPartitions];
+            for(int i=0;i<numPartitions;i++) {
+                File partitionPath = new File(this.indexPath, prefix + i);
+                partitionPath.mkdirs();
+                
+                this.partitionDirectories[i] = new MMapDirectory(partitionPath.toPath());
+                this.partitionWriters[i] = createIndexWriter(this.partitionDirectories[i], similarity, ramBufferSize);
+            }
+        }
+        
+        // windows added by this run must not share parent ids with existing ones
+        long lastParentId = findLastParentId(this.indexWriter);
+        if(this.partitionWriters != null) {
+            for(IndexWriter writer : this.partitionWriters) {
+                lastParentId = Math.max(lastParentId, findLastParentId(writer));
+            }
+        }
+        this.parentIdCounter.set(lastParentId);
+        
+        this.executor = new BlockingExecutor(this.workerThreads, this.workerThreads * 2);
+        
+        for(int i=0;i<this.workerThreads;i++) {
+            this.freeQueue.offer(createDocument());
+        }
+    }
+    
+    /**
+     * Loads the list of files in the last commit. The manifest file is used
+     * for indexes built before the list was recorded in commits
+     */
+    private IndexManifest loadManifest() throws IOException {
+        Map<String, String> commitData = this.indexWriter.getCommitData();
+        String json = commitData.get(IndexConstants.COMMIT_DATA_MANIFEST);
+        if(json != null) {
+            return IndexManifest.createInstance(json);
+        }
+        
+        File manifestFile = new File(this.indexPath, IndexConstants.MANIFEST_FILENAME);
+        if(manifestFile.exists()) {
+            return IndexManifest.createInstance(manifestFile);
+        }
+        
+        LOG.info("index manifest does not exist - indexing all files");
+        return new IndexManifest();
+    }
+    
+    private boolean isPartitionsMerged() {
+        Map<String, String> commitData = this.indexWriter.getCommitData();
+        return Boolean.parseBoolean(commitData.get(IndexConstants.COMMIT_DATA_PARTITIONS_MERGED));
+    }
+    
+    private IndexWriter createIndexWriter(Directory dir, Similarity similarity, int ramBufferSize) throws IOException {
         IndexWriterConfig config = new IndexWriterConfig(this.analyzer); 
         if(similarity != null) {
             config.setSimilarity(similarity);
         }
         
-        this.workerThreads = workerThreads;
+        if(this.codec != null) {
+            config.setCodec(this.codec);
+        }
         
         if(ramBufferSize > 0) {
             config.setRAMBufferSizeMB(ramBufferSize);
         }
         
+        if(this.sortByTaxonomy) {
+            // merges of adjacent segments keep documents in the order files were given
+            config.setMergePolicy(new LogDocMergePolicy());
+        }
+        
         config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        this.indexWriter = new IndexWriter(dir, config);
+        return new IndexWriter(dir, config);
+    }
+    
+    /**
+     * Returns the writer for the next reference file. Files are distributed
+     * over partitions in round-robin
+     */
+    private IndexWriter selectIndexWriter() {
+        if(this.partitionWriters == null) {
+            return this.indexWriter;
+        }
         
-        this.executor = new BlockingExecutor(this.workerThreads, this.workerThreads * 2);
+        int partition = (this.partitionCounter.getAndIncrement() & Integer.MAX_VALUE) % this.partitionWriters.length;
+        return this.partitionWriters[partition];
+    }
+    
+    private void deleteFile(String filename) throws IOException {
+        Term term = new Term(IndexConstants.FIELD_FILENAME, filename);
+        this.indexWriter.deleteDocuments(term);
+        if(this.partitionWriters != null) {
+            for(IndexWriter writer : this.partitionWriters) {
+                writer.deleteDocuments(term);
+            }
+        }
+    }
+    
+    static Document createDocument() {
+        Document doc = new Document();
+        Field filenameField = new StringField(IndexConstants.FIELD_FILENAME, "", Field.Store.NO);
+        Field headerField = new StringField(IndexConstants.FIELD_HEADER, "", Field.Store.NO);
+        Field sequenceDirectionField = new StringField(IndexConstants.FIELD_SEQUENCE_DIRECTION, "", Field.Store.NO);
+        Field taxonTreeField = new StringField(IndexConstants.FIELD_TAXONOMY_TREE, "", Field.Store.NO);
+        Field sequenceField = new TextField(IndexConstants.FIELD_SEQUENCE, "", Field.Store.NO);
         
-        for(int i=0;i<this.workerThreads;i++) {
-            Document doc = new Document();
-            Field filenameField = new StringField(IndexConstants.FIELD_FILENAME, "", Field.Store.YES);
-            Field headerField = new StringField(IndexConstants.FIELD_HEADER, "", Field.Store.YES);
-            Field sequenceDirectionField = new StringField(IndexConstants.FIELD_SEQUENCE_DIRECTION, "", Field.Store.YES);
-            Field taxonTreeField = new StringField(IndexConstants.FIELD_TAXONOMY_TREE, "", Field.Store.YES);
-            Field sequenceField = new TextField(IndexConstants.FIELD_SEQUENCE, "", Field.Store.NO);
+        // hit metadata is read from doc values instead of stored fields
+        // sorted doc values share a single copy of per-file values (filename, taxonomy)
+        Field filenameDocValuesField = new SortedDocValuesField(IndexConstants.FIELD_FILENAME, new BytesRef());
+        Field headerDocValuesField = new BinaryDocValuesField(IndexConstants.FIELD_HEADER, new BytesRef());
+        Field sequenceDirectionDocValuesField = new SortedDocValuesField(IndexConstants.FIELD_SEQUENCE_DIRECTION, new BytesRef());
+        Field taxonTreeDocValuesField = new SortedDocValuesField(IndexConstants.FIELD_TAXONOMY_TREE, new BytesRef());
+        // lowest taxid lets classification aggregate hits by taxon without loading metadata
+        Field taxonIdDocValuesField = new NumericDocValuesField(IndexConstants.FIELD_TAXON_ID, 0);
+        // windows cut from the same sequence share a parent id
+        Field parentIdDocValuesField = new NumericDocValuesField(IndexConstants.FIELD_PARENT_ID, 0);
 
-            doc.add(filenameField);
-            doc.add(headerField);
-            doc.add(sequenceDirectionField);
-            doc.add(taxonTreeField);
-            doc.add(sequenceField);
+        doc.add(filenameField);
+        doc.add(headerField);
+        doc.add(sequenceDirectionField);
+        doc.add(taxonTreeField);
+        doc.add(sequenceField);
+        doc.add(filenameDocValuesField);
+        doc.add(headerDocValuesField);
+        doc.add(sequenceDirectionDocValuesField);
+        doc.add(taxonTreeDocValuesField);
+        doc.add(taxonIdDocValuesField);
+        doc.add(parentIdDocValuesField);
+        return doc;
+    }
+    
+    /**
+     * Adds a sequence as a document, or as overlapping windows when chunking
+     * is enabled. Short windows keep position lists small, so that proximity
+     * matching runs on the region a read aligns to.
+     */
+    private void addSequence(IndexWriter writer, Document doc, String sequence) throws IOException {
+        TextField sequenceField = (TextField) doc.getField(IndexConstants.FIELD_SEQUENCE);
+        NumericDocValuesField parentIdField = (NumericDocValuesField) doc.getField(IndexConstants.FIELD_PARENT_ID);
+        parentIdField.setLongValue(this.parentIdCounter.incrementAndGet());
+        
+        if(this.chunkSize <= 0 || sequence.length() <= this.chunkSize) {
+            sequenceField.setStringValue(sequence);
+            writer.addDocument(doc);
+            return;
+        }
+        
+        int step = this.chunkSize - this.chunkOverlap;
+        for(int start=0;start<sequence.length();start+=step) {
+            int end = Math.min(start + this.chunkSize, sequence.length());
+            sequenceField.setStringValue(sequence.substring(start, end));
+            writer.addDocument(doc);
             
-            this.freeQueue.offer(doc);
+            if(end == sequence.length()) {
+                break;
+            }
+        }
+    }
+    
+    static void setDocumentField(Document doc, String field, String value) {
+        for(IndexableField f : doc.getFields(field)) {
+            if(f instanceof StringField) {
+                ((StringField) f).setStringValue(value);
+            } else if(f instanceof SortedDocValuesField) {
+                ((SortedDocValuesField) f).setBytesValue(new BytesRef(value));
+            } else if(f instanceof BinaryDocValuesField) {
+                ((BinaryDocValuesField) f).setBytesValue(new BytesRef(value));
+            }
         }
     }
     
@@ -133,8 +413,48 @@ public class Indexer implements Closeable {
             throw new IllegalArgumentException("fastaDocs is null");
         }
         
-        for(File fastaDoc : fastaDocs) {
-            index(fastaDoc);
+        if(this.readerThreads == 1 || fastaDocs.size() <= 1) {
+            for(File fastaDoc : fastaDocs) {
+                index(fastaDoc);
+            }
+            return;
+        }
+        
+        // reader threads parse and decompress files concurrently and feed
+        // records to the worker pool, which bounds the number of records in flight
+        ExecutorService readerPool = Executors.newFixedThreadPool(Math.min(this.readerThreads, fastaDocs.size()));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for(final File fastaDoc : fastaDocs) {
+                if(fastaDoc == null) {
+                    throw new IllegalArgumentException("fastaDoc is null");
+                }
+                
+                Callable<Void> reader = new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        File taxonDoc = FastaFileHelper.findTaxonHierarchyDoc(fastaDoc);
+                        indexFile(fastaDoc, taxonDoc);
+                        return null;
+                    }
+                };
+                futures.add(readerPool.submit(reader));
+            }
+            
+            for(Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if(cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            readerPool.shutdownNow();
         }
     }
     
@@ -152,87 +472,299 @@ public class Indexer implements Closeable {
             throw new IllegalArgumentException("fastaDoc is null");
         }
         
-        String taxonTree = "";
+        indexFile(fastaDoc, taxonDoc);
+    }
+    
+    private void indexFile(final File fastaDoc, File taxonDoc) throws Exception {
+        LOG.info("indexing " + fastaDoc.getAbsolutePath() + " started");
+        final long start = System.currentTimeMillis();
         
-        if(taxonDoc != null && taxonDoc.exists()) {
-            FileReader reader = new FileReader(taxonDoc);
-            taxonTree = IOUtils.toString(reader);
-            IOUtils.closeQuietly(reader);
-        }
+        String taxonTree = readTaxonTree(taxonDoc);
+        int taxonId = getTaxonId(taxonTree);
         
-        FASTAReader reader = FastaFileReader.getFASTAReader(fastaDoc);
-        FASTAEntry read = null;
+        // the reader holds one count until the file is fully read, so that
+        // the last one to finish (reader or worker) reports the file
+        final AtomicInteger pending = new AtomicInteger(1);
+        // set when a document of the file could not be added
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicReference<IndexManifestEntry> manifestEntry = new AtomicReference<IndexManifestEntry>();
+        final IndexWriter writer = selectIndexWriter();
         
-        while((read = reader.readNext()) != null) {
-            String headerLine = read.getHeaderLine();
-            if(headerLine.startsWith(">")) {
-                headerLine = headerLine.substring(1);
-            }
+        // the file is checksummed for the manifest while it is read
+        MessageDigest digest = IndexManifestEntry.createDigest();
+        SequenceReader reader = SequenceReader.open(fastaDoc, digest);
+        
+        while(reader.next()) {
+            String headerLine = reader.getHeader().toString();
             
             final String f_filename = fastaDoc.getName();
-            final String sequence = read.getSequence();
+            final String sequence = reader.getSequence().toString();
             final String header = headerLine;
             final String f_taxonTree = taxonTree;
+            final int f_taxonId = taxonId;
             final boolean f_minStrandKmer = this.minStrandKmer;
+            final boolean f_singleStrand = this.singleStrand;
             
             Runnable worker = new Runnable() {
 
                 @Override
                 public void run() {
+                    Document doc = null;
+                    boolean indexed = false;
                     try {
-                        Document doc = freeQueue.poll();
+                        doc = freeQueue.poll();
                         if(doc == null) {
-                            doc = new Document();
-                            Field filenameField = new StringField(IndexConstants.FIELD_FILENAME, "", Field.Store.YES);
-                            Field headerField = new StringField(IndexConstants.FIELD_HEADER, "", Field.Store.YES);
-                            Field sequenceDirectionField = new StringField(IndexConstants.FIELD_SEQUENCE_DIRECTION, "", Field.Store.YES);
-                            Field taxonTreeField = new StringField(IndexConstants.FIELD_TAXONOMY_TREE, "", Field.Store.YES);
-                            Field sequenceField = new TextField(IndexConstants.FIELD_SEQUENCE, "", Field.Store.NO);
-
-                            doc.add(filenameField);
-                            doc.add(headerField);
-                            doc.add(sequenceDirectionField);
-                            doc.add(taxonTreeField);
-                            doc.add(sequenceField);
+                            doc = createDocument();
                         }
                         
-                        StringField filenameField = (StringField) doc.getField(IndexConstants.FIELD_FILENAME);
-                        StringField headerField = (StringField) doc.getField(IndexConstants.FIELD_HEADER);
-                        StringField sequenceDirectionField = (StringField) doc.getField(IndexConstants.FIELD_SEQUENCE_DIRECTION);
-                        StringField taxonTreeField = (StringField) doc.getField(IndexConstants.FIELD_TAXONOMY_TREE);
-                        TextField sequenceField = (TextField) doc.getField(IndexConstants.FIELD_SEQUENCE);
-                        
-                        filenameField.setStringValue(f_filename);
-                        headerField.setStringValue(header);
-                        taxonTreeField.setStringValue(f_taxonTree);
+                        setDocumentField(doc, IndexConstants.FIELD_FILENAME, f_filename);
+                        setDocumentField(doc, IndexConstants.FIELD_HEADER, header);
+                        setDocumentField(doc, IndexConstants.FIELD_TAXONOMY_TREE, f_taxonTree);
+                        ((NumericDocValuesField) doc.getField(IndexConstants.FIELD_TAXON_ID)).setLongValue(f_taxonId);
             
                         if(f_minStrandKmer) {
                             // min-strand
-                            sequenceDirectionField.setStringValue("min_strand");
-                            sequenceField.setStringValue(sequence);
-                            indexWriter.addDocument(doc);
+                            setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_MIN_STRAND);
+                            addSequence(writer, doc, sequence);
+                        } else if(f_singleStrand) {
+                            // forward-strand only, reverse-complemented reads are searched at query time
+                            setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_FORWARD);
+                            addSequence(writer, doc, sequence);
                         } else {
                             // forward-strand
-                            sequenceDirectionField.setStringValue("forward");
-                            sequenceField.setStringValue(sequence);
-                            indexWriter.addDocument(doc);
+                            setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_FORWARD);
+                            addSequence(writer, doc, sequence);
 
                             // reverse-strand
-                            sequenceDirectionField.setStringValue("reverse");
-                            sequenceField.setStringValue(SequenceHelper.getReverseComplement(sequence));
-                            indexWriter.addDocument(doc);
+                            setDocumentField(doc, IndexConstants.FIELD_SEQUENCE_DIRECTION, IndexConstants.SEQUENCE_DIRECTION_REVERSE);
+                            addSequence(writer, doc, SequenceHelper.getReverseComplement(sequence));
                         }
-                        
-                        freeQueue.offer(doc);
+                        indexed = true;
                     } catch (Exception ex) {
                         LOG.error("Exception occurred during index construction", ex);
+                    } finally {
+                        if(!indexed) {
+                            // also set when an error is thrown
+                            failed.set(true);
+                        }
+                        
+                        if(doc != null) {
+                            freeQueue.offer(doc);
+                        }
+                        finishFile(fastaDoc, start, pending, failed, manifestEntry);
                     }
                 }
             };
+            pending.incrementAndGet();
             this.executor.execute(worker);
         }
         
         reader.close();
+        manifestEntry.set(IndexManifestEntry.createInstance(fastaDoc, taxonDoc, digest));
+        finishFile(fastaDoc, start, pending, failed, manifestEntry);
+    }
+    
+    static String readTaxonTree(File taxonDoc) throws IOException {
+        String taxonTree = "";
+        
+        if(taxonDoc != null && taxonDoc.exists()) {
+            FileReader reader = new FileReader(taxonDoc);
+            taxonTree = IOUtils.toString(reader);
+            IOUtils.closeQuietly(reader);
+        }
+        return taxonTree;
+    }
+    
+    /**
+     * Orders reference files by their taxonomy lineage, so that documents of
+     * related taxa are stored next to each other
+     */
+    public static List<File> sortByTaxonomy(List<File> fastaDocs) throws IOException {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        final Map<File, String> lineages = new HashMap<File, String>();
+        for(File fastaDoc : fastaDocs) {
+            String taxonTree = readTaxonTree(FastaFileHelper.findTaxonHierarchyDoc(fastaDoc));
+            StringBuilder lineage = new StringBuilder();
+            if(!taxonTree.isEmpty()) {
+                List<Taxonomy> tree = TaxonTreeDescription.createInstance(taxonTree.trim()).getTaxonomyTree();
+                // trees are listed from the lowest rank to the root
+                for(int i=tree.size()-1;i>=0;i--) {
+                    lineage.append(tree.get(i).getTaxid());
+                    lineage.append("/");
+                }
+            }
+            lineages.put(fastaDoc, lineage.toString());
+        }
+        
+        List<File> sorted = new ArrayList<File>(fastaDocs);
+        Collections.sort(sorted, new Comparator<File>() {
+
+            @Override
+            public int compare(File f1, File f2) {
+                int cmp = lineages.get(f1).compareTo(lineages.get(f2));
+                if(cmp != 0) {
+                    return cmp;
+                }
+                return f1.getPath().compareTo(f2.getPath());
+            }
+        });
+        return sorted;
+    }
+    
+    /**
+     * Returns the lowest taxid of a taxonomy tree, 0 if unknown
+     */
+    static int getTaxonId(String taxonTree) throws IOException {
+        int taxonId = 0;
+        if(!taxonTree.isEmpty()) {
+            TaxonTreeDescription desc = TaxonTreeDescription.createInstance(taxonTree.trim());
+            if(!desc.getTaxonomyTree().isEmpty()) {
+                taxonId = desc.getTaxonomyTree().get(0).getTaxid();
+            }
+        }
+        return taxonId;
+    }
+    
+    private long findLastParentId(IndexWriter writer) throws IOException {
+        long lastParentId = 0;
+        DirectoryReader reader = DirectoryReader.open(writer, false);
+        try {
+            for(LeafReaderContext context : reader.leaves()) {
+                NumericDocValues parentIds = DocValues.getNumeric(context.reader(), IndexConstants.FIELD_PARENT_ID);
+                for(int i=0;i<context.reader().maxDoc();i++) {
+                    lastParentId = Math.max(lastParentId, parentIds.get(i));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lastParentId;
+    }
+    
+    /**
+     * Brings the index in line with the given reference files. Files not in
+     * the manifest are added, changed files are replaced and files that are
+     * no longer given are removed.
+     */
+    public synchronized void update(List<File> fastaDocs) throws Exception {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        Set<String> filenames = new HashSet<String>();
+        List<File> toIndex = new ArrayList<File>();
+        int added = 0;
+        int replaced = 0;
+        int removed = 0;
+        
+        for(File fastaDoc : fastaDocs) {
+            String filename = fastaDoc.getName();
+            if(!filenames.add(filename)) {
+                throw new IllegalArgumentException("reference filename " + filename + " is not unique");
+            }
+            
+            IndexManifestEntry entry = this.manifest.getEntry(filename);
+            if(entry == null) {
+                // removes partially indexed documents of an interrupted build
+                deleteFile(filename);
+                toIndex.add(fastaDoc);
+                added++;
+            } else if(!entry.matches(fastaDoc, FastaFileHelper.findTaxonHierarchyDoc(fastaDoc))) {
+                // a delete only applies to documents added before it, so
+                // the file can be re-added in the same session
+                deleteFile(filename);
+                this.manifest.removeEntry(filename);
+                toIndex.add(fastaDoc);
+                replaced++;
+            } else {
+                // content is unchanged, avoid checksumming it on the next update
+                entry.setLastModified(fastaDoc.lastModified());
+            }
+        }
+        
+        for(String filename : this.manifest.getFilenames()) {
+            if(!filenames.contains(filename)) {
+                deleteFile(filename);
+                this.manifest.removeEntry(filename);
+                removed++;
+            }
+        }
+        
+        LOG.info("updating index - " + added + " added, " + replaced + " replaced, " + removed + " removed, " + (fastaDocs.size() - added - replaced) + " unchanged");
+        
+        index(toIndex);
+    }
+    
+    private void finishFile(File fastaDoc, long start, AtomicInteger pending, AtomicBoolean failed, AtomicReference<IndexManifestEntry> manifestEntry) {
+        if(pending.decrementAndGet() == 0) {
+            if(failed.get()) {
+                // not listed in the manifest, so that resume and update
+                // replace its partially indexed documents
+                LOG.error("indexing " + fastaDoc.getAbsolutePath() + " failed");
+                this.failedFiles.add(fastaDoc.getName());
+                return;
+            }
+            
+            // all documents of the file are added, so the file can be
+            // listed in the next commit
+            this.manifest.putEntry(manifestEntry.get());
+            
+            long end = System.currentTimeMillis();
+            LOG.info("indexing " + fastaDoc.getAbsolutePath() + " finished - " + (end - start) + " milliseconds");
+            
+            int completed = this.completedFiles.incrementAndGet();
+            if(this.checkpointInterval > 0 && completed % this.checkpointInterval == 0) {
+                try {
+                    checkpoint();
+                } catch (IOException ex) {
+                    LOG.error("Exception occurred during checkpoint", ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Commits documents added so far. The commit records the files that are
+     * fully indexed, so that an interrupted build can be resumed
+     */
+    private void checkpoint() throws IOException {
+        synchronized(this.checkpointLock) {
+            // the list is taken first, documents of listed files are then
+            // in the partition commits that precede the main commit
+            String manifestJson = this.manifest.toJson();
+            
+            if(this.partitionWriters != null) {
+                for(IndexWriter writer : this.partitionWriters) {
+                    writer.commit();
+                }
+            }
+            
+            this.indexWriter.setCommitData(createCommitData(manifestJson, false));
+            this.indexWriter.commit();
+            LOG.info("checkpoint - " + this.completedFiles.get() + " files indexed");
+        }
+    }
+    
+    static Map<String, String> createCommitData(String manifestJson, boolean partitionsMerged) {
+        Map<String, String> commitData = new HashMap<String, String>();
+        commitData.put(IndexConstants.COMMIT_DATA_MANIFEST, manifestJson);
+        if(partitionsMerged) {
+            commitData.put(IndexConstants.COMMIT_DATA_PARTITIONS_MERGED, Boolean.toString(true));
+        }
+        return commitData;
+    }
+    
+    private void cleanUpPartitions(int partitions) {
+        for(int i=0;i<partitions;i++) {
+            File partitionPath = new File(this.indexPath, IndexConstants.PARTITION_DIRECTORY_PREFIX + i);
+            if(partitionPath.exists()) {
+                cleanUpDirectory(partitionPath);
+                partitionPath.delete();
+            }
+        }
     }
     
     @Override
@@ -243,14 +775,51 @@ public class Indexer implements Closeable {
             
             this.freeQueue.clear();
             
+            if(this.partitionWriters != null) {
+                for(IndexWriter writer : this.partitionWriters) {
+                    if(this.keepPartitions && this.forceMergeSegments > 0) {
+                        writer.forceMerge(this.forceMergeSegments);
+                    }
+                    writer.close();
+                }
+                
+                if(!this.keepPartitions) {
+                    LOG.info("merging " + this.partitionWriters.length + " partitions");
+                    this.indexWriter.addIndexes(this.partitionDirectories);
+                }
+                
+                for(Directory dir : this.partitionDirectories) {
+                    dir.close();
+                }
+            }
+            
+            if(this.forceMergeSegments > 0) {
+                this.indexWriter.forceMerge(this.forceMergeSegments);
+            }
+            
+            boolean partitionsMerged = this.partitionWriters != null && !this.keepPartitions;
+            this.indexWriter.setCommitData(createCommitData(this.manifest.toJson(), partitionsMerged));
+            
             this.analyzer.close();
             this.indexWriter.close();
+            
+            if(partitionsMerged) {
+                cleanUpPartitions(this.partitionWriters.length);
+            }
+            
+            // written after the commit so that the manifest never lists files
+            // that are not in the index
+            this.manifest.saveTo(new File(this.indexPath, IndexConstants.MANIFEST_FILENAME));
         } catch (InterruptedException ex) {
             LOG.error("Interrupted", ex);
         }
+        
+        if(!this.failedFiles.isEmpty()) {
+            throw new IOException("indexing failed for " + this.failedFiles.size() + " files - " + this.failedFiles + ", resume or update the index to index them again");
+        }
     }
 
-    private void cleanUpDirectory(File indexPath) {
+    static void cleanUpDirectory(File indexPath) {
         File[] listFiles = indexPath.listFiles();
         for(File f : listFiles) {
             if(f.isFile()) {
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.classify.beans.TaxonTreeDescription;
+import biospectra.taxdb.TaxonomyTree;
+import biospectra.utils.FastaFileHelper;
+import biospectra.utils.JsonSerializer;
+import biospectra.utils.PackedKmerIterator;
+import biospectra.utils.SequenceReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * In-heap index from canonical packed k-mers to the reference files
+ * containing them, for small reference panels.
+ * <p>
+ * Each reference file is a document. K-mers are kept in a primitive
+ * open-addressing table whose slots point into a single array of doc-id
+ * lists, so lookups do not box or allocate. The index is built from FASTA
+ * files in two passes (doc frequencies, then doc ids) and can be saved to
+ * and reloaded from a single file.
+ *
+ * @author iychoi
+ */
+public class KmerHashIndex {
+    
+    private static final Log LOG = LogFactory.getLog(KmerHashIndex.class);
+    
+    public static final int MAX_KMER_SIZE = PackedKmerIterator.MAX_KMER_SIZE;
+    
+    private static final String CODEC_NAME = "BioSpectraKmerHashIndex";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    // a canonical k-mer never has all bits set
+    private static final long EMPTY_KEY = -1;
+    
+    private int kmerSize;
+    private int[] docTaxids;
+    private TaxonomyTree taxonomyTree;
+    private long[] keys;
+    private int mask;
+    private int size;
+    // postings of a slot are postings[postingStarts[slot]] to postings[postingStarts[slot + 1]]
+    private int[] postingStarts;
+    private int[] postings;
+    
+    private KmerHashIndex() {
+    }
+    
+    /**
+     * Builds an index of the reference files
+     */
+    public static KmerHashIndex build(List<File> fastaDocs, int kmerSize) throws Exception {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        if(kmerSize <= 0 || kmerSize > MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + MAX_KMER_SIZE);
+        }
+        
+        LOG.info("building k-mer hash index of " + fastaDocs.size() + " reference files started");
+        long start = System.currentTimeMillis();
+        
+        KmerHashIndex index = new KmerHashIndex();
+        index.kmerSize = kmerSize;
+        index.taxonomyTree = new TaxonomyTree();
+        index.docTaxids = new int[fastaDocs.size()];
+        for(int i=0;i<fastaDocs.size();i++) {
+            String taxonTree = Indexer.readTaxonTree(FastaFileHelper.findTaxonHierarchyDoc(fastaDocs.get(i)));
+            index.docTaxids[i] = Indexer.getTaxonId(taxonTree);
+            if(index.docTaxids[i] > 0) {
+                index.taxonomyTree.addLineage(TaxonTreeDescription.createInstance(taxonTree.trim()).getTaxonomyTree());
+            }
+        }
+        
+        PackedKmerIterator iterator = new PackedKmerIterator(kmerSize, true);
+        
+        // pass 1 : distinct k-mers and their doc frequencies
+        index.keys = new long[INITIAL_CAPACITY];
+        Arrays.fill(index.keys, EMPTY_KEY);
+        index.mask = INITIAL_CAPACITY - 1;
+        int[] lastDocs = new int[INITIAL_CAPACITY];
+        int[] docFreqs = new int[INITIAL_CAPACITY];
+        for(int doc=0;doc<fastaDocs.size();doc++) {
+            SequenceReader reader = SequenceReader.open(fastaDocs.get(doc));
+            while(reader.next()) {
+                iterator.reset(reader.getSequence());
+                while(iterator.next()) {
+                    int slot = index.findSlot(iterator.getKmer());
+                    if(index.keys[slot] == EMPTY_KEY) {
+                        index.keys[slot] = iterator.getKmer();
+                        lastDocs[slot] = -1;
+                        index.size++;
+                        
+                        if(index.size > index.keys.length * MAX_LOAD_FACTOR) {
+                            int[][] values = index.rehash(lastDocs, docFreqs);
+                            lastDocs = values[0];
+                            docFreqs = values[1];
+                            slot = index.findSlot(iterator.getKmer());
+                        }
+                    }
+                    
+                    if(lastDocs[slot] != doc) {
+                        lastDocs[slot] = doc;
+                        docFreqs[slot]++;
+                    }
+                }
+            }
+            reader.close();
+        }
+        
+        long totalPostings = 0;
+        index.postingStarts = new int[index.keys.length + 1];
+        for(int slot=0;slot<index.keys.length;slot++) {
+            index.postingStarts[slot] = (int) totalPostings;
+            totalPostings += docFreqs[slot];
+            if(totalPostings > ArrayUtil.MAX_ARRAY_LENGTH) {
+                throw new IllegalArgumentException("too many postings for a k-mer hash index - references have to be indexed in lucene");
+            }
+        }
+        index.postingStarts[index.keys.length] = (int) totalPostings;
+        
+        // pass 2 : doc ids, written in increasing order
+        index.postings = new int[(int) totalPostings];
+        Arrays.fill(lastDocs, -1);
+        Arrays.fill(docFreqs, 0);
+        for(int doc=0;doc<fastaDocs.size();doc++) {
+            SequenceReader reader = SequenceReader.open(fastaDocs.get(doc));
+            while(reader.next()) {
+                iterator.reset(reader.getSequence());
+                while(iterator.next()) {
+                    int slot = index.findSlot(iterator.getKmer());
+                    if(lastDocs[slot] != doc) {
+                        lastDocs[slot] = doc;
+                        index.postings[index.postingStarts[slot] + docFreqs[slot]] = doc;
+                        docFreqs[slot]++;
+                    }
+                }
+            }
+            reader.close();
+        }
+        
+        long end = System.currentTimeMillis();
+        LOG.info("building k-mer hash index finished - " + (end - start) + " milliseconds");
+        LOG.info("distinct k-mers : " + index.size + ", postings : " + totalPostings + ", slots : " + index.keys.length);
+        return index;
+    }
+    
+    /**
+     * Returns the slot of a k-mer, or the empty slot it would be placed in
+     */
+    private int findSlot(long kmer) {
+        int slot = (int) (KmerLcaTable.hash(kmer) & this.mask);
+        while(this.keys[slot] != kmer && this.keys[slot] != EMPTY_KEY) {
+            slot = (slot + 1) & this.mask;
+        }
+        return slot;
+    }
+    
+    /**
+     * Doubles the table and moves values of slots along with their keys
+     */
+    private int[][] rehash(int[]... values) {
+        if(this.keys.length >= MAX_CAPACITY) {
+            throw new IllegalArgumentException("too many k-mers for a k-mer hash index - " + this.size);
+        }
+        
+        long[] oldKeys = this.keys;
+        int capacity = oldKeys.length << 1;
+        this.keys = new long[capacity];
+        Arrays.fill(this.keys, EMPTY_KEY);
+        this.mask = capacity - 1;
+        
+        int[][] newValues = new int[values.length][capacity];
+        for(int i=0;i<oldKeys.length;i++) {
+            if(oldKeys[i] == EMPTY_KEY) {
+                continue;
+            }
+            
+            int slot = findSlot(oldKeys[i]);
+            this.keys[slot] = oldKeys[i];
+            for(int v=0;v<values.length;v++) {
+                newValues[v][slot] = values[v][i];
+            }
+        }
+        return newValues;
+    }
+    
+    /**
+     * Loads an index saved to a file
+     */
+    public static KmerHashIndex load(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        Directory dir = new MMapDirectory(file.getAbsoluteFile().getParentFile().toPath());
+        try {
+            ChecksumIndexInput input = dir.openChecksumInput(file.getName(), IOContext.READONCE);
+            try {
+                CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+                KmerHashIndex index = new KmerHashIndex();
+                index.kmerSize = input.readVInt();
+                
+                JsonSerializer serializer = new JsonSerializer();
+                index.taxonomyTree = (TaxonomyTree) serializer.fromJson(input.readString(), TaxonomyTree.class);
+                index.docTaxids = new int[input.readVInt()];
+                for(int i=0;i<index.docTaxids.length;i++) {
+                    index.docTaxids[i] = input.readVInt();
+                }
+                
+                index.size = input.readVInt();
+                index.keys = new long[input.readVInt()];
+                index.mask = index.keys.length - 1;
+                for(int i=0;i<index.keys.length;i++) {
+                    index.keys[i] = input.readLong();
+                }
+                
+                index.postingStarts = new int[index.keys.length + 1];
+                for(int i=1;i<index.postingStarts.length;i++) {
+                    index.postingStarts[i] = index.postingStarts[i - 1] + input.readVInt();
+                }
+                
+                // doc ids of a k-mer are increasing and stored as deltas
+                index.postings = new int[index.postingStarts[index.keys.length]];
+                for(int slot=0;slot<index.keys.length;slot++) {
+                    int doc = 0;
+                    for(int i=index.postingStarts[slot];i<index.postingStarts[slot + 1];i++) {
+                        doc += input.readVInt();
+                        index.postings[i] = doc;
+                    }
+                }
+                
+                CodecUtil.checkFooter(input);
+                return index;
+            } finally {
+                input.close();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+    
+    /**
+     * Saves the index to a single file
+     */
+    public void save(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(!parent.exists()) {
+            parent.mkdirs();
+        }
+        
+        Directory dir = new MMapDirectory(parent.toPath());
+        try {
+            if(file.exists()) {
+                dir.deleteFile(file.getName());
+            }
+            
+            IndexOutput output = dir.createOutput(file.getName(), IOContext.DEFAULT);
+            try {
+                CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+                output.writeVInt(this.kmerSize);
+                output.writeString(this.taxonomyTree.toJson());
+                output.writeVInt(this.docTaxids.length);
+                for(int taxid : this.docTaxids) {
+                    output.writeVInt(taxid);
+                }
+                
+                output.writeVInt(this.size);
+                output.writeVInt(this.keys.length);
+                for(long key : this.keys) {
+                    output.writeLong(key);
+                }
+                
+                for(int slot=0;slot<this.keys.length;slot++) {
+                    output.writeVInt(this.postingStarts[slot + 1] - this.postingStarts[slot]);
+                }
+                
+                for(int slot=0;slot<this.keys.length;slot++) {
+                    int doc = 0;
+                    for(int i=this.postingStarts[slot];i<this.postingStarts[slot + 1];i++) {
+                        output.writeVInt(this.postings[i] - doc);
+                        doc = this.postings[i];
+                    }
+                }
+                CodecUtil.writeFooter(output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+    
+    public int getKmerSize() {
+        return this.kmerSize;
+    }
+    
+    /**
+     * Returns the number of distinct k-mers
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    public int getDocCount() {
+        return this.docTaxids.length;
+    }
+    
+    /**
+     * Returns the taxid of a document, 0 if the reference has no taxonomy
+     */
+    public int getTaxonId(int doc) {
+        return this.docTaxids[doc];
+    }
+    
+    public TaxonomyTree getTaxonomyTree() {
+        return this.taxonomyTree;
+    }
+    
+    /**
+     * Adds one to the count of each document containing a canonical k-mer.
+     * Returns false if no document contains the k-mer
+     */
+    public boolean countDocs(long kmer, int[] counts) {
+        int slot = findSlot(kmer);
+        if(this.keys[slot] == EMPTY_KEY) {
+            return false;
+        }
+        
+        for(int i=this.postingStarts[slot];i<this.postingStarts[slot + 1];i++) {
+            counts[this.postings[i]]++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.utils.PackedKmerIterator;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+
+/**
+ * Memory-mapped open-addressing table from canonical packed k-mers to the
+ * taxid of the lowest common ancestor of the references containing them.
+ * <p>
+ * Keys and values are stored in two arrays of a power-of-two capacity and
+ * probed linearly from the hashed slot. Reads are absolute, so a table is
+ * shared by all classifier threads.
+ *
+ * @author iychoi
+ */
+public class KmerLcaTable implements Closeable {
+    
+    public static final int MAX_KMER_SIZE = PackedKmerIterator.MAX_KMER_SIZE;
+    // slots of a table are kept in java arrays while it is built
+    public static final long MAX_CAPACITY = 1L << 30;
+    public static final double MAX_LOAD_FACTOR = 0.7;
+    
+    private static final String CODEC_NAME = "BioSpectraKmerLcaTable";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+    // a canonical k-mer never has all bits set
+    static final long EMPTY_KEY = -1;
+    
+    private Directory directory;
+    private IndexInput input;
+    private RandomAccessInput keys;
+    private RandomAccessInput values;
+    private int kmerSize;
+    private long size;
+    private long mask;
+    
+    public KmerLcaTable(File indexPath, boolean preload) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        File tableFile = new File(indexPath, IndexConstants.KMER_LCA_TABLE_FILENAME);
+        if(!tableFile.exists()) {
+            throw new IllegalArgumentException("k-mer LCA table does not exist in " + indexPath.getAbsolutePath());
+        }
+        
+        MMapDirectory dir = new MMapDirectory(indexPath.toPath());
+        dir.setPreload(preload);
+        this.directory = dir;
+        this.input = dir.openInput(IndexConstants.KMER_LCA_TABLE_FILENAME, IOContext.READ);
+        
+        CodecUtil.checkHeader(this.input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+        this.kmerSize = this.input.readVInt();
+        this.size = this.input.readVLong();
+        long capacity = this.input.readVLong();
+        this.mask = capacity - 1;
+        
+        long start = this.input.getFilePointer();
+        this.keys = this.input.randomAccessSlice(start, capacity * 8);
+        this.values = this.input.randomAccessSlice(start + capacity * 8, capacity * 4);
+    }
+    
+    /**
+     * Returns the capacity for the number of k-mers
+     */
+    static long getCapacity(long size) {
+        long capacity = 1;
+        while(capacity * MAX_LOAD_FACTOR < size + 1) {
+            capacity <<= 1;
+        }
+        
+        if(capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("too many k-mers for a k-mer LCA table - " + size);
+        }
+        return capacity;
+    }
+    
+    /**
+     * Returns the first slot to probe for a k-mer
+     */
+    static long hash(long kmer) {
+        // finalizer of murmur3
+        long h = kmer;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * Writes a table built in memory
+     */
+    static void write(File indexPath, int kmerSize, long size, long[] keys, int[] values) throws IOException {
+        Directory dir = new MMapDirectory(indexPath.toPath());
+        try {
+            IndexOutput output = dir.createOutput(IndexConstants.KMER_LCA_TABLE_FILENAME, IOContext.DEFAULT);
+            try {
+                CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+                output.writeVInt(kmerSize);
+                output.writeVLong(size);
+                output.writeVLong(keys.length);
+                for(int i=0;i<keys.length;i++) {
+                    output.writeLong(keys[i]);
+                }
+                for(int i=0;i<values.length;i++) {
+                    output.writeInt(values[i]);
+                }
+                CodecUtil.writeFooter(output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+    
+    public int getKmerSize() {
+        return this.kmerSize;
+    }
+    
+    /**
+     * Returns the number of k-mers in the table
+     */
+    public long size() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the LCA taxid of a canonical k-mer, 0 if the k-mer is absent
+     */
+    public int get(long kmer) throws IOException {
+        long slot = hash(kmer) & this.mask;
+        while(true) {
+            long key = this.keys.readLong(slot * 8);
+            if(key == kmer) {
+                return this.values.readInt(slot * 4);
+            } else if(key == EMPTY_KEY) {
+                return 0;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        this.input.close();
+        this.directory.close();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.Configuration;
+import biospectra.classify.beans.TaxonTreeDescription;
+import biospectra.taxdb.TaxonomyTree;
+import biospectra.utils.FastaFileHelper;
+import biospectra.utils.PackedKmerIterator;
+import biospectra.utils.SequenceReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.OfflineSorter;
+
+/**
+ * Builds a k-mer LCA table from reference files and their taxonomy trees.
+ * <p>
+ * Canonical k-mers of each reference are written as (k-mer, taxid) records
+ * and sorted offline. Taxa of records of the same k-mer are folded to their
+ * lowest common ancestor while the sorted records are inserted into the
+ * table. The taxonomy of the references is saved next to the table.
+ *
+ * @author iychoi
+ */
+public class KmerLcaTableBuilder {
+    
+    private static final Log LOG = LogFactory.getLog(KmerLcaTableBuilder.class);
+    
+    private static final int RECORD_SIZE = 12;
+    private static final int KMER_BUFFER_SIZE = 1 << 22;
+    private static final String RECORDS_FILENAME = "kmers";
+    private static final String SORTED_RECORDS_FILENAME = "kmers.sorted";
+    
+    private File indexPath;
+    private int kmerSize;
+    private String tempPath;
+    private int sortBufferSize;
+    
+    public KmerLcaTableBuilder(Configuration conf) {
+        if(conf == null) {
+            throw new IllegalArgumentException("conf is null");
+        }
+        
+        if(conf.getIndexPath() == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(conf.getKmerSize() <= 0 || conf.getKmerSize() > KmerLcaTable.MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + KmerLcaTable.MAX_KMER_SIZE + " for a k-mer LCA table");
+        }
+        
+        if(conf.getIndexBulkSortBuffer() < 0) {
+            throw new IllegalArgumentException("indexBulkSortBuffer must be equal or larger than 0");
+        }
+        
+        this.indexPath = new File(conf.getIndexPath());
+        this.kmerSize = conf.getKmerSize();
+        this.tempPath = conf.getIndexBulkTempPath();
+        this.sortBufferSize = conf.getIndexBulkSortBuffer();
+    }
+    
+    private static void writeInt(byte[] record, int offset, int value) {
+        record[offset] = (byte) (value >>> 24);
+        record[offset + 1] = (byte) (value >>> 16);
+        record[offset + 2] = (byte) (value >>> 8);
+        record[offset + 3] = (byte) value;
+    }
+    
+    private static int readInt(byte[] record, int offset) {
+        return ((record[offset] & 0xFF) << 24) | ((record[offset + 1] & 0xFF) << 16) | ((record[offset + 2] & 0xFF) << 8) | (record[offset + 3] & 0xFF);
+    }
+    
+    /**
+     * Writes distinct k-mers of a buffer as records of a taxon
+     */
+    private static void flushKmers(OfflineSorter.ByteSequencesWriter writer, byte[] record, long[] kmers, int numKmers, int taxid) throws IOException {
+        Arrays.sort(kmers, 0, numKmers);
+        for(int i=0;i<numKmers;i++) {
+            if(i > 0 && kmers[i] == kmers[i - 1]) {
+                continue;
+            }
+            
+            writeInt(record, 0, (int) (kmers[i] >>> 32));
+            writeInt(record, 4, (int) kmers[i]);
+            writeInt(record, 8, taxid);
+            writer.write(record);
+        }
+    }
+    
+    private void writeRecords(List<File> fastaDocs, int[] taxids, Path recordsPath) throws Exception {
+        OfflineSorter.ByteSequencesWriter writer = new OfflineSorter.ByteSequencesWriter(recordsPath);
+        try {
+            byte[] record = new byte[RECORD_SIZE];
+            long[] kmers = new long[KMER_BUFFER_SIZE];
+            PackedKmerIterator iterator = new PackedKmerIterator(this.kmerSize, true);
+            for(int i=0;i<fastaDocs.size();i++) {
+                if(taxids[i] <= 0) {
+                    continue;
+                }
+                
+                int numKmers = 0;
+                SequenceReader reader = SequenceReader.open(fastaDocs.get(i));
+                while(reader.next()) {
+                    iterator.reset(reader.getSequence());
+                    while(iterator.next()) {
+                        if(numKmers == kmers.length) {
+                            flushKmers(writer, record, kmers, numKmers, taxids[i]);
+                            numKmers = 0;
+                        }
+                        kmers[numKmers++] = iterator.getKmer();
+                    }
+                }
+                reader.close();
+                flushKmers(writer, record, kmers, numKmers, taxids[i]);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Reads sorted records and calls the visitor once per distinct k-mer with
+     * the LCA of its taxa
+     */
+    private void reduceRecords(Path sortedPath, TaxonomyTree tree, Map<Long, Integer> lcaCache, KmerVisitor visitor) throws IOException {
+        OfflineSorter.ByteSequencesReader reader = new OfflineSorter.ByteSequencesReader(sortedPath);
+        try {
+            BytesRefBuilder record = new BytesRefBuilder();
+            long kmer = KmerLcaTable.EMPTY_KEY;
+            int lca = 0;
+            while(reader.read(record)) {
+                byte[] bytes = record.bytes();
+                long recordKmer = ((long) readInt(bytes, 0) << 32) | (readInt(bytes, 4) & 0xFFFFFFFFL);
+                int taxid = readInt(bytes, 8);
+                
+                if(recordKmer != kmer) {
+                    if(kmer != KmerLcaTable.EMPTY_KEY) {
+                        visitor.visit(kmer, lca);
+                    }
+                    kmer = recordKmer;
+                    lca = taxid;
+                } else if(lca != taxid) {
+                    // the same pairs of taxa repeat for many k-mers
+                    long pair = lca < taxid ? ((long) lca << 32) | taxid : ((long) taxid << 32) | lca;
+                    Integer cached = lcaCache.get(pair);
+                    if(cached == null) {
+                        cached = tree.getLowestCommonAncestor(lca, taxid);
+                        lcaCache.put(pair, cached);
+                    }
+                    lca = cached;
+                }
+            }
+            
+            if(kmer != KmerLcaTable.EMPTY_KEY) {
+                visitor.visit(kmer, lca);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    public void build(List<File> fastaDocs) throws Exception {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        if(!this.indexPath.exists()) {
+            this.indexPath.mkdirs();
+        }
+        Indexer.cleanUpDirectory(this.indexPath);
+        
+        LOG.info("building k-mer LCA table of " + fastaDocs.size() + " reference files started");
+        long start = System.currentTimeMillis();
+        
+        TaxonomyTree tree = new TaxonomyTree();
+        int[] taxids = new int[fastaDocs.size()];
+        for(int i=0;i<fastaDocs.size();i++) {
+            String taxonTree = Indexer.readTaxonTree(FastaFileHelper.findTaxonHierarchyDoc(fastaDocs.get(i)));
+            taxids[i] = Indexer.getTaxonId(taxonTree);
+            if(taxids[i] <= 0) {
+                LOG.warn("reference " + fastaDocs.get(i).getName() + " has no taxonomy tree - skipped");
+                continue;
+            }
+            tree.addLineage(TaxonTreeDescription.createInstance(taxonTree.trim()).getTaxonomyTree());
+        }
+        
+        Path tempBase = this.tempPath == null || this.tempPath.isEmpty() ? OfflineSorter.defaultTempDir() : Paths.get(this.tempPath);
+        Files.createDirectories(tempBase);
+        Path tempDir = Files.createTempDirectory(tempBase, "biospectra-lca-");
+        
+        try {
+            Path recordsPath = tempDir.resolve(RECORDS_FILENAME);
+            Path sortedPath = tempDir.resolve(SORTED_RECORDS_FILENAME);
+            writeRecords(fastaDocs, taxids, recordsPath);
+            
+            OfflineSorter.BufferSize bufferSize = this.sortBufferSize > 0 ? OfflineSorter.BufferSize.megabytes(this.sortBufferSize) : OfflineSorter.BufferSize.automatic();
+            OfflineSorter sorter = new OfflineSorter(OfflineSorter.DEFAULT_COMPARATOR, bufferSize, tempDir, OfflineSorter.MAX_TEMPFILES);
+            sorter.sort(recordsPath, sortedPath);
+            Files.delete(recordsPath);
+            
+            Map<Long, Integer> lcaCache = new HashMap<Long, Integer>();
+            
+            // distinct k-mers are counted first to size the table
+            final long[] counter = new long[1];
+            reduceRecords(sortedPath, tree, lcaCache, new KmerVisitor() {
+
+                @Override
+                public void visit(long kmer, int taxid) {
+                    counter[0]++;
+                }
+            });
+            
+            long capacity = KmerLcaTable.getCapacity(counter[0]);
+            final long[] keys = new long[(int) capacity];
+            final int[] values = new int[(int) capacity];
+            final long mask = capacity - 1;
+            Arrays.fill(keys, KmerLcaTable.EMPTY_KEY);
+            
+            reduceRecords(sortedPath, tree, lcaCache, new KmerVisitor() {
+
+                @Override
+                public void visit(long kmer, int taxid) {
+                    int slot = (int) (KmerLcaTable.hash(kmer) & mask);
+                    while(keys[slot] != KmerLcaTable.EMPTY_KEY) {
+                        slot = (int) ((slot + 1) & mask);
+                    }
+                    keys[slot] = kmer;
+                    values[slot] = taxid;
+                }
+            });
+            
+            KmerLcaTable.write(this.indexPath, this.kmerSize, counter[0], keys, values);
+            tree.saveTo(new File(this.indexPath, IndexConstants.TAXONOMY_TREE_FILENAME));
+            
+            long end = System.currentTimeMillis();
+            LOG.info("building k-mer LCA table finished - " + (end - start) + " milliseconds");
+            LOG.info("distinct k-mers : " + counter[0] + ", slots : " + capacity + ", taxa : " + tree.size());
+        } finally {
+            Indexer.cleanUpDirectory(tempDir.toFile());
+            tempDir.toFile().delete();
+        }
+    }
+    
+    private interface KmerVisitor {
+        void visit(long kmer, int taxid);
+    }
+}
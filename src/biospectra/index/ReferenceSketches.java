@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.utils.SequenceReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * FracMinHash sketches of reference files, used to screen a sample for the
+ * references it may contain before its reads are searched
+ *
+ * @author iychoi
+ */
+public class ReferenceSketches {
+    
+    private static final Log LOG = LogFactory.getLog(ReferenceSketches.class);
+    
+    private static final String CODEC_NAME = "BioSpectraReferenceSketches";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+    
+    private int kmerSize;
+    private int scaled;
+    private String[] names;
+    private long[][] sketches;
+    
+    private ReferenceSketches() {
+    }
+    
+    public static boolean exists(File indexPath) {
+        return new File(indexPath, IndexConstants.SKETCH_FILENAME).exists();
+    }
+    
+    /**
+     * Sketches reference files, one sketch per file
+     */
+    public static ReferenceSketches build(List<File> fastaDocs, int kmerSize, int scaled) throws Exception {
+        if(fastaDocs == null) {
+            throw new IllegalArgumentException("fastaDocs is null");
+        }
+        
+        LOG.info("sketching " + fastaDocs.size() + " reference files started");
+        long start = System.currentTimeMillis();
+        
+        ReferenceSketches sketches = new ReferenceSketches();
+        sketches.kmerSize = kmerSize;
+        sketches.scaled = scaled;
+        sketches.names = new String[fastaDocs.size()];
+        sketches.sketches = new long[fastaDocs.size()][];
+        for(int i=0;i<fastaDocs.size();i++) {
+            FracMinHashSketch sketch = new FracMinHashSketch(kmerSize, scaled);
+            SequenceReader reader = SequenceReader.open(fastaDocs.get(i));
+            while(reader.next()) {
+                sketch.add(reader.getSequence());
+            }
+            reader.close();
+            
+            sketches.names[i] = fastaDocs.get(i).getName();
+            sketches.sketches[i] = sketch.getHashes();
+        }
+        
+        long end = System.currentTimeMillis();
+        LOG.info("sketching " + fastaDocs.size() + " reference files finished - " + (end - start) + " milliseconds");
+        return sketches;
+    }
+    
+    /**
+     * Loads sketches of an index
+     */
+    public static ReferenceSketches load(File indexPath) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        Directory dir = new MMapDirectory(indexPath.toPath());
+        try {
+            ChecksumIndexInput input = dir.openChecksumInput(IndexConstants.SKETCH_FILENAME, IOContext.READONCE);
+            try {
+                CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+                ReferenceSketches sketches = new ReferenceSketches();
+                sketches.kmerSize = input.readVInt();
+                sketches.scaled = input.readVInt();
+                int count = input.readVInt();
+                sketches.names = new String[count];
+                sketches.sketches = new long[count][];
+                for(int i=0;i<count;i++) {
+                    sketches.names[i] = input.readString();
+                    // hashes are increasing and stored as deltas
+                    long[] hashes = new long[input.readVInt()];
+                    long hash = 0;
+                    for(int j=0;j<hashes.length;j++) {
+                        hash += input.readVLong();
+                        hashes[j] = hash;
+                    }
+                    sketches.sketches[i] = hashes;
+                }
+                CodecUtil.checkFooter(input);
+                return sketches;
+            } finally {
+                input.close();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+    
+    /**
+     * Saves sketches to an index
+     */
+    public void save(File indexPath) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        if(!indexPath.exists()) {
+            indexPath.mkdirs();
+        }
+        
+        Directory dir = new MMapDirectory(indexPath.toPath());
+        try {
+            if(exists(indexPath)) {
+                dir.deleteFile(IndexConstants.SKETCH_FILENAME);
+            }
+            
+            IndexOutput output = dir.createOutput(IndexConstants.SKETCH_FILENAME, IOContext.DEFAULT);
+            try {
+                CodecUtil.writeHeader(output, CODEC_NAME, VERSION_CURRENT);
+                output.writeVInt(this.kmerSize);
+                output.writeVInt(this.scaled);
+                output.writeVInt(this.names.length);
+                for(int i=0;i<this.names.length;i++) {
+                    output.writeString(this.names[i]);
+                    output.writeVInt(this.sketches[i].length);
+                    long hash = 0;
+                    for(long h : this.sketches[i]) {
+                        output.writeVLong(h - hash);
+                        hash = h;
+                    }
+                }
+                CodecUtil.writeFooter(output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            dir.close();
+        }
+    }
+    
+    public int getKmerSize() {
+        return this.kmerSize;
+    }
+    
+    public int getScaled() {
+        return this.scaled;
+    }
+    
+    public int getReferenceCount() {
+        return this.names.length;
+    }
+    
+    /**
+     * Returns the filename of a reference
+     */
+    public String getReferenceName(int ref) {
+        return this.names[ref];
+    }
+    
+    /**
+     * Returns the number of hashes of a reference
+     */
+    public int getSketchSize(int ref) {
+        return this.sketches[ref].length;
+    }
+    
+    /**
+     * Returns the estimated fraction of k-mers of a reference found in a
+     * sample, or 0 if the reference has no hashes
+     */
+    public double getContainment(int ref, long[] sampleHashes) {
+        long[] hashes = this.sketches[ref];
+        if(hashes.length == 0) {
+            return 0;
+        }
+        return (double) FracMinHashSketch.countShared(hashes, sampleHashes) / hashes.length;
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.index;
+
+import biospectra.lucene.KmerTermCodec;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.OfflineSorter;
+
+/**
+ * A reader that exposes sorted k-mer postings as the sequence field of a
+ * segment, so that IndexWriter.addIndexes writes them without inverting
+ * documents.
+ * <p>
+ * Records are (sort key, docId, position) tuples sorted by BulkIndexer. Terms
+ * are read in a single forward pass, which is all a merge needs, so seeking
+ * is not supported.
+ *
+ * @author iychoi
+ */
+class SortedKmerLeafReader extends LeafReader {
+    
+    static final int RECORD_SIZE = 16;
+    
+    private Path sortedPath;
+    private KmerTermCodec codec;
+    private long[] norms;
+    private FieldInfos fieldInfos;
+    private List<OfflineSorter.ByteSequencesReader> openReaders = new ArrayList<OfflineSorter.ByteSequencesReader>();
+    
+    /**
+     * @param sortedPath sorted records
+     * @param codec codec that converts sort keys to terms
+     * @param norms norm values of documents
+     */
+    public SortedKmerLeafReader(Path sortedPath, KmerTermCodec codec, long[] norms) {
+        if(sortedPath == null) {
+            throw new IllegalArgumentException("sortedPath is null");
+        }
+        
+        if(codec == null) {
+            throw new IllegalArgumentException("codec is null");
+        }
+        
+        if(norms == null) {
+            throw new IllegalArgumentException("norms is null");
+        }
+        
+        this.sortedPath = sortedPath;
+        this.codec = codec;
+        this.norms = norms;
+        
+        FieldInfo sequenceFieldInfo = new FieldInfo(IndexConstants.FIELD_SEQUENCE, 0, false, false, false, IndexOptions.DOCS_AND_FREQS_AND_POSITIONS, DocValuesType.NONE, -1, new HashMap<String, String>());
+        this.fieldInfos = new FieldInfos(new FieldInfo[] {sequenceFieldInfo});
+    }
+    
+    static void writeRecord(byte[] record, long sortKey, int docId, int position) {
+        for(int i=0;i<8;i++) {
+            record[i] = (byte) (sortKey >>> (56 - 8 * i));
+        }
+        writeInt(record, 8, docId);
+        writeInt(record, 12, position);
+    }
+    
+    private static void writeInt(byte[] record, int offset, int value) {
+        record[offset] = (byte) (value >>> 24);
+        record[offset + 1] = (byte) (value >>> 16);
+        record[offset + 2] = (byte) (value >>> 8);
+        record[offset + 3] = (byte) value;
+    }
+    
+    private static long readLong(byte[] record) {
+        long value = 0;
+        for(int i=0;i<8;i++) {
+            value = (value << 8) | (record[i] & 0xFF);
+        }
+        return value;
+    }
+    
+    private static int readInt(byte[] record, int offset) {
+        return ((record[offset] & 0xFF) << 24) | ((record[offset + 1] & 0xFF) << 16) | ((record[offset + 2] & 0xFF) << 8) | (record[offset + 3] & 0xFF);
+    }
+    
+    private synchronized OfflineSorter.ByteSequencesReader openReader() throws IOException {
+        OfflineSorter.ByteSequencesReader reader = new OfflineSorter.ByteSequencesReader(this.sortedPath);
+        this.openReaders.add(reader);
+        return reader;
+    }
+    
+    private synchronized void closeReader(OfflineSorter.ByteSequencesReader reader) throws IOException {
+        this.openReaders.remove(reader);
+        reader.close();
+    }
+    
+    private class KmerTermsEnum extends TermsEnum {
+        
+        private OfflineSorter.ByteSequencesReader reader;
+        private BytesRefBuilder record = new BytesRefBuilder();
+        private boolean pending = false;
+        private BytesRefBuilder term = new BytesRefBuilder();
+        private int numDocs;
+        private int[] docs = new int[16];
+        private int[] freqs = new int[16];
+        private int numPositions;
+        private int[] positions = new int[16];
+        
+        KmerTermsEnum() throws IOException {
+            this.reader = openReader();
+        }
+        
+        private boolean readRecord() throws IOException {
+            if(this.reader == null) {
+                return false;
+            }
+            
+            if(!this.reader.read(this.record)) {
+                closeReader(this.reader);
+                this.reader = null;
+                return false;
+            }
+            
+            if(this.record.length() != RECORD_SIZE) {
+                throw new IOException("corrupted k-mer record of " + this.record.length() + " bytes");
+            }
+            return true;
+        }
+        
+        @Override
+        public BytesRef next() throws IOException {
+            if(!this.pending && !readRecord()) {
+                return null;
+            }
+            
+            // collects postings of all records sharing the key
+            byte[] bytes = this.record.bytes();
+            long sortKey = readLong(bytes);
+            int lastDoc = -1;
+            this.numDocs = 0;
+            this.numPositions = 0;
+            do {
+                int doc = readInt(bytes, 8);
+                if(doc != lastDoc) {
+                    this.docs = ArrayUtil.grow(this.docs, this.numDocs + 1);
+                    this.freqs = ArrayUtil.grow(this.freqs, this.numDocs + 1);
+                    this.docs[this.numDocs] = doc;
+                    this.freqs[this.numDocs] = 0;
+                    this.numDocs++;
+                    lastDoc = doc;
+                }
+                this.freqs[this.numDocs - 1]++;
+                this.positions = ArrayUtil.grow(this.positions, this.numPositions + 1);
+                this.positions[this.numPositions++] = readInt(bytes, 12);
+                
+                this.pending = readRecord();
+                bytes = this.record.bytes();
+            } while(this.pending && readLong(bytes) == sortKey);
+            
+            codec.getTerm(sortKey, this.term);
+            return this.term.get();
+        }
+        
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void seekExact(long ord) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public BytesRef term() throws IOException {
+            return this.term.get();
+        }
+        
+        @Override
+        public long ord() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public int docFreq() throws IOException {
+            return this.numDocs;
+        }
+        
+        @Override
+        public long totalTermFreq() throws IOException {
+            return this.numPositions;
+        }
+        
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            return new KmerPostingsEnum(this.docs, this.freqs, this.numDocs, this.positions);
+        }
+    }
+    
+    private static class KmerPostingsEnum extends PostingsEnum {
+        
+        private int[] docs;
+        private int[] freqs;
+        private int numDocs;
+        private int[] positions;
+        private int index = -1;
+        private int positionIndex = 0;
+        private int nextDocPositionIndex = 0;
+        
+        KmerPostingsEnum(int[] docs, int[] freqs, int numDocs, int[] positions) {
+            this.docs = docs;
+            this.freqs = freqs;
+            this.numDocs = numDocs;
+            this.positions = positions;
+        }
+        
+        @Override
+        public int freq() throws IOException {
+            return this.freqs[this.index];
+        }
+        
+        @Override
+        public int nextPosition() throws IOException {
+            return this.positions[this.positionIndex++];
+        }
+        
+        @Override
+        public int startOffset() throws IOException {
+            return -1;
+        }
+        
+        @Override
+        public int endOffset() throws IOException {
+            return -1;
+        }
+        
+        @Override
+        public BytesRef getPayload() throws IOException {
+            return null;
+        }
+        
+        @Override
+        public int docID() {
+            if(this.index < 0) {
+                return -1;
+            }
+            
+            if(this.index >= this.numDocs) {
+                return NO_MORE_DOCS;
+            }
+            return this.docs[this.index];
+        }
+        
+        @Override
+        public int nextDoc() throws IOException {
+            this.index++;
+            if(this.index >= this.numDocs) {
+                return NO_MORE_DOCS;
+            }
+            
+            // positions of the previous document may not have been consumed
+            this.positionIndex = this.nextDocPositionIndex;
+            this.nextDocPositionIndex += this.freqs[this.index];
+            return this.docs[this.index];
+        }
+        
+        @Override
+        public int advance(int target) throws IOException {
+            return slowAdvance(target);
+        }
+        
+        @Override
+        public long cost() {
+            return this.numDocs;
+        }
+    }
+    
+    private class KmerTerms extends Terms {
+        
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new KmerTermsEnum();
+        }
+        
+        @Override
+        public long size() throws IOException {
+            return -1;
+        }
+        
+        @Override
+        public long getSumTotalTermFreq() throws IOException {
+            return -1;
+        }
+        
+        @Override
+        public long getSumDocFreq() throws IOException {
+            return -1;
+        }
+        
+        @Override
+        public int getDocCount() throws IOException {
+            return -1;
+        }
+        
+        @Override
+        public boolean hasFreqs() {
+            return true;
+        }
+        
+        @Override
+        public boolean hasOffsets() {
+            return false;
+        }
+        
+        @Override
+        public boolean hasPositions() {
+            return true;
+        }
+        
+        @Override
+        public boolean hasPayloads() {
+            return false;
+        }
+    }
+    
+    private class KmerFields extends Fields {
+        
+        private Terms terms = new KmerTerms();
+        
+        @Override
+        public Iterator<String> iterator() {
+            return Collections.singletonList(IndexConstants.FIELD_SEQUENCE).iterator();
+        }
+        
+        @Override
+        public Terms terms(String field) throws IOException {
+            if(IndexConstants.FIELD_SEQUENCE.equals(field)) {
+                return this.terms;
+            }
+            return null;
+        }
+        
+        @Override
+        public int size() {
+            return 1;
+        }
+    }
+    
+    @Override
+    public void addCoreClosedListener(CoreClosedListener listener) {
+        addCoreClosedListenerAsReaderClosedListener(this, listener);
+    }
+    
+    @Override
+    public void removeCoreClosedListener(CoreClosedListener listener) {
+        removeCoreClosedListenerAsReaderClosedListener(this, listener);
+    }
+    
+    @Override
+    public Fields fields() throws IOException {
+        return new KmerFields();
+    }
+    
+    @Override
+    public NumericDocValues getNumericDocValues(String field) throws IOException {
+        return null;
+    }
+    
+    @Override
+    public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+        return null;
+    }
+    
+    @Override
+    public SortedDocValues getSortedDocValues(String field) throws IOException {
+        return null;
+    }
+    
+    @Override
+    public SortedNumericDocValues getSortedNumericDocValues(String field) throws IOException {
+        return null;
+    }
+    
+    @Override
+    public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+        return null;
+    }
+    
+    @Override
+    public Bits getDocsWithField(String field) throws IOException {
+        return null;
+    }
+    
+    @Override
+    public NumericDocValues getNormValues(String field) throws IOException {
+        if(!IndexConstants.FIELD_SEQUENCE.equals(field)) {
+            return null;
+        }
+        
+        return new NumericDocValues() {
+
+            @Override
+            public long get(int docID) {
+                return norms[docID];
+            }
+        };
+    }
+    
+    @Override
+    public FieldInfos getFieldInfos() {
+        return this.fieldInfos;
+    }
+    
+    @Override
+    public Bits getLiveDocs() {
+        return null;
+    }
+    
+    @Override
+    public void checkIntegrity() throws IOException {
+    }
+    
+    @Override
+    public Fields getTermVectors(int docID) throws IOException {
+        return null;
+    }
+    
+    @Override
+    public int numDocs() {
+        return this.norms.length;
+    }
+    
+    @Override
+    public int maxDoc() {
+        return this.norms.length;
+    }
+    
+    @Override
+    public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+    }
+    
+    @Override
+    protected synchronized void doClose() throws IOException {
+        IOUtils.close(this.openReaders);
+        this.openReaders.clear();
+    }
+}
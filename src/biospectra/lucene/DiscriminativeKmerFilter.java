@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.lucene;
+
+import biospectra.utils.PackedKmerIterator;
+import java.io.IOException;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.FilteringTokenFilter;
+import org.apache.lucene.util.LongBitSet;
+
+/**
+ * Removes k-mers that are not in a set of discriminative k-mers. The set is
+ * indexed by the packed form of the smaller of both strands of a k-mer.
+ * <p>
+ * Positions of removed k-mers are kept as gaps, so positions of the remaining
+ * k-mers still match the k-mer positions in a read.
+ *
+ * @author iychoi
+ */
+public final class DiscriminativeKmerFilter extends FilteringTokenFilter {
+    
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private LongBitSet kmers;
+    
+    public DiscriminativeKmerFilter(TokenStream in, LongBitSet kmers) {
+        super(in);
+        
+        if(kmers == null) {
+            throw new IllegalArgumentException("kmers is null");
+        }
+        
+        this.kmers = kmers;
+    }
+    
+    @Override
+    protected boolean accept() throws IOException {
+        char[] buffer = this.termAtt.buffer();
+        int length = this.termAtt.length();
+        
+        long forward = 0;
+        long reverse = 0;
+        for(int i=0;i<length;i++) {
+            int code = PackedKmerIterator.encode(buffer[i]);
+            if(code < 0) {
+                return false;
+            }
+            
+            forward = (forward << 2) | code;
+            reverse |= (long) (3 - code) << (2 * i);
+        }
+        
+        return this.kmers.get(Math.min(forward, reverse));
+    }
+}
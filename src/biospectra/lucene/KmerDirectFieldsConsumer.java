@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.lucene;
+
+import java.io.IOException;
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.BlockPackedWriter;
+import org.apache.lucene.util.packed.MonotonicBlockPackedWriter;
+
+/**
+ * Writes the terms file of KmerDirectPostingsFormat.
+ * <p>
+ * Each field is written as packed columns addressed by term ordinal (term
+ * ranks of k-mers, document frequencies, total term frequencies, postings
+ * pointers and offsets into the postings metadata), the postings metadata and
+ * an optional bitmap from term ranks to term ordinals. A directory of fields
+ * is written at the end of the file.
+ *
+ * @author iychoi
+ */
+class KmerDirectFieldsConsumer extends FieldsConsumer {
+    
+    private SegmentWriteState state;
+    private PostingsWriterBase postingsWriter;
+    private KmerTermCodec termCodec;
+    private IndexOutput out;
+    private RAMOutputStream metadataBuffer = new RAMOutputStream();
+    private RAMOutputStream directoryBuffer = new RAMOutputStream();
+    private int fieldCounter;
+    private boolean closed;
+    
+    KmerDirectFieldsConsumer(SegmentWriteState state, PostingsWriterBase postingsWriter, int kmerSize) throws IOException {
+        this.state = state;
+        this.postingsWriter = postingsWriter;
+        this.termCodec = new KmerTermCodec(kmerSize);
+        
+        String fileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, KmerDirectPostingsFormat.TERMS_EXTENSION);
+        this.out = state.directory.createOutput(fileName, state.context);
+        boolean success = false;
+        try {
+            CodecUtil.writeIndexHeader(this.out, KmerDirectPostingsFormat.TERMS_CODEC, KmerDirectPostingsFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+            postingsWriter.init(this.out, state);
+            success = true;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(this.out);
+            }
+        }
+    }
+    
+    @Override
+    public void write(Fields fields) throws IOException {
+        for(String field : fields) {
+            Terms terms = fields.terms(field);
+            if(terms == null) {
+                continue;
+            }
+            
+            writeField(this.state.fieldInfos.fieldInfo(field), terms);
+        }
+    }
+    
+    private void writeField(FieldInfo fieldInfo, Terms terms) throws IOException {
+        int longsSize = this.postingsWriter.setField(fieldInfo);
+        boolean hasFreqs = fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
+        FixedBitSet docsSeen = new FixedBitSet(this.state.segmentInfo.maxDoc());
+        long[] longs = new long[longsSize];
+        
+        // columns are buffered while the postings are written and copied to
+        // the terms file at the end of the field
+        RAMOutputStream rankBuffer = new RAMOutputStream();
+        RAMOutputStream docFreqBuffer = new RAMOutputStream();
+        RAMOutputStream totalTermFreqBuffer = new RAMOutputStream();
+        RAMOutputStream metadataOffsetBuffer = new RAMOutputStream();
+        RAMOutputStream[] pointerBuffers = new RAMOutputStream[longsSize];
+        MonotonicBlockPackedWriter rankWriter = new MonotonicBlockPackedWriter(rankBuffer, KmerDirectPostingsFormat.BLOCK_SIZE);
+        BlockPackedWriter docFreqWriter = new BlockPackedWriter(docFreqBuffer, KmerDirectPostingsFormat.BLOCK_SIZE);
+        BlockPackedWriter totalTermFreqWriter = new BlockPackedWriter(totalTermFreqBuffer, KmerDirectPostingsFormat.BLOCK_SIZE);
+        MonotonicBlockPackedWriter metadataOffsetWriter = new MonotonicBlockPackedWriter(metadataOffsetBuffer, KmerDirectPostingsFormat.BLOCK_SIZE);
+        MonotonicBlockPackedWriter[] pointerWriters = new MonotonicBlockPackedWriter[longsSize];
+        for(int i=0;i<longsSize;i++) {
+            pointerBuffers[i] = new RAMOutputStream();
+            pointerWriters[i] = new MonotonicBlockPackedWriter(pointerBuffers[i], KmerDirectPostingsFormat.BLOCK_SIZE);
+        }
+        this.metadataBuffer.reset();
+        metadataOffsetWriter.add(0);
+        
+        long[] ranks = new long[1024];
+        int numTerms = 0;
+        long sumDocFreq = 0;
+        long sumTotalTermFreq = 0;
+        
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while((term = termsEnum.next()) != null) {
+            long kmer = this.termCodec.getKmer(term);
+            if(kmer < 0) {
+                throw new IllegalArgumentException("term " + term.utf8ToString() + " of field " + fieldInfo.name + " is not a k-mer of size " + this.termCodec.getKmerSize());
+            }
+            
+            BlockTermState termState = this.postingsWriter.writeTerm(term, termsEnum, docsSeen);
+            if(termState == null) {
+                // all postings of the term are deleted
+                continue;
+            }
+            
+            if(numTerms == ranks.length) {
+                ranks = ArrayUtil.grow(ranks);
+            }
+            long rank = this.termCodec.getTermRank(kmer);
+            ranks[numTerms] = rank;
+            numTerms++;
+            
+            rankWriter.add(rank);
+            docFreqWriter.add(termState.docFreq);
+            if(hasFreqs) {
+                totalTermFreqWriter.add(termState.totalTermFreq - termState.docFreq);
+            }
+            
+            this.postingsWriter.encodeTerm(longs, this.metadataBuffer, fieldInfo, termState, true);
+            for(int i=0;i<longsSize;i++) {
+                pointerWriters[i].add(longs[i]);
+            }
+            metadataOffsetWriter.add(this.metadataBuffer.getFilePointer());
+            
+            sumDocFreq += termState.docFreq;
+            sumTotalTermFreq += termState.totalTermFreq;
+        }
+        
+        if(numTerms == 0) {
+            return;
+        }
+        
+        long columnsPointer = this.out.getFilePointer();
+        rankWriter.finish();
+        rankBuffer.writeTo(this.out);
+        docFreqWriter.finish();
+        docFreqBuffer.writeTo(this.out);
+        if(hasFreqs) {
+            totalTermFreqWriter.finish();
+            totalTermFreqBuffer.writeTo(this.out);
+        }
+        for(int i=0;i<longsSize;i++) {
+            pointerWriters[i].finish();
+            pointerBuffers[i].writeTo(this.out);
+        }
+        metadataOffsetWriter.finish();
+        metadataOffsetBuffer.writeTo(this.out);
+        
+        long metadataPointer = this.out.getFilePointer();
+        this.metadataBuffer.writeTo(this.out);
+        this.metadataBuffer.reset();
+        
+        long lookupPointer = this.out.getFilePointer();
+        byte lookupType = writeLookup(ranks, numTerms);
+        
+        this.directoryBuffer.writeVInt(fieldInfo.number);
+        this.directoryBuffer.writeVInt(this.termCodec.getKmerSize());
+        this.directoryBuffer.writeVInt(longsSize);
+        this.directoryBuffer.writeVInt(numTerms);
+        this.directoryBuffer.writeVLong(sumDocFreq);
+        this.directoryBuffer.writeLong(hasFreqs ? sumTotalTermFreq : -1);
+        this.directoryBuffer.writeVInt(docsSeen.cardinality());
+        this.directoryBuffer.writeLong(columnsPointer);
+        this.directoryBuffer.writeLong(metadataPointer);
+        this.directoryBuffer.writeByte(lookupType);
+        this.directoryBuffer.writeLong(lookupPointer);
+        this.fieldCounter++;
+    }
+    
+    /**
+     * Writes the table mapping term ranks of k-mers to term ordinals. Ranks
+     * are already in term order, so the ordinal of a k-mer is the number of
+     * ranks below its own.
+     */
+    private byte writeLookup(long[] ranks, int numTerms) throws IOException {
+        int kmerSize = this.termCodec.getKmerSize();
+        long words = Math.max(1, (1L << (2 * kmerSize)) >>> 6);
+        if(words * 12 <= (long) numTerms * 2) {
+            // bitmap over the rank space and the number of ranks before each
+            // word
+            long[] bitmap = new long[(int) words];
+            for(int i=0;i<numTerms;i++) {
+                long rank = ranks[i];
+                bitmap[(int) (rank >>> 6)] |= 1L << (rank & 63);
+            }
+            for(int i=0;i<bitmap.length;i++) {
+                this.out.writeLong(bitmap[i]);
+            }
+            
+            int count = 0;
+            for(int i=0;i<bitmap.length;i++) {
+                this.out.writeInt(count);
+                count += Long.bitCount(bitmap[i]);
+            }
+            return KmerDirectPostingsFormat.LOOKUP_BITMAP;
+        } else {
+            // ordinals are found by binary search over the rank column
+            return KmerDirectPostingsFormat.LOOKUP_SORTED;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+        
+        boolean success = false;
+        try {
+            long directoryPointer = this.out.getFilePointer();
+            this.out.writeVInt(this.fieldCounter);
+            this.directoryBuffer.writeTo(this.out);
+            this.out.writeLong(directoryPointer);
+            CodecUtil.writeFooter(this.out);
+            success = true;
+        } finally {
+            if(success) {
+                IOUtils.close(this.out, this.postingsWriter);
+            } else {
+                IOUtils.closeWhileHandlingException(this.out, this.postingsWriter);
+            }
+        }
+    }
+}
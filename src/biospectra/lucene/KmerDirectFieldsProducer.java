@@ -0,0 +1,478 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.BlockPackedReader;
+import org.apache.lucene.util.packed.MonotonicBlockPackedReader;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Reads the terms file of KmerDirectPostingsFormat
+ *
+ * @author iychoi
+ */
+class KmerDirectFieldsProducer extends FieldsProducer {
+    
+    private IndexInput in;
+    private PostingsReaderBase postingsReader;
+    private Map<String, KmerDirectTerms> fields = new TreeMap<String, KmerDirectTerms>();
+    
+    KmerDirectFieldsProducer(SegmentReadState state, PostingsReaderBase postingsReader) throws IOException {
+        this.postingsReader = postingsReader;
+        
+        String fileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, KmerDirectPostingsFormat.TERMS_EXTENSION);
+        this.in = state.directory.openInput(fileName, state.context);
+        boolean success = false;
+        try {
+            CodecUtil.checkIndexHeader(this.in, KmerDirectPostingsFormat.TERMS_CODEC, KmerDirectPostingsFormat.VERSION_PACKED, KmerDirectPostingsFormat.VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+            postingsReader.init(this.in, state);
+            CodecUtil.retrieveChecksum(this.in);
+            
+            this.in.seek(this.in.length() - CodecUtil.footerLength() - 8);
+            this.in.seek(this.in.readLong());
+            int numFields = this.in.readVInt();
+            for(int i=0;i<numFields;i++) {
+                int fieldNumber = this.in.readVInt();
+                FieldInfo fieldInfo = state.fieldInfos.fieldInfo(fieldNumber);
+                if(fieldInfo == null) {
+                    throw new CorruptIndexException("invalid field number " + fieldNumber, this.in);
+                }
+                
+                KmerDirectTerms terms = new KmerDirectTerms(fieldInfo);
+                terms.termCodec = new KmerTermCodec(this.in.readVInt());
+                terms.longsSize = this.in.readVInt();
+                terms.numTerms = this.in.readVInt();
+                terms.sumDocFreq = this.in.readVLong();
+                terms.sumTotalTermFreq = this.in.readLong();
+                terms.docCount = this.in.readVInt();
+                terms.columnsPointer = this.in.readLong();
+                terms.metadataPointer = this.in.readLong();
+                terms.lookupType = this.in.readByte();
+                terms.lookupPointer = this.in.readLong();
+                
+                if(terms.lookupType != KmerDirectPostingsFormat.LOOKUP_BITMAP && terms.lookupType != KmerDirectPostingsFormat.LOOKUP_SORTED) {
+                    throw new CorruptIndexException("invalid lookup type " + terms.lookupType, this.in);
+                }
+                this.fields.put(fieldInfo.name, terms);
+            }
+            
+            // columns are kept in memory, they take a few bytes per term
+            for(KmerDirectTerms terms : this.fields.values()) {
+                terms.loadColumns(this.in);
+            }
+            success = true;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(this.in);
+            }
+        }
+    }
+    
+    @Override
+    public Iterator<String> iterator() {
+        return Collections.unmodifiableSet(this.fields.keySet()).iterator();
+    }
+    
+    @Override
+    public Terms terms(String field) throws IOException {
+        return this.fields.get(field);
+    }
+    
+    @Override
+    public int size() {
+        return this.fields.size();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(this.in, this.postingsReader);
+    }
+    
+    @Override
+    public void checkIntegrity() throws IOException {
+        CodecUtil.checksumEntireFile(this.in.clone());
+        this.postingsReader.checkIntegrity();
+    }
+    
+    @Override
+    public long ramBytesUsed() {
+        long size = this.postingsReader.ramBytesUsed();
+        for(KmerDirectTerms terms : this.fields.values()) {
+            size += terms.ramBytesUsed();
+        }
+        return size;
+    }
+    
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<Accountable>();
+        resources.add(this.postingsReader);
+        resources.addAll(this.fields.values());
+        return Collections.unmodifiableList(resources);
+    }
+    
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(fields=" + this.fields.size() + ",delegate=" + this.postingsReader + ")";
+    }
+    
+    private class KmerDirectTerms extends Terms implements Accountable {
+        
+        private FieldInfo fieldInfo;
+        private KmerTermCodec termCodec;
+        private int longsSize;
+        private int numTerms;
+        private long sumDocFreq;
+        private long sumTotalTermFreq;
+        private int docCount;
+        private long columnsPointer;
+        private long metadataPointer;
+        private byte lookupType;
+        private long lookupPointer;
+        private MonotonicBlockPackedReader ranks;
+        private BlockPackedReader docFreqs;
+        private BlockPackedReader totalTermFreqs;
+        private MonotonicBlockPackedReader[] pointers;
+        private MonotonicBlockPackedReader metadataOffsets;
+        
+        KmerDirectTerms(FieldInfo fieldInfo) {
+            this.fieldInfo = fieldInfo;
+        }
+        
+        private void loadColumns(IndexInput in) throws IOException {
+            in.seek(this.columnsPointer);
+            this.ranks = MonotonicBlockPackedReader.of(in, PackedInts.VERSION_CURRENT, KmerDirectPostingsFormat.BLOCK_SIZE, this.numTerms, false);
+            this.docFreqs = new BlockPackedReader(in, PackedInts.VERSION_CURRENT, KmerDirectPostingsFormat.BLOCK_SIZE, this.numTerms, false);
+            if(hasFreqs()) {
+                this.totalTermFreqs = new BlockPackedReader(in, PackedInts.VERSION_CURRENT, KmerDirectPostingsFormat.BLOCK_SIZE, this.numTerms, false);
+            }
+            this.pointers = new MonotonicBlockPackedReader[this.longsSize];
+            for(int i=0;i<this.longsSize;i++) {
+                this.pointers[i] = MonotonicBlockPackedReader.of(in, PackedInts.VERSION_CURRENT, KmerDirectPostingsFormat.BLOCK_SIZE, this.numTerms, false);
+            }
+            this.metadataOffsets = MonotonicBlockPackedReader.of(in, PackedInts.VERSION_CURRENT, KmerDirectPostingsFormat.BLOCK_SIZE, this.numTerms + 1L, false);
+            
+            if(in.getFilePointer() != this.metadataPointer) {
+                throw new CorruptIndexException("columns of field " + this.fieldInfo.name + " end at " + in.getFilePointer() + " instead of " + this.metadataPointer, in);
+            }
+        }
+        
+        @Override
+        public long ramBytesUsed() {
+            long size = 128L + this.ranks.ramBytesUsed() + this.docFreqs.ramBytesUsed() + this.metadataOffsets.ramBytesUsed();
+            if(this.totalTermFreqs != null) {
+                size += this.totalTermFreqs.ramBytesUsed();
+            }
+            for(MonotonicBlockPackedReader pointer : this.pointers) {
+                size += pointer.ramBytesUsed();
+            }
+            return size;
+        }
+        
+        @Override
+        public Collection<Accountable> getChildResources() {
+            return Collections.emptyList();
+        }
+        
+        @Override
+        public String toString() {
+            return "KmerDirectTerms(field=" + this.fieldInfo.name + ",terms=" + this.numTerms + ")";
+        }
+        
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new KmerDirectTermsEnum(this);
+        }
+        
+        @Override
+        public long size() throws IOException {
+            return this.numTerms;
+        }
+        
+        @Override
+        public long getSumTotalTermFreq() throws IOException {
+            return this.sumTotalTermFreq;
+        }
+        
+        @Override
+        public long getSumDocFreq() throws IOException {
+            return this.sumDocFreq;
+        }
+        
+        @Override
+        public int getDocCount() throws IOException {
+            return this.docCount;
+        }
+        
+        @Override
+        public boolean hasFreqs() {
+            return this.fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
+        }
+        
+        @Override
+        public boolean hasOffsets() {
+            return this.fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0;
+        }
+        
+        @Override
+        public boolean hasPositions() {
+            return this.fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+        }
+        
+        @Override
+        public boolean hasPayloads() {
+            return this.fieldInfo.hasPayloads();
+        }
+    }
+    
+    private class KmerDirectTermsEnum extends TermsEnum {
+        
+        private KmerDirectTerms terms;
+        private IndexInput data;
+        private RandomAccessInput lookupBitmap;
+        private RandomAccessInput lookupCounts;
+        private BlockTermState state;
+        private long[] longs;
+        private byte[] metadata = new byte[16];
+        private ByteArrayDataInput metadataInput = new ByteArrayDataInput();
+        private BytesRefBuilder term = new BytesRefBuilder();
+        private boolean termValid;
+        private long ord = -1;
+        private long rank;
+        
+        KmerDirectTermsEnum(KmerDirectTerms terms) throws IOException {
+            this.terms = terms;
+            this.data = in.clone();
+            
+            if(terms.lookupType == KmerDirectPostingsFormat.LOOKUP_BITMAP) {
+                long words = Math.max(1, (1L << (2 * terms.termCodec.getKmerSize())) >>> 6);
+                this.lookupBitmap = this.data.randomAccessSlice(terms.lookupPointer, words * 8);
+                this.lookupCounts = this.data.randomAccessSlice(terms.lookupPointer + words * 8, words * 4);
+            }
+            
+            this.state = postingsReader.newTermState();
+            this.longs = new long[terms.longsSize];
+        }
+        
+        /**
+         * Returns the term ordinal of a term rank, or -1 if absent
+         */
+        private long lookup(long rank) throws IOException {
+            if(this.terms.lookupType == KmerDirectPostingsFormat.LOOKUP_BITMAP) {
+                long word = rank >>> 6;
+                long bits = this.lookupBitmap.readLong(word * 8);
+                long mask = 1L << (rank & 63);
+                if((bits & mask) == 0) {
+                    return -1;
+                }
+                
+                return this.lookupCounts.readInt(word * 4) + Long.bitCount(bits & (mask - 1));
+            } else {
+                long low = 0;
+                long high = this.terms.numTerms - 1;
+                while(low <= high) {
+                    long mid = (low + high) >>> 1;
+                    long midRank = this.terms.ranks.get(mid);
+                    if(midRank < rank) {
+                        low = mid + 1;
+                    } else if(midRank > rank) {
+                        high = mid - 1;
+                    } else {
+                        return mid;
+                    }
+                }
+                return -1;
+            }
+        }
+        
+        private void load(long ord) throws IOException {
+            KmerDirectTerms terms = this.terms;
+            this.rank = terms.ranks.get(ord);
+            this.ord = ord;
+            this.termValid = false;
+            
+            this.state.docFreq = (int) terms.docFreqs.get(ord);
+            if(terms.totalTermFreqs != null) {
+                this.state.totalTermFreq = this.state.docFreq + terms.totalTermFreqs.get(ord);
+            } else {
+                this.state.totalTermFreq = -1;
+            }
+            this.state.ord = ord;
+            
+            for(int i=0;i<this.longs.length;i++) {
+                this.longs[i] = terms.pointers[i].get(ord);
+            }
+            long metadataOffset = terms.metadataOffsets.get(ord);
+            int metadataLength = (int) (terms.metadataOffsets.get(ord + 1) - metadataOffset);
+            if(this.metadata.length < metadataLength) {
+                this.metadata = new byte[ArrayUtil.oversize(metadataLength, 1)];
+            }
+            if(metadataLength > 0) {
+                this.data.seek(terms.metadataPointer + metadataOffset);
+                this.data.readBytes(this.metadata, 0, metadataLength);
+            }
+            this.metadataInput.reset(this.metadata, 0, metadataLength);
+            postingsReader.decodeTerm(this.longs, this.metadataInput, terms.fieldInfo, this.state, true);
+        }
+        
+        @Override
+        public boolean seekExact(BytesRef text) throws IOException {
+            long kmer = this.terms.termCodec.getKmer(text);
+            if(kmer < 0) {
+                return false;
+            }
+            
+            long ord = lookup(this.terms.termCodec.getTermRank(kmer));
+            if(ord < 0) {
+                return false;
+            }
+            
+            load(ord);
+            return true;
+        }
+        
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            long kmer = this.terms.termCodec.getKmer(text);
+            if(kmer >= 0) {
+                long ord = lookup(this.terms.termCodec.getTermRank(kmer));
+                if(ord >= 0) {
+                    load(ord);
+                    return SeekStatus.FOUND;
+                }
+            }
+            
+            // first term greater than the text
+            BytesRefBuilder midTerm = new BytesRefBuilder();
+            long low = 0;
+            long high = this.terms.numTerms - 1;
+            while(low <= high) {
+                long mid = (low + high) >>> 1;
+                KmerTermCodec codec = this.terms.termCodec;
+                codec.getTerm(codec.getSortKey(codec.getKmerOfTermRank(this.terms.ranks.get(mid))), midTerm);
+                int cmp = midTerm.get().compareTo(text);
+                if(cmp < 0) {
+                    low = mid + 1;
+                } else if(cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    load(mid);
+                    return SeekStatus.FOUND;
+                }
+            }
+            
+            if(low >= this.terms.numTerms) {
+                this.ord = this.terms.numTerms;
+                return SeekStatus.END;
+            }
+            load(low);
+            return SeekStatus.NOT_FOUND;
+        }
+        
+        @Override
+        public void seekExact(long ord) throws IOException {
+            if(ord < 0 || ord >= this.terms.numTerms) {
+                throw new IllegalArgumentException("ord must be between 0 and " + (this.terms.numTerms - 1));
+            }
+            load(ord);
+        }
+        
+        @Override
+        public void seekExact(BytesRef target, TermState otherState) throws IOException {
+            this.state.copyFrom(otherState);
+            this.ord = this.state.ord;
+            this.rank = this.terms.termCodec.getTermRank(this.terms.termCodec.getKmer(target));
+            this.term.copyBytes(target);
+            this.termValid = true;
+        }
+        
+        @Override
+        public BytesRef next() throws IOException {
+            if(this.ord + 1 >= this.terms.numTerms) {
+                this.ord = this.terms.numTerms;
+                return null;
+            }
+            load(this.ord + 1);
+            return term();
+        }
+        
+        @Override
+        public BytesRef term() throws IOException {
+            if(!this.termValid) {
+                KmerTermCodec codec = this.terms.termCodec;
+                codec.getTerm(codec.getSortKey(codec.getKmerOfTermRank(this.rank)), this.term);
+                this.termValid = true;
+            }
+            return this.term.get();
+        }
+        
+        @Override
+        public long ord() throws IOException {
+            return this.ord;
+        }
+        
+        @Override
+        public int docFreq() throws IOException {
+            return this.state.docFreq;
+        }
+        
+        @Override
+        public long totalTermFreq() throws IOException {
+            return this.state.totalTermFreq;
+        }
+        
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            return postingsReader.postings(this.terms.fieldInfo, this.state, reuse, flags);
+        }
+        
+        @Override
+        public TermState termState() throws IOException {
+            BlockTermState termState = postingsReader.newTermState();
+            termState.copyFrom(this.state);
+            return termState;
+        }
+    }
+}
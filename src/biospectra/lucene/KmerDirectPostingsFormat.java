@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.lucene;
+
+import biospectra.index.IndexConstants;
+import java.io.IOException;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsReader;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter;
+import org.apache.lucene.codecs.lucene53.Lucene53Codec;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Postings format for k-mer fields that replaces the term dictionary with a
+ * table addressed by the packed k-mer value.
+ * <p>
+ * Postings are written by the default postings writer. Term metadata is kept
+ * in block packed columns addressed by term ordinal. K-mers are stored by
+ * their rank in term order, so a k-mer is mapped to its term ordinal by a
+ * bitmap over the rank space with a count per word, and an exact term lookup
+ * costs a few array reads instead of a walk over the terms index. When the
+ * field holds too few distinct k-mers for the bitmap to pay off, the ordinals
+ * are found by binary search over the column of ranks instead.
+ * <p>
+ * The k-mer size is stored per field, so indices are read back through SPI
+ * with the no-argument constructor.
+ *
+ * @author iychoi
+ */
+public class KmerDirectPostingsFormat extends PostingsFormat {
+    
+    public static final String FORMAT_NAME = "KmerDirect";
+    public static final int MAX_KMER_SIZE = 14;
+    
+    static final String TERMS_EXTENSION = "kdt";
+    static final String TERMS_CODEC = "KmerDirectTerms";
+    static final int VERSION_START = 0;
+    static final int VERSION_PACKED = 1;
+    static final int VERSION_CURRENT = VERSION_PACKED;
+    
+    static final int BLOCK_SIZE = 128;
+    
+    static final byte LOOKUP_BITMAP = 0;
+    static final byte LOOKUP_SORTED = 1;
+    
+    private int kmerSize;
+    
+    public KmerDirectPostingsFormat() {
+        super(FORMAT_NAME);
+        this.kmerSize = 0;
+    }
+    
+    public KmerDirectPostingsFormat(int kmerSize) {
+        super(FORMAT_NAME);
+        
+        if(kmerSize <= 0 || kmerSize > MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + MAX_KMER_SIZE);
+        }
+        
+        this.kmerSize = kmerSize;
+    }
+    
+    /**
+     * Returns a codec that writes the sequence field in this format
+     */
+    public static Codec createCodec(int kmerSize) {
+        final PostingsFormat sequenceFormat = new KmerDirectPostingsFormat(kmerSize);
+        return new Lucene53Codec() {
+            @Override
+            public PostingsFormat getPostingsFormatForField(String field) {
+                if(field.equals(IndexConstants.FIELD_SEQUENCE)) {
+                    return sequenceFormat;
+                }
+                return super.getPostingsFormatForField(field);
+            }
+        };
+    }
+    
+    public int getKmerSize() {
+        return this.kmerSize;
+    }
+    
+    @Override
+    public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+        if(this.kmerSize <= 0) {
+            throw new IllegalStateException("kmerSize is not given, the format can only be used for reading");
+        }
+        
+        Lucene50PostingsWriter postingsWriter = new Lucene50PostingsWriter(state);
+        boolean success = false;
+        try {
+            FieldsConsumer consumer = new KmerDirectFieldsConsumer(state, postingsWriter, this.kmerSize);
+            success = true;
+            return consumer;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(postingsWriter);
+            }
+        }
+    }
+    
+    @Override
+    public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+        Lucene50PostingsReader postingsReader = new Lucene50PostingsReader(state);
+        boolean success = false;
+        try {
+            FieldsProducer producer = new KmerDirectFieldsProducer(state, postingsReader);
+            success = true;
+            return producer;
+        } finally {
+            if(!success) {
+                IOUtils.closeWhileHandlingException(postingsReader);
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return FORMAT_NAME + "(kmerSize=" + this.kmerSize + ")";
+    }
+}
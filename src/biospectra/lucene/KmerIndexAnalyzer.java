@@ -19,7 +19,9 @@ import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.util.LongBitSet;
 
 /**
  *
@@ -31,6 +33,7 @@ public class KmerIndexAnalyzer extends Analyzer {
     
     private int k;
     private boolean useMinStrand;
+    private LongBitSet discriminativeKmers;
 
     public KmerIndexAnalyzer(int k) {
         this.k = k;
@@ -42,13 +45,24 @@ public class KmerIndexAnalyzer extends Analyzer {
         this.useMinStrand = useMinStrand;
     }
     
+    public KmerIndexAnalyzer(int k, boolean useMinStrand, LongBitSet discriminativeKmers) {
+        this.k = k;
+        this.useMinStrand = useMinStrand;
+        this.discriminativeKmers = discriminativeKmers;
+    }
+    
     @Override
     protected TokenStreamComponents createComponents(String fieldName) {
         try {
             Tokenizer tokenizer = new KmerSequenceTokenizer(this.k, 0);
+            TokenStream stream = tokenizer;
+            if(this.discriminativeKmers != null) {
+                // index only k-mers carrying taxonomic signal
+                stream = new DiscriminativeKmerFilter(stream, this.discriminativeKmers);
+            }
             // use lower sequence form (forward / reverse complement)
             // use compression make 1/3 of size
-            SequenceCompressFilter filter = new SequenceCompressFilter(tokenizer, true, this.useMinStrand);
+            SequenceCompressFilter filter = new SequenceCompressFilter(stream, true, this.useMinStrand);
             return new TokenStreamComponents(tokenizer, filter);
         } catch (IOException ex) {
             LOG.error("Exception occurred during tokenization", ex);
@@ -19,7 +19,9 @@ import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.util.LongBitSet;
 
 /**
  *
@@ -32,6 +34,7 @@ public class KmerQueryAnalyzer extends Analyzer {
     private int k;
     private int skips;
     private boolean useMinStrand;
+    private LongBitSet discriminativeKmers;
 
     public KmerQueryAnalyzer(int k, int skips) {
         this.k = k;
@@ -45,6 +48,20 @@ public class KmerQueryAnalyzer extends Analyzer {
         this.useMinStrand = useMinStrand;
     }
     
+    /**
+     * @param k size of k-mers
+     * @param skips number of k-mers skipped between query k-mers
+     * @param useMinStrand use min-strand k-mers
+     * @param discriminativeKmers k-mers the index was built of, null if the
+     * index has all k-mers
+     */
+    public KmerQueryAnalyzer(int k, int skips, boolean useMinStrand, LongBitSet discriminativeKmers) {
+        this.k = k;
+        this.skips = skips;
+        this.useMinStrand = useMinStrand;
+        this.discriminativeKmers = discriminativeKmers;
+    }
+    
     public int getK() {
         return this.k;
     }
@@ -57,9 +74,14 @@ public class KmerQueryAnalyzer extends Analyzer {
     protected TokenStreamComponents createComponents(String fieldName) {
         try {
             Tokenizer tokenizer = new KmerSequenceTokenizer(this.k, this.skips);
+            TokenStream stream = tokenizer;
+            if(this.discriminativeKmers != null) {
+                // k-mers removed from the index can never match
+                stream = new DiscriminativeKmerFilter(stream, this.discriminativeKmers);
+            }
             // use lower sequence form (forward / reverse complement)
             // use compression make 1/3 of size
-            SequenceCompressFilter filter = new SequenceCompressFilter(tokenizer, true, this.useMinStrand);
+            SequenceCompressFilter filter = new SequenceCompressFilter(stream, true, this.useMinStrand);
             return new TokenStreamComponents(tokenizer, filter);
         } catch (IOException ex) {
             LOG.error("Exception occurred during tokenization", ex);
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.lucene;
+
+import biospectra.utils.PackedKmerIterator;
+import java.util.Arrays;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+/**
+ * Converts 2-bit packed k-mers to the terms SequenceCompressFilter produces
+ * (packed bytes in Base64) without going through strings.
+ * <p>
+ * Sort keys order k-mers the same way their terms are ordered in the index.
+ * Base64 characters do not sort in the order of the 6-bit values they encode,
+ * so each 6-bit group of the packed bytes is replaced by the rank of its
+ * character. Comparing sort keys as unsigned longs then gives the term order,
+ * which lets k-mers be sorted as primitives and written as terms afterwards.
+ *
+ * @author iychoi
+ */
+public class KmerTermCodec {
+    
+    private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final char BASE64_PAD = '=';
+    
+    private int kmerSize;
+    private int packedBits;
+    private int groups;
+    private int lastGroupBits;
+    private int padding;
+    private int[] groupRanks = new int[64];
+    private char[] groupChars = new char[64];
+    private int[] lastGroupRanks;
+    private char[] lastGroupChars;
+    private int[] charValues = new int[128];
+    private int[] rankGroupBits;
+    private int[][] rankGroupRanks;
+    private int[][] rankGroupValues;
+    
+    public KmerTermCodec(int kmerSize) {
+        if(kmerSize <= 0 || kmerSize > PackedKmerIterator.MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + PackedKmerIterator.MAX_KMER_SIZE);
+        }
+        
+        this.kmerSize = kmerSize;
+        int packedBytes = (kmerSize + 3) / 4;
+        this.packedBits = packedBytes * 8;
+        this.groups = (this.packedBits + 5) / 6;
+        this.lastGroupBits = this.packedBits - (this.groups - 1) * 6;
+        this.padding = (3 - packedBytes % 3) % 3;
+        
+        Arrays.fill(this.charValues, -1);
+        for(int v=0;v<64;v++) {
+            this.charValues[BASE64_CHARS.charAt(v)] = v;
+        }
+        
+        // rank of each 6-bit value by the order of its character
+        for(int v=0;v<64;v++) {
+            int rank = 0;
+            for(int u=0;u<64;u++) {
+                if(BASE64_CHARS.charAt(u) < BASE64_CHARS.charAt(v)) {
+                    rank++;
+                }
+            }
+            this.groupRanks[v] = rank;
+            this.groupChars[rank] = BASE64_CHARS.charAt(v);
+        }
+        
+        // the last group has zero low bits, its values are ranked among themselves
+        int zeroBits = 6 - this.lastGroupBits;
+        int lastValues = 1 << this.lastGroupBits;
+        this.lastGroupRanks = new int[lastValues];
+        this.lastGroupChars = new char[lastValues];
+        for(int v=0;v<lastValues;v++) {
+            int rank = 0;
+            for(int u=0;u<lastValues;u++) {
+                if(BASE64_CHARS.charAt(u << zeroBits) < BASE64_CHARS.charAt(v << zeroBits)) {
+                    rank++;
+                }
+            }
+            this.lastGroupRanks[v] = rank;
+            this.lastGroupChars[rank] = BASE64_CHARS.charAt(v << zeroBits);
+        }
+        
+        // bases of each group and their ranks among the characters the group
+        // can take, fill bits of the packed bytes are always zero
+        int fillStart = 2 * kmerSize;
+        this.rankGroupBits = new int[this.groups];
+        this.rankGroupRanks = new int[this.groups][];
+        this.rankGroupValues = new int[this.groups][];
+        for(int i=0;i<this.groups;i++) {
+            int start = 6 * i;
+            int width = i < this.groups - 1 ? 6 : this.lastGroupBits;
+            int bits = Math.max(0, Math.min(start + width, fillStart) - start);
+            int charShift = 6 - bits;
+            int values = 1 << bits;
+            this.rankGroupBits[i] = bits;
+            this.rankGroupRanks[i] = new int[values];
+            this.rankGroupValues[i] = new int[values];
+            for(int v=0;v<values;v++) {
+                int rank = 0;
+                for(int u=0;u<values;u++) {
+                    if(BASE64_CHARS.charAt(u << charShift) < BASE64_CHARS.charAt(v << charShift)) {
+                        rank++;
+                    }
+                }
+                this.rankGroupRanks[i][v] = rank;
+                this.rankGroupValues[i][rank] = v;
+            }
+        }
+    }
+    
+    public int getKmerSize() {
+        return this.kmerSize;
+    }
+    
+    /**
+     * Returns the sort key of a packed k-mer, to be compared as unsigned
+     */
+    public long getSortKey(long kmer) {
+        // packed bytes are filled with zero bits after the last base
+        long bits = kmer << (this.packedBits - 2 * this.kmerSize);
+        
+        long key = 0;
+        for(int i=0;i<this.groups-1;i++) {
+            int group = (int) ((bits >>> (this.packedBits - 6 * (i + 1))) & 0x3F);
+            key = (key << 6) | this.groupRanks[group];
+        }
+        
+        int lastGroup = (int) (bits & ((1L << this.lastGroupBits) - 1));
+        key = (key << this.lastGroupBits) | this.lastGroupRanks[lastGroup];
+        return key;
+    }
+    
+    /**
+     * Returns the rank of a packed k-mer among all k-mers of this size in term
+     * order. Unlike sort keys, ranks are dense in [0, 4^k).
+     */
+    public long getTermRank(long kmer) {
+        long rank = 0;
+        int shift = 2 * this.kmerSize;
+        for(int i=0;i<this.groups;i++) {
+            int bits = this.rankGroupBits[i];
+            if(bits == 0) {
+                break;
+            }
+            shift -= bits;
+            int group = (int) ((kmer >>> shift) & ((1 << bits) - 1));
+            rank = (rank << bits) | this.rankGroupRanks[i][group];
+        }
+        return rank;
+    }
+    
+    /**
+     * Returns the packed k-mer of a rank returned by getTermRank
+     */
+    public long getKmerOfTermRank(long rank) {
+        long kmer = 0;
+        int shift = 0;
+        for(int i=this.groups-1;i>=0;i--) {
+            int bits = this.rankGroupBits[i];
+            if(bits == 0) {
+                continue;
+            }
+            int groupRank = (int) (rank & ((1 << bits) - 1));
+            rank >>>= bits;
+            kmer |= ((long) this.rankGroupValues[i][groupRank]) << shift;
+            shift += bits;
+        }
+        return kmer;
+    }
+    
+    /**
+     * Writes the term of a sort key
+     */
+    public void getTerm(long sortKey, BytesRefBuilder term) {
+        term.clear();
+        term.grow(this.groups + this.padding);
+        
+        for(int i=0;i<this.groups-1;i++) {
+            int rank = (int) ((sortKey >>> (this.lastGroupBits + 6 * (this.groups - 2 - i))) & 0x3F);
+            term.append((byte) this.groupChars[rank]);
+        }
+        
+        int lastRank = (int) (sortKey & ((1L << this.lastGroupBits) - 1));
+        term.append((byte) this.lastGroupChars[lastRank]);
+        
+        for(int i=0;i<this.padding;i++) {
+            term.append((byte) BASE64_PAD);
+        }
+    }
+    
+    /**
+     * Returns the packed k-mer of a term, or -1 if the term is not a k-mer of
+     * this size
+     */
+    public long getKmer(BytesRef term) {
+        if(term.length != this.groups + this.padding) {
+            return -1;
+        }
+        
+        long bits = 0;
+        for(int i=0;i<this.groups;i++) {
+            int c = term.bytes[term.offset + i] & 0xFF;
+            int value = c < 128 ? this.charValues[c] : -1;
+            if(value < 0) {
+                return -1;
+            }
+            
+            if(i < this.groups - 1) {
+                bits = (bits << 6) | value;
+            } else {
+                int zeroBits = 6 - this.lastGroupBits;
+                if((value & ((1 << zeroBits) - 1)) != 0) {
+                    return -1;
+                }
+                bits = (bits << this.lastGroupBits) | (value >>> zeroBits);
+            }
+        }
+        
+        for(int i=0;i<this.padding;i++) {
+            if(term.bytes[term.offset + this.groups + i] != BASE64_PAD) {
+                return -1;
+            }
+        }
+        
+        // packed bytes are filled with zero bits after the last base
+        int fillBits = this.packedBits - 2 * this.kmerSize;
+        if((bits & ((1L << fillBits) - 1)) != 0) {
+            return -1;
+        }
+        return bits >>> fillBits;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.taxdb;
+
+import biospectra.classify.beans.Taxonomy;
+import biospectra.utils.JsonSerializer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * In-memory taxonomy made of the lineages of reference files. Taxa are
+ * linked to their parents, so lineages and lowest common ancestors are
+ * resolved without database lookups.
+ * <p>
+ * Taxid 0 stands for an unknown taxon. Lineages usually stop below the root
+ * of the taxonomy, so taxa without a known parent are placed under the root
+ * (taxid 1) to give taxa of different superkingdoms a common ancestor.
+ *
+ * @author iychoi
+ */
+public class TaxonomyTree {
+    
+    public static final int ROOT_TAXID = 1;
+    
+    private Map<Integer, Taxonomy> taxa = new HashMap<Integer, Taxonomy>();
+    
+    public static TaxonomyTree createInstance(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+
+        JsonSerializer serializer = new JsonSerializer();
+        return (TaxonomyTree) serializer.fromJsonFile(file, TaxonomyTree.class);
+    }
+    
+    public TaxonomyTree() {
+        
+    }
+    
+    /**
+     * Adds a lineage listed from the lowest rank to the root
+     */
+    @JsonIgnore
+    public void addLineage(List<Taxonomy> lineage) {
+        if(lineage == null) {
+            throw new IllegalArgumentException("lineage is null");
+        }
+        
+        for(Taxonomy tax : lineage) {
+            addTaxonomy(tax);
+        }
+    }
+    
+    @JsonIgnore
+    public void addTaxonomy(Taxonomy tax) {
+        if(tax == null) {
+            throw new IllegalArgumentException("tax is null");
+        }
+        
+        if(tax.getTaxid() <= 0) {
+            throw new IllegalArgumentException("taxid must be larger than 0");
+        }
+        
+        if(!this.taxa.containsKey(tax.getTaxid())) {
+            this.taxa.put(tax.getTaxid(), tax);
+        }
+    }
+    
+    @JsonProperty("taxa")
+    public List<Taxonomy> getTaxa() {
+        return new ArrayList<Taxonomy>(this.taxa.values());
+    }
+    
+    @JsonProperty("taxa")
+    public void setTaxa(List<Taxonomy> taxa) {
+        this.taxa.clear();
+        for(Taxonomy tax : taxa) {
+            addTaxonomy(tax);
+        }
+    }
+    
+    @JsonIgnore
+    public int size() {
+        return this.taxa.size();
+    }
+    
+    @JsonIgnore
+    public boolean contains(int taxid) {
+        return this.taxa.containsKey(taxid);
+    }
+    
+    @JsonIgnore
+    public Taxonomy getTaxonomy(int taxid) {
+        return this.taxa.get(taxid);
+    }
+    
+    /**
+     * Returns the parent of a taxon, 0 for the root or an unknown taxon. Taxa
+     * whose parent is not in the tree are children of the root
+     */
+    @JsonIgnore
+    public int getParent(int taxid) {
+        if(taxid == ROOT_TAXID) {
+            return 0;
+        }
+        
+        Taxonomy tax = this.taxa.get(taxid);
+        if(tax == null) {
+            return 0;
+        }
+        
+        if(tax.getParent() == tax.getTaxid() || !this.taxa.containsKey(tax.getParent())) {
+            return ROOT_TAXID;
+        }
+        return tax.getParent();
+    }
+    
+    /**
+     * Returns the number of ancestors of a taxon
+     */
+    @JsonIgnore
+    public int getDepth(int taxid) {
+        int depth = 0;
+        int parent = getParent(taxid);
+        while(parent != 0) {
+            depth++;
+            parent = getParent(parent);
+        }
+        return depth;
+    }
+    
+    /**
+     * Returns the lineage of a taxon from the lowest rank to the root
+     */
+    @JsonIgnore
+    public List<Taxonomy> getLineage(int taxid) {
+        List<Taxonomy> lineage = new ArrayList<Taxonomy>();
+        int current = taxid;
+        while(current != 0 && this.taxa.containsKey(current)) {
+            lineage.add(this.taxa.get(current));
+            current = getParent(current);
+        }
+        return lineage;
+    }
+    
+    /**
+     * Returns true if the ancestor is the taxon itself or one of its ancestors
+     */
+    @JsonIgnore
+    public boolean isAncestor(int ancestor, int taxid) {
+        int current = taxid;
+        while(current != 0) {
+            if(current == ancestor) {
+                return true;
+            }
+            current = getParent(current);
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the lowest common ancestor of two taxa. An unknown taxon (0)
+     * gives the other taxon, and taxa sharing no lineage give the root
+     */
+    @JsonIgnore
+    public int getLowestCommonAncestor(int taxid1, int taxid2) {
+        if(taxid1 == 0 || taxid1 == taxid2) {
+            return taxid2;
+        }
+        
+        if(taxid2 == 0) {
+            return taxid1;
+        }
+        
+        int a = taxid1;
+        int b = taxid2;
+        int depthA = getDepth(a);
+        int depthB = getDepth(b);
+        while(depthA > depthB) {
+            a = getParent(a);
+            depthA--;
+        }
+        while(depthB > depthA) {
+            b = getParent(b);
+            depthB--;
+        }
+        
+        while(a != b) {
+            a = getParent(a);
+            b = getParent(b);
+        }
+        return a;
+    }
+    
+    /**
+     * Returns the lowest taxon with a rank in the lineage of a taxon, null if
+     * none has a rank
+     */
+    @JsonIgnore
+    public Taxonomy getLowestClassifiableTaxonomy(int taxid) {
+        for(Taxonomy tax : getLineage(taxid)) {
+            String rank = tax.getRank();
+            if(rank != null && !rank.isEmpty() && !rank.equalsIgnoreCase("no rank")) {
+                return tax;
+            }
+        }
+        return null;
+    }
+    
+    @JsonIgnore
+    public synchronized String toJson() throws IOException {
+        JsonSerializer serializer = new JsonSerializer();
+        return serializer.toJson(this);
+    }
+    
+    @JsonIgnore
+    public synchronized void saveTo(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        JsonSerializer serializer = new JsonSerializer();
+        serializer.toJsonFile(file, this);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CharSequence view of a range of bytes, reused across records so that
+ * bases are read without creating Strings. Bytes are read as single-byte
+ * characters; toString() decodes them as UTF-8.
+ *
+ * @author iychoi
+ */
+public class ByteSequence implements CharSequence {
+    
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    
+    public ByteSequence() {
+        this.bytes = new byte[0];
+    }
+    
+    public ByteSequence(byte[] bytes, int offset, int length) {
+        set(bytes, offset, length);
+    }
+    
+    public void set(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+    
+    public int getOffset() {
+        return this.offset;
+    }
+    
+    public byte byteAt(int index) {
+        return this.bytes[this.offset + index];
+    }
+    
+    @Override
+    public int length() {
+        return this.length;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= this.length) {
+            throw new IndexOutOfBoundsException("index " + index + " is out of range");
+        }
+        return (char) (this.bytes[this.offset + index] & 0xFF);
+    }
+    
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if(start < 0 || end > this.length || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + " - " + end + " is out of range");
+        }
+        return new ByteSequence(this.bytes, this.offset + start, end - start);
+    }
+    
+    @Override
+    public String toString() {
+        return new String(this.bytes, this.offset, this.length, StandardCharsets.UTF_8);
+    }
+}
@@ -59,6 +59,43 @@ public class FastaFileHelper {
         return Collections.unmodifiableList(docs);
     }
     
+    /**
+     * Returns FASTA and FASTQ files, inputs of classification
+     */
+    public static List<File> findSequenceDocs(String path) throws IOException {
+        return findSequenceDocs(new File(path));
+    }
+    
+    public static List<File> findSequenceDocs(File file) throws IOException {
+        List<File> docs = new ArrayList<File>();
+        
+        if(!file.exists() || !file.canRead()) {
+            throw new IOException("path " + file.getAbsolutePath() + " not exist");
+        }
+        
+        FastaFileFilter fastaFilter = new FastaFileFilter();
+        FastqFileFilter fastqFilter = new FastqFileFilter();
+        
+        if(file.isFile()) {
+            if(fastaFilter.accept(file) || fastqFilter.accept(file)) {
+                docs.add(file);
+            }
+        } else {
+            File[] files = file.listFiles();
+            for(File f : files) {
+                if(f.isFile()) {
+                    if(fastaFilter.accept(f) || fastqFilter.accept(f)) {
+                        docs.add(f);
+                    }
+                } else {
+                    docs.addAll(findSequenceDocs(f));
+                }
+            }
+        }
+        
+        return Collections.unmodifiableList(docs);
+    }
+    
     public static String findTaxonHierarchyDoc(String fastaPath) throws IOException {
         return fastaPath + ".taxd";
     }
@@ -18,7 +18,6 @@ package biospectra.utils;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.util.zip.GZIPInputStream;
 import org.yeastrc.fasta.FASTAReader;
 
 /**
@@ -31,7 +30,7 @@ public class FastaFileReader {
         
         if(filter.accept(fastaDoc)) {
             // compressed
-            return FASTAReader.getInstance(new BufferedInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(fastaDoc), 1024*1024)), 1024*1024));
+            return FASTAReader.getInstance(new BufferedInputStream(ParallelGZIPInputStream.open(new FileInputStream(fastaDoc)), 1024*1024));
         } else {
             // plain
             return FASTAReader.getInstance(new BufferedInputStream(new FileInputStream(fastaDoc), 1024*1024));
@@ -15,15 +15,48 @@
  */
 package biospectra.utils;
 
+import biospectra.index.IndexConstants;
+import biospectra.index.IndexKmerStatistics;
+import biospectra.index.IndexSegmentStatistics;
+import biospectra.index.IndexStatistics;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
 
 /**
  *
@@ -32,9 +65,139 @@ import org.apache.lucene.store.MMapDirectory;
 public class IndexUtil implements Closeable {
     private static final Log LOG = LogFactory.getLog(IndexUtil.class);
     
+    private static final int HISTOGRAM_BUCKETS = 64;
+    
+    private static final Comparator<IndexKmerStatistics> KMER_DOC_FREQ_COMPARATOR = new Comparator<IndexKmerStatistics>() {
+
+        @Override
+        public int compare(IndexKmerStatistics k1, IndexKmerStatistics k2) {
+            if(k1.getDocFreq() != k2.getDocFreq()) {
+                return k1.getDocFreq() < k2.getDocFreq() ? -1 : 1;
+            }
+            
+            if(k1.getTotalTermFreq() != k2.getTotalTermFreq()) {
+                return k1.getTotalTermFreq() < k2.getTotalTermFreq() ? -1 : 1;
+            }
+            return k2.getTerm().compareTo(k1.getTerm());
+        }
+    };
+    
     private File indexPath;
     private IndexReader indexReader;
     
+    /**
+     * Returns shard directories of an index built with partitions kept as
+     * shards, ordered by shard number
+     */
+    public static List<File> findShardDirs(File indexPath) {
+        return findNumberedDirs(indexPath, IndexConstants.SHARD_DIRECTORY_PREFIX);
+    }
+    
+    /**
+     * Returns sub-directories of an index named with the prefix followed by
+     * a number, ordered by the number
+     */
+    public static List<File> findNumberedDirs(File indexPath, String prefix) {
+        List<File> dirs = new ArrayList<File>();
+        File[] files = indexPath.listFiles();
+        if(files == null) {
+            return dirs;
+        }
+        
+        for(File f : files) {
+            if(f.isDirectory() && f.getName().startsWith(prefix)) {
+                dirs.add(f);
+            }
+        }
+        
+        // numeric instead of lexicographic order (shard-10 after shard-9)
+        File[] sorted = new File[dirs.size()];
+        for(File f : dirs) {
+            int num = Integer.parseInt(f.getName().substring(prefix.length()));
+            if(num >= sorted.length) {
+                throw new IllegalStateException(prefix + " directories are not numbered contiguously");
+            }
+            sorted[num] = f;
+        }
+        return Arrays.asList(sorted);
+    }
+    
+    /**
+     * Opens an index for reading. Shards of the index are opened together
+     * with the index as a single reader
+     */
+    public static IndexReader openIndexReader(File indexPath) throws IOException {
+        return openIndexReader(indexPath, false);
+    }
+    
+    /**
+     * Opens an index for reading, optionally loading index files into
+     * physical memory when they are mapped
+     */
+    public static IndexReader openIndexReader(File indexPath, boolean preload) throws IOException {
+        if(indexPath == null) {
+            throw new IllegalArgumentException("indexPath is null");
+        }
+        
+        MMapDirectory dir = new MMapDirectory(indexPath.toPath());
+        dir.setPreload(preload);
+        DirectoryReader reader = DirectoryReader.open(dir);
+        
+        List<File> shardDirs = findShardDirs(indexPath);
+        if(shardDirs.isEmpty()) {
+            return reader;
+        }
+        
+        IndexReader[] readers = new IndexReader[shardDirs.size() + 1];
+        readers[0] = reader;
+        for(int i=0;i<shardDirs.size();i++) {
+            MMapDirectory shardDir = new MMapDirectory(shardDirs.get(i).toPath());
+            shardDir.setPreload(preload);
+            readers[i+1] = DirectoryReader.open(shardDir);
+        }
+        return new MultiReader(readers);
+    }
+    
+    /**
+     * Touches per-segment structures that are otherwise loaded by the first
+     * queries: norms, doc values and the term index of the sequence field
+     */
+    public static void warmUp(IndexReader reader) throws IOException {
+        if(reader == null) {
+            throw new IllegalArgumentException("reader is null");
+        }
+        
+        for(LeafReaderContext context : reader.leaves()) {
+            LeafReader leafReader = context.reader();
+            NumericDocValues norms = leafReader.getNormValues(IndexConstants.FIELD_SEQUENCE);
+            if(norms != null && leafReader.maxDoc() > 0) {
+                norms.get(0);
+            }
+            
+            for(FieldInfo fieldInfo : leafReader.getFieldInfos()) {
+                switch(fieldInfo.getDocValuesType()) {
+                    case NUMERIC:
+                        leafReader.getNumericDocValues(fieldInfo.name);
+                        break;
+                    case BINARY:
+                        leafReader.getBinaryDocValues(fieldInfo.name);
+                        break;
+                    case SORTED:
+                        leafReader.getSortedDocValues(fieldInfo.name);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            
+            Terms terms = leafReader.terms(IndexConstants.FIELD_SEQUENCE);
+            if(terms != null) {
+                // a seek loads the terms index of the segment
+                terms.iterator().seekCeil(new BytesRef());
+            }
+        }
+    }
+    
     public IndexUtil(String indexPath) throws Exception {
         if(indexPath == null) {
             throw new IllegalArgumentException("indexPath is null");
@@ -53,13 +216,290 @@ public class IndexUtil implements Closeable {
         }
         
         this.indexPath = indexPath;
-        Directory dir = new MMapDirectory(this.indexPath.toPath()); 
-        this.indexReader = DirectoryReader.open(dir);
+        this.indexReader = openIndexReader(this.indexPath);
     }
     
     public int countDocs() throws Exception {
         return this.indexReader.numDocs();
     }
+    
+    /**
+     * Frequencies of k-mer terms sharing a leading byte
+     */
+    private static class TermScan {
+        private long terms;
+        private long sumDocFreq;
+        private long sumTotalTermFreq;
+        private long[] docFreqHistogram = new long[HISTOGRAM_BUCKETS];
+        private long[] positionsHistogram = new long[HISTOGRAM_BUCKETS];
+        private PriorityQueue<IndexKmerStatistics> topKmers;
+        private int kmerSize;
+        
+        TermScan(int topKmers) {
+            this.topKmers = new PriorityQueue<IndexKmerStatistics>(Math.max(1, topKmers), KMER_DOC_FREQ_COMPARATOR);
+        }
+    }
+    
+    /**
+     * Returns the power-of-two bucket of a positive value
+     */
+    private static int getHistogramBucket(long value) {
+        return 63 - Long.numberOfLeadingZeros(value);
+    }
+    
+    private static Map<String, Long> toHistogram(long[] buckets) {
+        Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+        int last = buckets.length - 1;
+        while(last > 0 && buckets[last] == 0) {
+            last--;
+        }
+        
+        for(int i=0;i<=last;i++) {
+            long lower = 1L << i;
+            long upper = (1L << (i + 1)) - 1;
+            String label = lower == upper ? Long.toString(lower) : lower + "-" + upper;
+            histogram.put(label, buckets[i]);
+        }
+        return histogram;
+    }
+    
+    private static void offerKmer(PriorityQueue<IndexKmerStatistics> topKmers, int maxKmers, IndexKmerStatistics kmer) {
+        if(maxKmers <= 0) {
+            return;
+        }
+        
+        if(topKmers.size() < maxKmers) {
+            topKmers.offer(kmer);
+        } else if(KMER_DOC_FREQ_COMPARATOR.compare(kmer, topKmers.peek()) > 0) {
+            topKmers.poll();
+            topKmers.offer(kmer);
+        }
+    }
+    
+    /**
+     * Returns the number of bases of a k-mer term up to its last base that is
+     * not A. Packed bytes are filled with zero bits, the same as A, so the
+     * k-mer size is the largest value over the terms of an index.
+     */
+    private static int getSignificantBases(byte[] packed) {
+        for(int i=packed.length-1;i>=0;i--) {
+            int bits = packed[i] & 0xFF;
+            if(bits != 0) {
+                return i * 4 + 4 - Integer.numberOfTrailingZeros(bits) / 2;
+            }
+        }
+        return 0;
+    }
+    
+    private static TermScan scanTerms(Terms terms, int leadingByte, int maxKmers) throws IOException {
+        TermScan scan = new TermScan(maxKmers);
+        TermsEnum termsEnum = terms.iterator();
+        if(termsEnum.seekCeil(new BytesRef(new byte[] {(byte) leadingByte})) == TermsEnum.SeekStatus.END) {
+            return scan;
+        }
+        
+        PostingsEnum postings = null;
+        BytesRef term = termsEnum.term();
+        while(term != null && (term.bytes[term.offset] & 0xFF) == leadingByte) {
+            int docFreq = termsEnum.docFreq();
+            long totalTermFreq = termsEnum.totalTermFreq();
+            scan.terms++;
+            scan.sumDocFreq += docFreq;
+            scan.sumTotalTermFreq += totalTermFreq;
+            scan.docFreqHistogram[getHistogramBucket(docFreq)]++;
+            
+            byte[] packed = Base64.decodeBase64(Arrays.copyOfRange(term.bytes, term.offset, term.offset + term.length));
+            scan.kmerSize = Math.max(scan.kmerSize, getSignificantBases(packed));
+            
+            // length of position lists, a proximity query reads them per matching document
+            postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+            while(postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                scan.positionsHistogram[getHistogramBucket(postings.freq())]++;
+            }
+            
+            if(maxKmers > 0 && (scan.topKmers.size() < maxKmers || docFreq >= scan.topKmers.peek().getDocFreq())) {
+                IndexKmerStatistics kmer = new IndexKmerStatistics();
+                kmer.setTerm(term.utf8ToString());
+                kmer.setDocFreq(docFreq);
+                kmer.setTotalTermFreq(totalTermFreq);
+                offerKmer(scan.topKmers, maxKmers, kmer);
+            }
+            
+            term = termsEnum.next();
+        }
+        return scan;
+    }
+    
+    private static String getFileType(String filename) {
+        String extension = filename.substring(filename.lastIndexOf('.') + 1);
+        if(extension.equals("doc") || extension.equals("pos") || extension.equals("pay")) {
+            return "postings";
+        } else if(extension.equals("tim") || extension.equals("tip") || extension.equals("kdt")) {
+            return "terms";
+        } else if(extension.equals("nvd") || extension.equals("nvm")) {
+            return "norms";
+        } else if(extension.equals("dvd") || extension.equals("dvm")) {
+            return "doc_values";
+        } else if(extension.equals("fdt") || extension.equals("fdx")) {
+            return "stored_fields";
+        } else if(extension.equals("cfs") || extension.equals("cfe")) {
+            return "compound";
+        } else {
+            return "other";
+        }
+    }
+    
+    private static void addDiskUsage(Map<String, Long> diskUsage, String type, long length) {
+        Long usage = diskUsage.get(type);
+        diskUsage.put(type, (usage == null ? 0 : usage) + length);
+    }
+    
+    private static IndexSegmentStatistics collectSegmentStatistics(LeafReader reader) throws IOException {
+        IndexSegmentStatistics stats = new IndexSegmentStatistics();
+        stats.setDocs(reader.numDocs());
+        stats.setDeletedDocs(reader.numDeletedDocs());
+        
+        Fields fields = reader.fields();
+        if(fields != null) {
+            for(String field : fields) {
+                Terms terms = fields.terms(field);
+                if(terms != null) {
+                    stats.getFieldTerms().put(field, terms.size());
+                }
+            }
+        }
+        
+        if(reader instanceof SegmentReader) {
+            SegmentCommitInfo info = ((SegmentReader) reader).getSegmentInfo();
+            stats.setName(info.info.name);
+            stats.setCodec(info.info.getCodec().getName());
+            
+            // postings of the sequence field dominate postings and terms files,
+            // other fields are kept in norms, doc values and stored fields
+            long size = 0;
+            for(String file : info.files()) {
+                long length = info.info.dir.fileLength(file);
+                size += length;
+                if(!info.info.getUseCompoundFile() || getFileType(file).equals("other")) {
+                    addDiskUsage(stats.getDiskUsage(), getFileType(file), length);
+                }
+            }
+            stats.setSizeInBytes(size);
+            
+            if(info.info.getUseCompoundFile()) {
+                // usage of files packed in a compound file
+                Directory compoundDir = info.info.getCodec().compoundFormat().getCompoundReader(info.info.dir, info.info, IOContext.READONCE);
+                try {
+                    for(String file : compoundDir.listAll()) {
+                        addDiskUsage(stats.getDiskUsage(), getFileType(file), compoundDir.fileLength(file));
+                    }
+                } finally {
+                    compoundDir.close();
+                }
+            }
+        }
+        return stats;
+    }
+    
+    /**
+     * Collects statistics of the index. Segments and partitions of the k-mer
+     * term space are scanned in parallel.
+     * 
+     * @param threads number of threads
+     * @param maxKmers number of most frequent k-mers to report
+     */
+    public IndexStatistics collectStatistics(int threads, final int maxKmers) throws Exception {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("threads must be larger than 0");
+        }
+        
+        if(maxKmers < 0) {
+            throw new IllegalArgumentException("maxKmers must be equal or larger than 0");
+        }
+        
+        IndexStatistics stats = new IndexStatistics();
+        stats.setDocs(this.indexReader.numDocs());
+        stats.setMaxDoc(this.indexReader.maxDoc());
+        stats.setSegments(this.indexReader.leaves().size());
+        
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<IndexSegmentStatistics>> segmentFutures = new ArrayList<Future<IndexSegmentStatistics>>();
+            for(final LeafReaderContext context : this.indexReader.leaves()) {
+                segmentFutures.add(pool.submit(new Callable<IndexSegmentStatistics>() {
+
+                    @Override
+                    public IndexSegmentStatistics call() throws Exception {
+                        return collectSegmentStatistics(context.reader());
+                    }
+                }));
+            }
+            
+            // the term space is split by the leading byte of terms, so that
+            // frequencies summed over segments are scanned in parallel
+            List<Future<TermScan>> termFutures = new ArrayList<Future<TermScan>>();
+            final Terms terms = MultiFields.getTerms(this.indexReader, IndexConstants.FIELD_SEQUENCE);
+            if(terms != null) {
+                for(int i=0;i<256;i++) {
+                    final int leadingByte = i;
+                    termFutures.add(pool.submit(new Callable<TermScan>() {
+
+                        @Override
+                        public TermScan call() throws Exception {
+                            return scanTerms(terms, leadingByte, maxKmers);
+                        }
+                    }));
+                }
+            }
+            
+            for(Future<IndexSegmentStatistics> future : segmentFutures) {
+                IndexSegmentStatistics segmentStats = future.get();
+                stats.getSegmentLayout().add(segmentStats);
+                stats.setSizeInBytes(stats.getSizeInBytes() + segmentStats.getSizeInBytes());
+                for(Map.Entry<String, Long> entry : segmentStats.getDiskUsage().entrySet()) {
+                    addDiskUsage(stats.getDiskUsage(), entry.getKey(), entry.getValue());
+                }
+            }
+            
+            long[] docFreqHistogram = new long[HISTOGRAM_BUCKETS];
+            long[] positionsHistogram = new long[HISTOGRAM_BUCKETS];
+            PriorityQueue<IndexKmerStatistics> topKmers = new PriorityQueue<IndexKmerStatistics>(Math.max(1, maxKmers), KMER_DOC_FREQ_COMPARATOR);
+            int kmerSize = 0;
+            for(Future<TermScan> future : termFutures) {
+                TermScan scan = future.get();
+                kmerSize = Math.max(kmerSize, scan.kmerSize);
+                stats.setTerms(stats.getTerms() + scan.terms);
+                stats.setSumDocFreq(stats.getSumDocFreq() + scan.sumDocFreq);
+                stats.setSumTotalTermFreq(stats.getSumTotalTermFreq() + scan.sumTotalTermFreq);
+                for(int i=0;i<HISTOGRAM_BUCKETS;i++) {
+                    docFreqHistogram[i] += scan.docFreqHistogram[i];
+                    positionsHistogram[i] += scan.positionsHistogram[i];
+                }
+                for(IndexKmerStatistics kmer : scan.topKmers) {
+                    offerKmer(topKmers, maxKmers, kmer);
+                }
+            }
+            
+            stats.setDocFreqHistogram(toHistogram(docFreqHistogram));
+            stats.setPositionsHistogram(toHistogram(positionsHistogram));
+            List<IndexKmerStatistics> sortedKmers = new ArrayList<IndexKmerStatistics>(topKmers);
+            for(IndexKmerStatistics kmer : sortedKmers) {
+                // terms are packed bases in Base64, reported as bases
+                kmer.setTerm(SequenceHelper.decompress(Base64.decodeBase64(kmer.getTerm()), kmerSize));
+            }
+            Collections.sort(sortedKmers, Collections.reverseOrder(KMER_DOC_FREQ_COMPARATOR));
+            stats.setTopKmers(sortedKmers);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        } finally {
+            pool.shutdownNow();
+        }
+        return stats;
+    }
 
     @Override
     public void close() throws IOException {
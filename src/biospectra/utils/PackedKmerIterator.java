@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.utils;
+
+/**
+ * Iterates k-mers of a sequence as 2-bit packed values (A=0, C=1, G=2, T=3,
+ * first base in the highest bits).
+ * <p>
+ * K-mers are produced the same way KmerSequenceTokenizer produces tokens with
+ * no skips: every window of k bases is visited and windows containing a
+ * character other than A, C, G and T are dropped. The packed forward and
+ * reverse-complement k-mers are rolled in constant time per base.
+ *
+ * @author iychoi
+ */
+public class PackedKmerIterator {
+    
+    public static final int MAX_KMER_SIZE = 32;
+    
+    private int kmerSize;
+    private boolean minStrand;
+    private long mask;
+    private int reverseShift;
+    private CharSequence sequence;
+    private int offset;
+    private int validBases;
+    private long forward;
+    private long reverse;
+    
+    public PackedKmerIterator(int kmerSize, boolean minStrand) {
+        if(kmerSize <= 0 || kmerSize > MAX_KMER_SIZE) {
+            throw new IllegalArgumentException("kmerSize must be between 1 and " + MAX_KMER_SIZE);
+        }
+        
+        this.kmerSize = kmerSize;
+        this.minStrand = minStrand;
+        this.mask = kmerSize == MAX_KMER_SIZE ? -1L : (1L << (2 * kmerSize)) - 1;
+        this.reverseShift = 2 * (kmerSize - 1);
+    }
+    
+    public int getKmerSize() {
+        return this.kmerSize;
+    }
+    
+    public void reset(CharSequence sequence) {
+        if(sequence == null) {
+            throw new IllegalArgumentException("sequence is null");
+        }
+        
+        this.sequence = sequence;
+        this.offset = 0;
+        this.validBases = 0;
+        this.forward = 0;
+        this.reverse = 0;
+    }
+    
+    /**
+     * Returns the 2-bit code of a base, -1 if it is not one of A, C, G and T
+     */
+    public static int encode(char ch) {
+        switch(ch) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+    
+    /**
+     * Moves to the next k-mer, returns false at the end of the sequence
+     */
+    public boolean next() {
+        int length = this.sequence.length();
+        while(this.offset < length) {
+            int code = encode(this.sequence.charAt(this.offset++));
+            if(code < 0) {
+                this.validBases = 0;
+                continue;
+            }
+            
+            this.forward = ((this.forward << 2) | code) & this.mask;
+            this.reverse = (this.reverse >>> 2) | ((long) (3 - code) << this.reverseShift);
+            this.validBases++;
+            
+            if(this.validBases >= this.kmerSize) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the current k-mer, the smaller of both strands in min-strand mode
+     */
+    public long getKmer() {
+        if(this.minStrand) {
+            return getCanonicalKmer();
+        }
+        return this.forward;
+    }
+    
+    /**
+     * Returns the smaller of both strands of the current k-mer
+     */
+    public long getCanonicalKmer() {
+        if((this.reverse ^ Long.MIN_VALUE) < (this.forward ^ Long.MIN_VALUE)) {
+            return this.reverse;
+        }
+        return this.forward;
+    }
+    
+    /**
+     * Returns the offset of the current k-mer in the sequence
+     */
+    public int getOffset() {
+        return this.offset - this.kmerSize;
+    }
+}
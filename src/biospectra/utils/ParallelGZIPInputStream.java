@@ -0,0 +1,434 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.utils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses gzip files ahead of the reader on other threads.
+ * <p>
+ * BGZF files (gzip members of at most 64KB carrying their compressed size in
+ * a "BC" extra field) are inflated block-parallel: a reader thread splits
+ * blocks and worker threads inflate them, and blocks are returned in order.
+ * Other gzip files cannot be split, so they are inflated by the reader thread
+ * into chunks queued ahead of the consumer.
+ *
+ * @author iychoi
+ */
+public class ParallelGZIPInputStream extends InputStream {
+    
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    
+    private static final int BUFFER_SIZE = 1024*1024;
+    private static final int CHUNK_SIZE = 1024*1024;
+    private static final int MAX_PENDING_CHUNKS = 4;
+    private static final int MAX_PENDING_BLOCKS_PER_THREAD = 16;
+    
+    private static final int GZIP_ID1 = 31;
+    private static final int GZIP_ID2 = 139;
+    private static final int GZIP_CM_DEFLATE = 8;
+    private static final int GZIP_FLG_FEXTRA = 4;
+    private static final int GZIP_HEADER_SIZE = 12;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final int BGZF_SI1 = 'B';
+    private static final int BGZF_SI2 = 'C';
+    
+    // marks the end of decompressed data in the queue
+    private static final byte[] END_OF_STREAM = new byte[0];
+    
+    private InputStream in;
+    private ExecutorService executor;
+    private Thread readerThread;
+    private BlockingQueue<Future<byte[]>> chunks;
+    private byte[] chunk;
+    private int chunkOffset;
+    private boolean eof;
+    private volatile boolean closed;
+    
+    public ParallelGZIPInputStream(InputStream in) throws IOException {
+        this(in, DEFAULT_THREADS);
+    }
+    
+    public ParallelGZIPInputStream(InputStream in, int threads) throws IOException {
+        if(in == null) {
+            throw new IllegalArgumentException("in is null");
+        }
+        
+        if(threads <= 0) {
+            throw new IllegalArgumentException("threads must be larger than 0");
+        }
+        
+        this.in = new BufferedInputStream(in, BUFFER_SIZE);
+        
+        Runnable reader = null;
+        if(isBGZF(this.in)) {
+            this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("bgzf-inflater"));
+            this.chunks = new ArrayBlockingQueue<Future<byte[]>>(threads * MAX_PENDING_BLOCKS_PER_THREAD);
+            reader = new Runnable() {
+
+                @Override
+                public void run() {
+                    readBlocks();
+                }
+            };
+        } else {
+            this.chunks = new ArrayBlockingQueue<Future<byte[]>>(MAX_PENDING_CHUNKS);
+            reader = new Runnable() {
+
+                @Override
+                public void run() {
+                    inflateChunks();
+                }
+            };
+        }
+        
+        this.readerThread = new DaemonThreadFactory("gzip-reader").newThread(reader);
+        this.readerThread.start();
+    }
+    
+    /**
+     * Opens a gzip stream, decompressing on other threads only when more than
+     * one processor is available
+     */
+    public static InputStream open(InputStream in) throws IOException {
+        if(in == null) {
+            throw new IllegalArgumentException("in is null");
+        }
+        
+        if(Runtime.getRuntime().availableProcessors() > 1) {
+            return new ParallelGZIPInputStream(in);
+        }
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+    
+    /**
+     * Returns true if the stream starts with a BGZF block
+     */
+    private static boolean isBGZF(InputStream in) throws IOException {
+        in.mark(GZIP_HEADER_SIZE + 6);
+        try {
+            byte[] header = new byte[GZIP_HEADER_SIZE + 6];
+            int read = 0;
+            while(read < header.length) {
+                int n = in.read(header, read, header.length - read);
+                if(n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            
+            return (header[0] & 0xFF) == GZIP_ID1 && (header[1] & 0xFF) == GZIP_ID2
+                    && (header[2] & 0xFF) == GZIP_CM_DEFLATE && (header[3] & GZIP_FLG_FEXTRA) != 0
+                    && (header[12] & 0xFF) == BGZF_SI1 && (header[13] & 0xFF) == BGZF_SI2;
+        } finally {
+            in.reset();
+        }
+    }
+    
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+    }
+    
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8)
+                | ((bytes[offset + 2] & 0xFF) << 16) | ((bytes[offset + 3] & 0xFF) << 24);
+    }
+    
+    /**
+     * Reads exactly len bytes, returns false if the stream ends before the
+     * first byte
+     */
+    private boolean readFully(byte[] bytes, int offset, int len) throws IOException {
+        int read = 0;
+        while(read < len) {
+            int n = this.in.read(bytes, offset + read, len - read);
+            if(n < 0) {
+                if(read == 0) {
+                    return false;
+                }
+                throw new EOFException("unexpected end of a gzip block");
+            }
+            read += n;
+        }
+        return true;
+    }
+    
+    private void put(Future<byte[]> future) throws InterruptedException {
+        this.chunks.put(future);
+    }
+    
+    private void putCompleted(final byte[] bytes) throws InterruptedException {
+        FutureTask<byte[]> future = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws Exception {
+                return bytes;
+            }
+        });
+        future.run();
+        put(future);
+    }
+    
+    private void putFailure(final Exception ex) {
+        FutureTask<byte[]> future = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws Exception {
+                throw ex;
+            }
+        });
+        future.run();
+        try {
+            put(future);
+        } catch (InterruptedException ie) {
+            // closed by the consumer
+        }
+    }
+    
+    /**
+     * Splits BGZF blocks and submits them to inflater threads
+     */
+    private void readBlocks() {
+        try {
+            byte[] header = new byte[GZIP_HEADER_SIZE];
+            while(!this.closed && readFully(header, 0, GZIP_HEADER_SIZE)) {
+                if((header[0] & 0xFF) != GZIP_ID1 || (header[1] & 0xFF) != GZIP_ID2 || (header[3] & GZIP_FLG_FEXTRA) == 0) {
+                    throw new IOException("not a BGZF block");
+                }
+                
+                int xlen = readUnsignedShort(header, 10);
+                byte[] extra = new byte[xlen];
+                readFully(extra, 0, xlen);
+                
+                int blockSize = -1;
+                for(int i=0;i + 4 <= xlen;) {
+                    int slen = readUnsignedShort(extra, i + 2);
+                    if((extra[i] & 0xFF) == BGZF_SI1 && (extra[i + 1] & 0xFF) == BGZF_SI2 && slen == 2) {
+                        blockSize = readUnsignedShort(extra, i + 4) + 1;
+                        break;
+                    }
+                    i += 4 + slen;
+                }
+                
+                if(blockSize < 0) {
+                    throw new IOException("BGZF block does not have its size");
+                }
+                
+                final byte[] data = new byte[blockSize - GZIP_HEADER_SIZE - xlen];
+                readFully(data, 0, data.length);
+                put(this.executor.submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() throws Exception {
+                        return inflateBlock(data);
+                    }
+                }));
+            }
+            putCompleted(END_OF_STREAM);
+        } catch (InterruptedException ex) {
+            // closed by the consumer
+        } catch (Exception ex) {
+            putFailure(ex);
+        }
+    }
+    
+    /**
+     * Inflates deflated data of a BGZF block followed by its CRC32 and size
+     */
+    private static byte[] inflateBlock(byte[] data) throws IOException {
+        int deflatedSize = data.length - GZIP_TRAILER_SIZE;
+        int crc = readInt(data, deflatedSize);
+        int size = readInt(data, deflatedSize + 4);
+        
+        byte[] inflated = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, 0, deflatedSize);
+            int inflatedSize = 0;
+            while(inflatedSize < size && !inflater.finished()) {
+                int n = inflater.inflate(inflated, inflatedSize, size - inflatedSize);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflatedSize += n;
+            }
+            
+            if(inflatedSize != size) {
+                throw new IOException("BGZF block is corrupted - inflated " + inflatedSize + " bytes, expected " + size);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("BGZF block is corrupted", ex);
+        } finally {
+            inflater.end();
+        }
+        
+        CRC32 checksum = new CRC32();
+        checksum.update(inflated, 0, size);
+        if((int) checksum.getValue() != crc) {
+            throw new IOException("BGZF block has a wrong checksum");
+        }
+        return inflated;
+    }
+    
+    /**
+     * Inflates a gzip stream into chunks ahead of the consumer
+     */
+    private void inflateChunks() {
+        try {
+            GZIPInputStream gzip = new GZIPInputStream(this.in, BUFFER_SIZE);
+            while(!this.closed) {
+                byte[] bytes = new byte[CHUNK_SIZE];
+                int filled = 0;
+                while(filled < CHUNK_SIZE) {
+                    int n = gzip.read(bytes, filled, CHUNK_SIZE - filled);
+                    if(n < 0) {
+                        break;
+                    }
+                    filled += n;
+                }
+                
+                if(filled > 0) {
+                    putCompleted(filled == CHUNK_SIZE ? bytes : Arrays.copyOf(bytes, filled));
+                }
+                
+                if(filled < CHUNK_SIZE) {
+                    break;
+                }
+            }
+            putCompleted(END_OF_STREAM);
+        } catch (InterruptedException ex) {
+            // closed by the consumer
+        } catch (Exception ex) {
+            putFailure(ex);
+        }
+    }
+    
+    /**
+     * Moves to the next chunk with data, returns false at the end of stream
+     */
+    private boolean nextChunk() throws IOException {
+        while(this.chunk == null || this.chunkOffset >= this.chunk.length) {
+            if(this.eof) {
+                return false;
+            }
+            
+            try {
+                byte[] next = this.chunks.take().get();
+                if(next == END_OF_STREAM) {
+                    this.eof = true;
+                    return false;
+                }
+                this.chunk = next;
+                this.chunkOffset = 0;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while decompressing", ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if(cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("decompression failed", cause);
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if(!nextChunk()) {
+            return -1;
+        }
+        return this.chunk[this.chunkOffset++] & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] bytes, int offset, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        
+        if(!nextChunk()) {
+            return -1;
+        }
+        
+        int n = Math.min(len, this.chunk.length - this.chunkOffset);
+        System.arraycopy(this.chunk, this.chunkOffset, bytes, offset, n);
+        this.chunkOffset += n;
+        return n;
+    }
+    
+    @Override
+    public int available() throws IOException {
+        if(this.chunk == null) {
+            return 0;
+        }
+        return this.chunk.length - this.chunkOffset;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if(this.closed) {
+            return;
+        }
+        
+        this.closed = true;
+        this.readerThread.interrupt();
+        if(this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        
+        try {
+            this.readerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.in.close();
+    }
+    
+    private static class DaemonThreadFactory implements ThreadFactory {
+        
+        private String name;
+        
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, this.name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2016 iychoi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package biospectra.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Reads FASTA and FASTQ records into a reusable buffer.
+ * <p>
+ * Plain files are read from a FileChannel and compressed files are inflated
+ * directly into the buffer. A record is normalized in place (line breaks
+ * and comments removed, bases upper-cased) and returned as views into the
+ * buffer, which are only valid until the next call to next(). FASTA records
+ * are read the same way as FASTAReader of yeastrc. FASTQ records have four
+ * lines.
+ *
+ * @author iychoi
+ */
+public class SequenceReader implements Closeable {
+    
+    private static final int BUFFER_SIZE = 1024*1024;
+    
+    private static final byte FASTA_HEADER = '>';
+    private static final byte FASTQ_HEADER = '@';
+    private static final byte COMMENT = ';';
+    private static final byte MASKED_BASE = 'N';
+    private static final int PHRED_OFFSET = 33;
+    
+    public static final int MAX_BASE_QUALITY = 93;
+    
+    private FileChannel channel;
+    private InputStream inputStream;
+    private MessageDigest digest;
+    private InputStream digestInputStream;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    // unread data is buffer[position, limit)
+    private int position;
+    private int limit;
+    private boolean eof;
+    private byte format;
+    private long lineNumber;
+    
+    private ByteSequence headerLine = new ByteSequence();
+    private ByteSequence header = new ByteSequence();
+    private ByteSequence sequence = new ByteSequence();
+    private ByteSequence quality = new ByteSequence();
+    
+    /**
+     * Opens a FASTA or FASTQ file, plain or gzip-compressed
+     */
+    public static SequenceReader open(File file) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        CompressedFileFilter filter = new CompressedFileFilter();
+        if(filter.accept(file)) {
+            // compressed
+            return new SequenceReader(ParallelGZIPInputStream.open(new FileInputStream(file)));
+        } else {
+            // plain
+            return new SequenceReader(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        }
+    }
+    
+    /**
+     * Opens a FASTA or FASTQ file, feeding the bytes of the file as stored to
+     * a digest while it is read. The digest covers the whole file once next()
+     * returns false
+     */
+    public static SequenceReader open(File file, MessageDigest digest) throws IOException {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        if(digest == null) {
+            throw new IllegalArgumentException("digest is null");
+        }
+        
+        CompressedFileFilter filter = new CompressedFileFilter();
+        if(filter.accept(file)) {
+            // compressed, the digest is computed over compressed bytes
+            DigestInputStream digestInputStream = new DigestInputStream(new FileInputStream(file), digest);
+            SequenceReader reader = new SequenceReader(ParallelGZIPInputStream.open(digestInputStream));
+            reader.digestInputStream = digestInputStream;
+            return reader;
+        } else {
+            // plain
+            SequenceReader reader = new SequenceReader(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+            reader.digest = digest;
+            return reader;
+        }
+    }
+    
+    public SequenceReader(FileChannel channel) {
+        if(channel == null) {
+            throw new IllegalArgumentException("channel is null");
+        }
+        
+        this.channel = channel;
+    }
+    
+    public SequenceReader(InputStream inputStream) {
+        if(inputStream == null) {
+            throw new IllegalArgumentException("inputStream is null");
+        }
+        
+        this.inputStream = inputStream;
+    }
+    
+    /**
+     * Reads more data, moving unread data to the front of the buffer and
+     * growing it if it is full. Returns false at the end of input
+     */
+    private boolean fill() throws IOException {
+        if(this.eof) {
+            return false;
+        }
+        
+        if(this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        }
+        
+        if(this.limit == this.buffer.length) {
+            // a record larger than the buffer
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        }
+        
+        int read = 0;
+        if(this.channel != null) {
+            read = this.channel.read(ByteBuffer.wrap(this.buffer, this.limit, this.buffer.length - this.limit));
+            if(read > 0 && this.digest != null) {
+                this.digest.update(this.buffer, this.limit, read);
+            }
+        } else {
+            read = this.inputStream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+        }
+        
+        if(read < 0) {
+            this.eof = true;
+            if(this.digestInputStream != null) {
+                // bytes after the end of compressed data are not read by the
+                // decompressor, but belong to the file
+                byte[] rest = new byte[64*1024];
+                int n = 0;
+                while(n >= 0) {
+                    n = this.digestInputStream.read(rest);
+                }
+            }
+            return false;
+        }
+        
+        this.limit += read;
+        return true;
+    }
+    
+    /**
+     * Returns the end of a line starting at position + offset (exclusive of
+     * the line break) relative to position, reading more data if needed
+     */
+    private int findLineEnd(int offset) throws IOException {
+        int scanned = offset;
+        while(true) {
+            for(int i=this.position + scanned;i<this.limit;i++) {
+                if(this.buffer[i] == '\n') {
+                    return i - this.position;
+                }
+            }
+            
+            scanned = this.limit - this.position;
+            if(!fill()) {
+                return this.limit - this.position;
+            }
+        }
+    }
+    
+    /**
+     * Returns true if a line starts at position + offset and begins with ch
+     */
+    private boolean lineStartsWith(int offset, byte ch) throws IOException {
+        if(this.position + offset >= this.limit) {
+            fill();
+        }
+        return this.position + offset < this.limit && this.buffer[this.position + offset] == ch;
+    }
+    
+    private boolean hasData(int offset) throws IOException {
+        if(this.position + offset >= this.limit) {
+            fill();
+        }
+        return this.position + offset < this.limit;
+    }
+    
+    /**
+     * Returns the length of a line without a trailing carriage return
+     */
+    private int trimLineBreak(int start, int end) {
+        if(end > start && this.buffer[this.position + end - 1] == '\r') {
+            return end - 1 - start;
+        }
+        return end - start;
+    }
+    
+    private static boolean isWhitespace(byte b) {
+        // the same characters String.trim() removes
+        return (b & 0xFF) <= ' ';
+    }
+    
+    private static byte toUpperCase(byte b) {
+        if(b >= 'a' && b <= 'z') {
+            return (byte) (b - ('a' - 'A'));
+        }
+        return b;
+    }
+    
+    /**
+     * Skips empty lines before a record, returns false at the end of input
+     */
+    private boolean skipEmptyLines() throws IOException {
+        while(hasData(0)) {
+            byte b = this.buffer[this.position];
+            if(b == '\n') {
+                this.position++;
+                this.lineNumber++;
+            } else if(b == '\r' && hasData(1) && this.buffer[this.position + 1] == '\n') {
+                this.position += 2;
+                this.lineNumber++;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Reads the next record, returns false at the end of input
+     */
+    public boolean next() throws IOException {
+        if(!skipEmptyLines()) {
+            return false;
+        }
+        
+        if(this.format == 0) {
+            byte first = this.buffer[this.position];
+            if(first != FASTA_HEADER && first != FASTQ_HEADER) {
+                throw new IOException("Line Number: " + (this.lineNumber + 1) + " - Expected header line, but line did not start with \">\" or \"@\".");
+            }
+            this.format = first;
+        }
+        
+        if(this.buffer[this.position] != this.format) {
+            throw new IOException("Line Number: " + (this.lineNumber + 1) + " - Expected header line, but line did not start with \"" + (char) this.format + "\".");
+        }
+        
+        if(this.format == FASTA_HEADER) {
+            readFasta();
+        } else {
+            readFastq();
+        }
+        return true;
+    }
+    
+    private void readFasta() throws IOException {
+        int headerEnd = findLineEnd(0);
+        int headerLength = trimLineBreak(0, headerEnd);
+        this.lineNumber++;
+        
+        // find the end of the record first, the buffer may move while reading
+        int end = headerEnd;
+        while(end < this.limit - this.position && !lineStartsWith(end + 1, FASTA_HEADER) && hasData(end + 1)) {
+            end = findLineEnd(end + 1);
+        }
+        int recordLength = Math.min(end + 1, this.limit - this.position);
+        
+        // join sequence lines in place, right after the header
+        int write = this.position + headerEnd + 1;
+        int seqStart = write;
+        int line = headerEnd + 1;
+        while(line < recordLength) {
+            int lineEnd = line;
+            while(lineEnd < recordLength && this.buffer[this.position + lineEnd] != '\n') {
+                lineEnd++;
+            }
+            this.lineNumber++;
+            
+            if(this.buffer[this.position + line] != COMMENT) {
+                int length = trimLineBreak(line, lineEnd);
+                for(int i=0;i<length;i++) {
+                    this.buffer[write++] = toUpperCase(this.buffer[this.position + line + i]);
+                }
+            }
+            line = lineEnd + 1;
+        }
+        
+        int seqEnd = write;
+        while(seqStart < seqEnd && isWhitespace(this.buffer[seqStart])) {
+            seqStart++;
+        }
+        while(seqEnd > seqStart && isWhitespace(this.buffer[seqEnd - 1])) {
+            seqEnd--;
+        }
+        
+        if(seqStart == seqEnd) {
+            throw new IOException("Did not get a sequence line after a header line (Line Number: " + this.lineNumber + ")");
+        }
+        
+        this.headerLine.set(this.buffer, this.position, headerLength);
+        this.header.set(this.buffer, this.position + 1, headerLength - 1);
+        this.sequence.set(this.buffer, seqStart, seqEnd - seqStart);
+        this.quality.set(this.buffer, seqEnd, 0);
+        this.position += recordLength;
+    }
+    
+    private void readFastq() throws IOException {
+        int headerEnd = findLineEnd(0);
+        int seqEnd = findLineEnd(headerEnd + 1);
+        if(!lineStartsWith(seqEnd + 1, (byte) '+')) {
+            throw new IOException("Line Number: " + (this.lineNumber + 3) + " - Expected separator line, but line did not start with \"+\".");
+        }
+        int separatorEnd = findLineEnd(seqEnd + 1);
+        int qualityEnd = findLineEnd(separatorEnd + 1);
+        this.lineNumber += 4;
+        
+        int headerLength = trimLineBreak(0, headerEnd);
+        int seqStart = headerEnd + 1;
+        int seqLength = trimLineBreak(seqStart, seqEnd);
+        int qualityStart = separatorEnd + 1;
+        int qualityLength = trimLineBreak(qualityStart, Math.min(qualityEnd, this.limit - this.position));
+        
+        if(seqLength == 0) {
+            throw new IOException("Did not get a sequence line after a header line (Line Number: " + (this.lineNumber - 2) + ")");
+        }
+        
+        if(qualityLength != seqLength) {
+            throw new IOException("Line Number: " + this.lineNumber + " - Quality line does not have the same length as the sequence.");
+        }
+        
+        for(int i=0;i<seqLength;i++) {
+            int idx = this.position + seqStart + i;
+            this.buffer[idx] = toUpperCase(this.buffer[idx]);
+        }
+        
+        this.headerLine.set(this.buffer, this.position, headerLength);
+        this.header.set(this.buffer, this.position + 1, headerLength - 1);
+        this.sequence.set(this.buffer, this.position + seqStart, seqLength);
+        this.quality.set(this.buffer, this.position + qualityStart, qualityLength);
+        this.position += Math.min(qualityEnd + 1, this.limit - this.position);
+    }
+    
+    /**
+     * Replaces bases of the current record whose Phred quality is below a
+     * threshold with N, so that k-mers covering them are not searched.
+     * Returns the number of masked bases, always 0 for FASTA records
+     */
+    public int maskLowQualityBases(int minQuality) {
+        int masked = 0;
+        if(minQuality <= 0 || this.quality.length() != this.sequence.length()) {
+            return masked;
+        }
+        
+        byte[] bases = this.sequence.getBytes();
+        int offset = this.sequence.getOffset();
+        for(int i=0;i<this.quality.length();i++) {
+            // qualities are Phred+33
+            if(this.quality.byteAt(i) - PHRED_OFFSET < minQuality && bases[offset + i] != MASKED_BASE) {
+                bases[offset + i] = MASKED_BASE;
+                masked++;
+            }
+        }
+        return masked;
+    }
+    
+    /**
+     * Returns true if records are FASTQ
+     */
+    public boolean isFastq() {
+        return this.format == FASTQ_HEADER;
+    }
+    
+    /**
+     * Returns the header line of the current record including its leading
+     * ">" or "@"
+     */
+    public ByteSequence getHeaderLine() {
+        return this.headerLine;
+    }
+    
+    /**
+     * Returns the header of the current record without its leading ">" or
+     * "@"
+     */
+    public ByteSequence getHeader() {
+        return this.header;
+    }
+    
+    /**
+     * Returns upper-cased bases of the current record
+     */
+    public ByteSequence getSequence() {
+        return this.sequence;
+    }
+    
+    /**
+     * Returns Phred+33 quality characters of the current record, empty for
+     * FASTA records
+     */
+    public ByteSequence getQuality() {
+        return this.quality;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if(this.channel != null) {
+            this.channel.close();
+        }
+        if(this.inputStream != null) {
+            this.inputStream.close();
+        }
+    }
+}